@@ -14,4 +14,7 @@ public class NetWorkConstant {
   /**  定义keepAliveTimeout */
   public static final int KEEP_ALIVE_TIMEOUT = 6000;
 
+  /**  定义写超时，socket一直不可写时放弃写入 */
+  public static final int WRITE_TIMEOUT = 20000;
+
 }
@@ -13,13 +13,18 @@ import com.nocoder.minitomcat.listener.ServletRequestListener;
 import com.nocoder.minitomcat.listener.event.HttpSessionEvent;
 import com.nocoder.minitomcat.listener.event.ServletContextEvent;
 import com.nocoder.minitomcat.listener.event.ServletRequestEvent;
+import com.nocoder.minitomcat.network.dispatcher.Bulkhead;
 import com.nocoder.minitomcat.request.Request;
 import com.nocoder.minitomcat.response.Response;
+import com.nocoder.minitomcat.response.cache.CoalescingPolicy;
+import com.nocoder.minitomcat.response.cache.RequestCoalescer;
+import com.nocoder.minitomcat.response.cache.ResponseCache;
+import com.nocoder.minitomcat.response.cache.ResponseCachePolicy;
 import com.nocoder.minitomcat.servlet.Servlet;
 import com.nocoder.minitomcat.session.HttpSession;
 import com.nocoder.minitomcat.session.IdleSessionCleaner;
+import com.nocoder.minitomcat.session.SessionManager;
 
-import com.nocoder.minitomcat.util.UUIDUtil;
 import com.nocoder.minitomcat.util.XMLUtil;
 import java.io.InputStream;
 import java.net.MalformedURLException;
@@ -37,8 +42,6 @@ import org.dom4j.Document;
 import org.dom4j.Element;
 import org.springframework.util.AntPathMatcher;
 
-import java.time.Duration;
-import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
@@ -88,7 +91,11 @@ public class ServletContext {
     /**
      * 整个应用对应的session们
      */
-    private Map<String, HttpSession> sessions;
+    private SessionManager sessionManager;
+    /**
+     * session过期时间，单位秒，由web.xml的session-config/session-timeout（分钟）配置
+     */
+    private int sessionTimeout;
     /**
      * 路径匹配器，由Spring提供
      */
@@ -96,6 +103,25 @@ public class ServletContext {
 
     private IdleSessionCleaner idleSessionCleaner;
 
+    /**
+     * URL Pattern -> 响应缓存配置，由servlet-mapping/response-cache或setResponseCachePolicy配置
+     */
+    private Map<String, ResponseCachePolicy> responseCachePolicies;
+    private ResponseCache responseCache;
+    /**
+     * URL Pattern -> 请求合并配置，由servlet-mapping/coalesce或setCoalescingPolicy配置
+     */
+    private Map<String, CoalescingPolicy> coalescingPolicies;
+    private RequestCoalescer requestCoalescer;
+    /**
+     * 隔离舱名称 -> 隔离舱
+     */
+    private Map<String, Bulkhead> bulkheads;
+    /**
+     * URL Pattern -> 隔离舱，由bulkhead元素或addBulkhead配置
+     */
+    private Map<String, Bulkhead> bulkheadMapping;
+
 
     public ServletContext() throws IllegalAccessException, ClassNotFoundException, InstantiationException {
         init();
@@ -134,6 +160,115 @@ public class ServletContext {
         return initAndGetServlet(DEFAULT_SERVLET_ALIAS);
     }
 
+    /**
+     * 由URL得到对应的响应缓存配置，没有配置时返回null
+     * 匹配规则与mapServlet一致：先精确匹配，再取最具体的路径匹配
+     *
+     * @param url
+     * @return
+     */
+    public ResponseCachePolicy mapResponseCachePolicy(String url) {
+        return mapPolicy(responseCachePolicies, url);
+    }
+
+    /**
+     * 由URL得到对应的请求合并配置，没有配置时返回null
+     *
+     * @param url
+     * @return
+     */
+    public CoalescingPolicy mapCoalescingPolicy(String url) {
+        return mapPolicy(coalescingPolicies, url);
+    }
+
+    /**
+     * 由URL得到对应的隔离舱，没有配置时返回null
+     *
+     * @param url
+     * @return
+     */
+    public Bulkhead mapBulkhead(String url) {
+        return mapPolicy(bulkheadMapping, url);
+    }
+
+    /**
+     * 添加一个隔离舱，映射到给定的URL Pattern
+     *
+     * @param bulkhead
+     * @param urlPatterns
+     */
+    public void addBulkhead(Bulkhead bulkhead, String... urlPatterns) {
+        Bulkhead old = bulkheads.put(bulkhead.getName(), bulkhead);
+        if (old != null && old != bulkhead) {
+            bulkheadMapping.values().removeIf(mapped -> mapped == old);
+            old.shutdown();
+        }
+        for (String urlPattern : urlPatterns) {
+            bulkheadMapping.put(urlPattern, bulkhead);
+        }
+    }
+
+    public Collection<Bulkhead> getBulkheads() {
+        return bulkheads.values();
+    }
+
+    private <T> T mapPolicy(Map<String, T> policies, String url) {
+        if (policies.isEmpty()) {
+            return null;
+        }
+        T policy = policies.get(url);
+        if (policy != null) {
+            return policy;
+        }
+        List<String> matchingPatterns = new ArrayList<>();
+        for (String pattern : policies.keySet()) {
+            if (matcher.match(pattern, url)) {
+                matchingPatterns.add(pattern);
+            }
+        }
+        if (matchingPatterns.isEmpty()) {
+            return null;
+        }
+        matchingPatterns.sort(matcher.getPatternComparator(url));
+        return policies.get(matchingPatterns.get(0));
+    }
+
+    /**
+     * 为一个servlet映射开启响应缓存，policy为null时关闭
+     *
+     * @param urlPattern
+     * @param policy
+     */
+    public void setResponseCachePolicy(String urlPattern, ResponseCachePolicy policy) {
+        if (policy == null) {
+            responseCachePolicies.remove(urlPattern);
+        } else {
+            responseCachePolicies.put(urlPattern, policy);
+        }
+    }
+
+    public ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    /**
+     * 为一个servlet映射开启请求合并，policy为null时关闭
+     *
+     * @param urlPattern
+     * @param policy
+     */
+    public void setCoalescingPolicy(String urlPattern, CoalescingPolicy policy) {
+        if (policy == null) {
+            coalescingPolicies.remove(urlPattern);
+        } else {
+            coalescingPolicies.put(urlPattern, policy);
+        }
+    }
+
+    public RequestCoalescer getRequestCoalescer() {
+        return requestCoalescer;
+    }
+
     /**
      * 初始化并获取Servlet实例，如果已经初始化过则直接返回
      *
@@ -225,16 +360,23 @@ public class ServletContext {
         this.servlets = new ConcurrentHashMap<>();
         this.servletMapping = new HashMap<>();
         this.attributes = new ConcurrentHashMap<>();
-        this.sessions = new ConcurrentHashMap<>();
         this.filters = new HashMap<>();
         this.filterMapping = new HashMap<>();
         this.matcher = new AntPathMatcher();
-        this.idleSessionCleaner = new IdleSessionCleaner();
-        this.idleSessionCleaner.start();
         this.servletContextListeners = new ArrayList<>();
         this.httpSessionListeners = new ArrayList<>();
         this.servletRequestListeners = new ArrayList<>();
+        this.sessionTimeout = DEFAULT_SESSION_EXPIRE_TIME;
+        this.responseCachePolicies = new ConcurrentHashMap<>();
+        this.responseCache = new ResponseCache();
+        this.coalescingPolicies = new ConcurrentHashMap<>();
+        this.requestCoalescer = new RequestCoalescer();
+        this.bulkheads = new ConcurrentHashMap<>();
+        this.bulkheadMapping = new ConcurrentHashMap<>();
         parseConfig();
+        this.sessionManager = new SessionManager(sessionTimeout, this::afterSessionDestroyed);
+        this.idleSessionCleaner = new IdleSessionCleaner();
+        this.idleSessionCleaner.start();
         ServletContextEvent servletContextEvent = new ServletContextEvent(this);
         for (ServletContextListener listener : servletContextListeners) {
             listener.contextInitialized(servletContextEvent);
@@ -259,6 +401,8 @@ public class ServletContext {
         for (ServletContextListener listener : servletContextListeners) {
             listener.contextDestroyed(servletContextEvent);
         }
+        sessionManager.close();
+        bulkheads.values().forEach(Bulkhead::shutdown);
     }
 
     /**
@@ -284,6 +428,60 @@ public class ServletContext {
             for (Element urlPattern : urlPatterns) {
                 this.servletMapping.put(urlPattern.getText(), value);
             }
+            // <response-cache><ttl>秒数</ttl><key-header>请求头</key-header></response-cache>
+            Element cacheEle = mapping.element("response-cache");
+            if (cacheEle != null) {
+                List<Element> keyHeaderEles = cacheEle.elements("key-header");
+                String[] keyHeaders = new String[keyHeaderEles.size()];
+                for (int i = 0; i < keyHeaders.length; i++) {
+                    keyHeaders[i] = keyHeaderEles.get(i).getTextTrim();
+                }
+                ResponseCachePolicy policy = new ResponseCachePolicy(Long.parseLong(cacheEle.elementTextTrim("ttl")), keyHeaders);
+                for (Element urlPattern : urlPatterns) {
+                    this.responseCachePolicies.put(urlPattern.getText(), policy);
+                }
+            }
+            // <coalesce><max-wait>毫秒</max-wait><key-header>请求头</key-header></coalesce>
+            Element coalesceEle = mapping.element("coalesce");
+            if (coalesceEle != null) {
+                List<Element> keyHeaderEles = coalesceEle.elements("key-header");
+                String[] keyHeaders = new String[keyHeaderEles.size()];
+                for (int i = 0; i < keyHeaders.length; i++) {
+                    keyHeaders[i] = keyHeaderEles.get(i).getTextTrim();
+                }
+                CoalescingPolicy policy = new CoalescingPolicy(Long.parseLong(coalesceEle.elementTextTrim("max-wait")), keyHeaders);
+                for (Element urlPattern : urlPatterns) {
+                    this.coalescingPolicies.put(urlPattern.getText(), policy);
+                }
+            }
+        }
+
+        // 解析bulkhead，按url-pattern或servlet-name（该servlet的全部url-pattern）映射
+        List<Element> bulkheadEles = root.elements("bulkhead");
+        for (Element bulkheadEle : bulkheadEles) {
+            String name = bulkheadEle.elementTextTrim("bulkhead-name");
+            String type = bulkheadEle.elementTextTrim("type");
+            String queueSize = bulkheadEle.elementTextTrim("queue-size");
+            String rejection = bulkheadEle.elementTextTrim("rejection");
+            Bulkhead bulkhead = new Bulkhead(name,
+                    type == null ? Bulkhead.Type.SEMAPHORE : Bulkhead.Type.valueOf(type.toUpperCase().replace('-', '_')),
+                    Integer.parseInt(bulkheadEle.elementTextTrim("max-concurrency")),
+                    queueSize == null ? 0 : Integer.parseInt(queueSize),
+                    rejection == null ? Bulkhead.Rejection.REJECT : Bulkhead.Rejection.valueOf(rejection.toUpperCase()));
+            List<String> patterns = new ArrayList<>();
+            List<Element> urlPatterns = bulkheadEle.elements("url-pattern");
+            for (Element urlPattern : urlPatterns) {
+                patterns.add(urlPattern.getTextTrim());
+            }
+            List<Element> servletNames = bulkheadEle.elements("servlet-name");
+            for (Element servletName : servletNames) {
+                for (Map.Entry<String, String> mapping : this.servletMapping.entrySet()) {
+                    if (mapping.getValue().equals(servletName.getTextTrim())) {
+                        patterns.add(mapping.getKey());
+                    }
+                }
+            }
+            addBulkhead(bulkhead, patterns.toArray(new String[0]));
         }
 
         // 解析 filter
@@ -308,6 +506,12 @@ public class ServletContext {
             }
         }
 
+        // 解析session-config
+        Element sessionConfig = root.element("session-config");
+        if (sessionConfig != null && sessionConfig.element("session-timeout") != null) {
+            this.sessionTimeout = Integer.parseInt(sessionConfig.element("session-timeout").getTextTrim()) * 60;
+        }
+
         // 解析listener
         Element listener = root.element("listener");
         List<Element> listenerEles = listener.elements("listener-class");
@@ -331,7 +535,7 @@ public class ServletContext {
      * @return
      */
     public HttpSession getSession(String JSESSIONID) {
-        return sessions.get(JSESSIONID);
+        return sessionManager.getSession(JSESSIONID);
     }
 
     /**
@@ -340,8 +544,7 @@ public class ServletContext {
      * @return
      */
     public HttpSession createSession(Response response) {
-        HttpSession session = new HttpSession(UUIDUtil.uuid());
-        sessions.put(session.getId(), session);
+        HttpSession session = sessionManager.createSession();
         response.addCookie(new Cookie("JSESSIONID", session.getId()));
         HttpSessionEvent httpSessionEvent = new HttpSessionEvent(session);
         for (HttpSessionListener listener : httpSessionListeners) {
@@ -355,23 +558,18 @@ public class ServletContext {
      * @param session
      */
     public void invalidateSession(HttpSession session) {
-        sessions.remove(session.getId());
-        afterSessionDestroyed(session);
+        sessionManager.removeSession(session);
     }
 
     /**
-     * 清除空闲的session
-     * 由于ConcurrentHashMap是线程安全的，所以remove不需要进行加锁
+     * 清除过期的session，由IdleSessionCleaner每个时间轮刻度调用一次
      */
     public void cleanIdleSessions() {
-        for (Iterator<Map.Entry<String, HttpSession>> it = sessions.entrySet().iterator(); it.hasNext(); ) {
-            Map.Entry<String, HttpSession> entry = it.next();
-            if (Duration.between(entry.getValue().getLastAccessed(), Instant.now()).getSeconds() >= DEFAULT_SESSION_EXPIRE_TIME) {
-                 log.info("该session {} 已过期", entry.getKey());
-                afterSessionDestroyed(entry.getValue());
-                it.remove();
-            }
-        }
+        sessionManager.expireSessions();
+    }
+
+    public SessionManager getSessionManager() {
+        return sessionManager;
     }
     
     private void afterSessionDestroyed(HttpSession session) {
@@ -393,6 +591,12 @@ public class ServletContext {
         for (ServletRequestListener listener : servletRequestListeners) {
             listener.requestDestroyed(servletRequestEvent);
         }
+        // 删除上传产生的临时文件
+        request.deleteParts();
+        HttpSession session = request.detachSession();
+        if (session != null) {
+            sessionManager.release(session);
+        }
     }
 
         public Object getAttribute(String key) {
@@ -1,12 +1,31 @@
 package com.nocoder.minitomcat.enumeration;
 
+import java.nio.charset.StandardCharsets;
+
 public enum HttpStatus {
-    OK(200),NOT_FOUND(404),INTERNAL_SERVER_ERROR(500),BAD_REQUEST(400),MOVED_TEMPORARILY(302);
+    OK(200, "OK"),NOT_FOUND(404, "Not Found"),INTERNAL_SERVER_ERROR(500, "Internal Server Error"),BAD_REQUEST(400, "Bad Request"),MOVED_TEMPORARILY(302, "Moved Temporarily"),PAYLOAD_TOO_LARGE(413, "Payload Too Large"),SWITCHING_PROTOCOLS(101, "Switching Protocols"),TOO_MANY_REQUESTS(429, "Too Many Requests"),SERVICE_UNAVAILABLE(503, "Service Unavailable");
     private int code;
-    HttpStatus(int code){
+    private String reason;
+    /**
+     * 预先编码好的状态行，比如 HTTP/1.1 200 OK CRLF
+     */
+    private byte[] statusLine;
+    HttpStatus(int code, String reason){
         this.code = code;
+        this.reason = reason;
+        this.statusLine = ("HTTP/1.1 " + code + " " + reason + "\r\n").getBytes(StandardCharsets.US_ASCII);
     }
     public int getCode(){
         return code;
     }
+    public String getReason() {
+        return reason;
+    }
+
+    /**
+     * 返回共享的数组，调用方不能修改
+     */
+    public byte[] getStatusLine() {
+        return statusLine;
+    }
 }
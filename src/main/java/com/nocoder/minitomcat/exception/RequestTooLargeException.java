@@ -0,0 +1,15 @@
+package com.nocoder.minitomcat.exception;
+
+
+import com.nocoder.minitomcat.enumeration.HttpStatus;
+import com.nocoder.minitomcat.exception.base.ServletException;
+
+/**
+ * 请求体或上传文件超出大小限制
+ */
+public class RequestTooLargeException extends ServletException {
+    private static final HttpStatus status = HttpStatus.PAYLOAD_TOO_LARGE;
+    public RequestTooLargeException() {
+        super(status);
+    }
+}
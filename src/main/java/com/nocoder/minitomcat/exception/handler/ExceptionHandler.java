@@ -18,6 +18,7 @@ import static com.nocoder.minitomcat.constant.ContextConstant.ERROR_PAGE;
 /**
  * 异常处理器
  * 会根据异常对应的HTTP Status设置response的状态以及相应的错误页面
+ * 响应已经提交时无法再修改状态码，只标记为中止，由连接器断开连接
  */
 @Slf4j
 public class ExceptionHandler {
@@ -28,6 +29,10 @@ public class ExceptionHandler {
             if (e instanceof RequestInvalidException) {
                 logger.info("请求无法读取，丢弃");
                 socketWrapper.close();
+            } else if (response.isCommitted()) {
+                logger.info("响应已提交后抛出异常:{}，中止响应", e.getClass().getName());
+                e.printStackTrace();
+                response.abort();
             } else {
                 logger.info("抛出异常:{}", e.getClass().getName());
                 e.printStackTrace();
@@ -0,0 +1,225 @@
+package com.nocoder.minitomcat.filter;
+
+import com.nocoder.minitomcat.enumeration.HttpStatus;
+import com.nocoder.minitomcat.request.Request;
+import com.nocoder.minitomcat.response.Header;
+import com.nocoder.minitomcat.response.Response;
+import com.nocoder.minitomcat.servlet.NonBlocking;
+import com.nocoder.minitomcat.util.PropertyUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * 令牌桶限流过滤器，按客户端地址（或指定的请求头）限流，可以再按请求路径区分
+ * 每个桶只有一个long：下一个令牌的理论到达时间（GCRA），取令牌时按当前时间惰性补充，一次CAS完成，不加锁；
+ * 桶放在ConcurrentHashMap中，key直接使用连接上缓存的InetAddress或者请求头的值，放行的请求不分配对象。
+ * 超过速率时返回429和Retry-After，不再执行后面的filter和servlet。
+ * 已经补满的桶和新建的桶等价，后台线程定期删除它们
+ * server.rate-limit.rate            每秒产生的令牌数，默认100
+ * server.rate-limit.burst           桶容量，默认等于rate
+ * server.rate-limit.key             remote-address（默认）或header:请求头名称，请求中没有该请求头时按客户端地址
+ * server.rate-limit.per-route       为true时每个请求路径分别限流，默认false
+ * server.rate-limit.evict-interval  删除空闲桶的间隔秒数，默认60
+ * 只做一次CAS，声明为NonBlocking，不会妨碍NIO连接器在Poller线程中直接执行请求
+ * 不同路径需要不同的速率时，可以继承本类并在无参构造器中传入另一个配置前缀，再用filter-mapping映射到对应的路径
+ * @author 29282
+ */
+@Slf4j
+public class RateLimitFilter implements Filter, NonBlocking {
+    private final Logger logger = LoggerFactory.getLogger(RateLimitFilter.class);
+
+    private static final byte[] BODY = "Too Many Requests".getBytes(StandardCharsets.UTF_8);
+    private static final String HEADER_KEY_PREFIX = "header:";
+    private static final Object UNKNOWN_CLIENT = new Object();
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    /**
+     * 预先创建1到60秒的Retry-After响应头
+     */
+    private static final Header[] RETRY_AFTER = new Header[61];
+
+    static {
+        for (int i = 1; i < RETRY_AFTER.length; i++) {
+            RETRY_AFTER[i] = new Header("Retry-After", String.valueOf(i));
+        }
+    }
+
+    private static final class Bucket {
+        private static final AtomicLongFieldUpdater<Bucket> TAT = AtomicLongFieldUpdater.newUpdater(Bucket.class, "tat");
+        /**
+         * 下一个令牌的理论到达时间（System.nanoTime），不晚于当前时间表示桶是满的
+         */
+        private volatile long tat;
+
+        Bucket(long now) {
+            this.tat = now;
+        }
+    }
+
+    private final String prefix;
+    /**
+     * 产生一个令牌的纳秒数
+     */
+    private long interval;
+    /**
+     * 桶容量对应的纳秒数
+     */
+    private long burstWindow;
+    private String keyHeader;
+    private boolean perRoute;
+    /**
+     * 不区分路径时使用的桶
+     */
+    private Map<Object, Bucket> buckets;
+    /**
+     * 请求路径 -> 该路径的桶
+     */
+    private Map<String, Map<Object, Bucket>> routes;
+    private ScheduledExecutorService evictor;
+
+    public RateLimitFilter() {
+        this("server.rate-limit");
+    }
+
+    /**
+     * @param prefix 配置前缀
+     */
+    protected RateLimitFilter(String prefix) {
+        this.prefix = prefix;
+    }
+
+    @Override
+    public void init() {
+        double rate = Double.parseDouble(PropertyUtil.getProperty(prefix + ".rate", "100"));
+        double burst = Double.parseDouble(PropertyUtil.getProperty(prefix + ".burst", String.valueOf(rate)));
+        if (rate <= 0 || burst < 1) {
+            throw new IllegalArgumentException(prefix + ".rate must be positive and " + prefix + ".burst at least 1");
+        }
+        this.interval = Math.max(1, (long) (NANOS_PER_SECOND / rate));
+        this.burstWindow = (long) (interval * burst);
+        String key = PropertyUtil.getProperty(prefix + ".key", "remote-address");
+        this.keyHeader = key.startsWith(HEADER_KEY_PREFIX) ? key.substring(HEADER_KEY_PREFIX.length()) : null;
+        this.perRoute = Boolean.parseBoolean(PropertyUtil.getProperty(prefix + ".per-route", "false"));
+        this.buckets = new ConcurrentHashMap<>();
+        this.routes = new ConcurrentHashMap<>();
+        long evictInterval = Long.parseLong(PropertyUtil.getProperty(prefix + ".evict-interval", "60"));
+        ThreadFactory threadFactory = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "RateLimitEvictor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        this.evictor = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        this.evictor.scheduleWithFixedDelay(this::evictIdleBuckets, evictInterval, evictInterval, TimeUnit.SECONDS);
+        logger.info("限流: 每秒{}个请求，桶容量{}，按{}{}", rate, burst, keyHeader == null ? "客户端地址" : keyHeader,
+                perRoute ? "和请求路径" : "");
+    }
+
+    @Override
+    public void doFilter(Request request, Response response, FilterChain filterChain) {
+        long now = System.nanoTime();
+        long wait = acquire(bucketOf(request, now), now);
+        if (wait <= 0) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+        long seconds = (wait + NANOS_PER_SECOND - 1) / NANOS_PER_SECOND;
+        response.setStatus(HttpStatus.TOO_MANY_REQUESTS);
+        response.setContentType("text/plain;charset=utf-8");
+        response.addHeader(seconds < RETRY_AFTER.length ? RETRY_AFTER[(int) seconds] : new Header("Retry-After", String.valueOf(seconds)));
+        response.setBody(BODY);
+        request.getRequestHandler().flushResponse();
+    }
+
+    @Override
+    public void destroy() {
+        if (evictor != null) {
+            evictor.shutdownNow();
+        }
+    }
+
+    /**
+     * 取一个令牌
+     * @return 0表示取到，否则为还需要等待的纳秒数
+     */
+    private long acquire(Bucket bucket, long now) {
+        while (true) {
+            long tat = bucket.tat;
+            // 理论到达时间早于当前时间时，桶已经补满
+            long next = (tat - now > 0 ? tat : now) + interval;
+            long wait = next - now - burstWindow;
+            if (wait > 0) {
+                return wait;
+            }
+            if (Bucket.TAT.compareAndSet(bucket, tat, next)) {
+                return 0;
+            }
+        }
+    }
+
+    private Bucket bucketOf(Request request, long now) {
+        Map<Object, Bucket> map = buckets;
+        if (perRoute) {
+            map = routes.get(request.getUrl());
+            if (map == null) {
+                map = new ConcurrentHashMap<>();
+                Map<Object, Bucket> existing = routes.putIfAbsent(request.getUrl(), map);
+                if (existing != null) {
+                    map = existing;
+                }
+            }
+        }
+        Object key = clientKey(request);
+        Bucket bucket = map.get(key);
+        if (bucket == null) {
+            bucket = new Bucket(now);
+            Bucket existing = map.putIfAbsent(key, bucket);
+            if (existing != null) {
+                bucket = existing;
+            }
+        }
+        return bucket;
+    }
+
+    private Object clientKey(Request request) {
+        if (keyHeader != null) {
+            String value = request.getHeader(keyHeader);
+            if (value != null) {
+                return value;
+            }
+        }
+        InetAddress address = request.getRemoteAddress();
+        return address == null ? UNKNOWN_CLIENT : address;
+    }
+
+    /**
+     * 删除已经补满的桶；删除时恰好有请求在使用该桶的话，这个请求的令牌不会被记录，最多多放行一个请求
+     */
+    private void evictIdleBuckets() {
+        long now = System.nanoTime();
+        int before = buckets.size();
+        buckets.values().removeIf(bucket -> bucket.tat - now <= 0);
+        int evicted = before - buckets.size();
+        for (Map<Object, Bucket> routeBuckets : routes.values()) {
+            before = routeBuckets.size();
+            routeBuckets.values().removeIf(bucket -> bucket.tat - now <= 0);
+            evicted += before - routeBuckets.size();
+        }
+        routes.values().removeIf(Map::isEmpty);
+        if (evicted > 0) {
+            logger.debug("删除了{}个空闲的限流桶", evicted);
+        }
+    }
+}
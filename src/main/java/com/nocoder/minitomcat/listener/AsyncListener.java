@@ -0,0 +1,22 @@
+package com.nocoder.minitomcat.listener;
+
+import com.nocoder.minitomcat.listener.event.AsyncEvent;
+
+import java.util.EventListener;
+
+/**
+ * 异步请求层面上的监听器，通过AsyncContext.addListener注册
+ */
+public interface AsyncListener extends EventListener {
+    /**
+     * 异步处理完成，响应即将写回
+     * @param event
+     */
+    void onComplete(AsyncEvent event);
+
+    /**
+     * 异步处理超时，监听器中可以写入响应并调用complete，否则容器会返回500
+     * @param event
+     */
+    void onTimeout(AsyncEvent event);
+}
@@ -0,0 +1,22 @@
+package com.nocoder.minitomcat.listener;
+
+import com.nocoder.minitomcat.listener.event.HttpSessionEvent;
+
+import java.util.EventListener;
+
+/**
+ * 由session属性值实现，session被钝化到磁盘前、从磁盘激活后回调
+ */
+public interface HttpSessionActivationListener extends EventListener {
+    /**
+     * session即将被钝化，属性值随后会被序列化并从堆中移除
+     * @param se
+     */
+    void sessionWillPassivate(HttpSessionEvent se);
+
+    /**
+     * session已经从磁盘激活，属性值是反序列化得到的新对象
+     * @param se
+     */
+    void sessionDidActivate(HttpSessionEvent se);
+}
@@ -0,0 +1,29 @@
+package com.nocoder.minitomcat.listener.event;
+
+import com.nocoder.minitomcat.request.AsyncContext;
+import com.nocoder.minitomcat.request.Request;
+import com.nocoder.minitomcat.response.Response;
+
+/**
+ * 异步请求相关的事件
+ */
+public class AsyncEvent extends java.util.EventObject {
+
+    private static final long serialVersionUID = 4372658812409217548L;
+
+    public AsyncEvent(AsyncContext asyncContext) {
+        super(asyncContext);
+    }
+
+    public AsyncContext getAsyncContext() {
+        return (AsyncContext) super.getSource();
+    }
+
+    public Request getRequest() {
+        return getAsyncContext().getRequest();
+    }
+
+    public Response getResponse() {
+        return getAsyncContext().getResponse();
+    }
+}
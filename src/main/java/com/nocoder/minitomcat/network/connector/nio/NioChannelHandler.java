@@ -0,0 +1,27 @@
+package com.nocoder.minitomcat.network.connector.nio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 切换了协议的连接（事件流、WebSocket）不再分发给worker读取HTTP请求，
+ * 读写事件都由所在的NioPoller线程交给这里处理
+ * @author 29282
+ */
+public interface NioChannelHandler {
+    /**
+     * 写出排队的数据，由Poller线程在scheduleWrite之后或者可写时调用
+     */
+    void flush();
+
+    /**
+     * 读就绪，readBuffer是Poller共享的读缓冲
+     * @param readBuffer
+     */
+    void onReadable(ByteBuffer readBuffer);
+
+    /**
+     * 由IdleConnectionCleaner定期调用，处理心跳和超时
+     * @param now
+     */
+    void checkIdle(long now);
+}
@@ -0,0 +1,229 @@
+package com.nocoder.minitomcat.network.connector.nio;
+
+import com.nocoder.minitomcat.constant.NetWorkConstant;
+import com.nocoder.minitomcat.network.wrapper.nio.NioSocketWrapper;
+import com.nocoder.minitomcat.response.sse.EventStream;
+import com.nocoder.minitomcat.response.sse.SseEvent;
+import com.nocoder.minitomcat.util.PropertyUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * NIO连接上的事件流
+ * 应用线程只把事件放入待发送队列，由连接所在的NioPoller线程非阻塞地写出：
+ * 每次把队列中所有事件合成一个chunk写出，写不完时关注OP_WRITE，可写后继续。
+ * 慢客户端的队列会积压，带key的事件会替换同一key尚未发出的旧事件，积压超过上限时关闭连接。
+ * 心跳和写超时由IdleConnectionCleaner在检测keep-alive超时时顺带处理
+ * server.sse.heartbeat          心跳间隔毫秒数，默认15000
+ * server.sse.max-pending-bytes  每个连接待发送数据的上限，默认1MB
+ * @author 29282
+ */
+@Slf4j
+public class NioEventStream implements EventStream, NioChannelHandler {
+    private final Logger logger = LoggerFactory.getLogger(NioEventStream.class);
+
+    private static final long HEARTBEAT_INTERVAL = Long.parseLong(PropertyUtil.getProperty("server.sse.heartbeat", "15000"));
+    private static final int MAX_PENDING_BYTES = Integer.parseInt(PropertyUtil.getProperty("server.sse.max-pending-bytes", String.valueOf(1024 * 1024)));
+    private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+
+    private final NioSocketWrapper wrapper;
+    /**
+     * 待发送的事件，不合并的事件使用一个新的Object作为key；访问时对this加锁
+     */
+    private final LinkedHashMap<Object, byte[]> pending;
+    private int pendingBytes;
+    /**
+     * 正在写出的chunk，只在Poller线程中访问
+     */
+    private ByteBuffer outbound;
+    /**
+     * 是否已经在Poller的待写队列中
+     */
+    private final AtomicBoolean scheduled;
+    private volatile boolean open;
+    private volatile boolean closeRequested;
+    /**
+     * 最后一次写出数据的时间，用于心跳和写超时
+     */
+    private volatile long lastWrite;
+
+    public NioEventStream(NioSocketWrapper wrapper) {
+        this.wrapper = wrapper;
+        this.pending = new LinkedHashMap<>();
+        this.scheduled = new AtomicBoolean();
+        this.open = true;
+        this.lastWrite = System.currentTimeMillis();
+    }
+
+    @Override
+    public boolean send(SseEvent event) {
+        if (!open || closeRequested) {
+            return false;
+        }
+        synchronized (this) {
+            Object key = event.getKey() != null ? event.getKey() : new Object();
+            byte[] old = pending.put(key, event.getBytes());
+            if (old != null) {
+                pendingBytes -= old.length;
+            }
+            pendingBytes += event.getBytes().length;
+            if (pendingBytes > MAX_PENDING_BYTES) {
+                logger.info("{} 待发送数据超过{}字节，关闭慢客户端", wrapper, MAX_PENDING_BYTES);
+                pending.clear();
+                pendingBytes = 0;
+                closeNow();
+                return false;
+            }
+        }
+        schedule();
+        return true;
+    }
+
+    @Override
+    public void close() {
+        closeRequested = true;
+        schedule();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            wrapper.getNioPoller().scheduleWrite(this);
+        }
+    }
+
+    /**
+     * 写出待发送的数据，只在Poller线程中调用
+     */
+    @Override
+    public void flush() {
+        scheduled.set(false);
+        if (!open) {
+            return;
+        }
+        try {
+            while (true) {
+                if (outbound == null || !outbound.hasRemaining()) {
+                    outbound = nextChunk();
+                    if (outbound == null) {
+                        break;
+                    }
+                }
+                wrapper.getSocketChannel().write(outbound);
+                if (outbound.hasRemaining()) {
+                    // 写缓冲已满，等待可写
+                    interest(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                lastWrite = System.currentTimeMillis();
+            }
+            interest(SelectionKey.OP_READ);
+            if (closeRequested) {
+                wrapper.getSocketChannel().write(ByteBuffer.wrap(LAST_CHUNK));
+                closeNow();
+            }
+        } catch (IOException e) {
+            logger.info("{} 写入事件失败，关闭连接", wrapper);
+            closeNow();
+        }
+    }
+
+    /**
+     * 把当前队列中的所有事件合成一个chunk
+     */
+    private ByteBuffer nextChunk() {
+        byte[][] events;
+        int length;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return null;
+            }
+            events = pending.values().toArray(new byte[0][]);
+            length = pendingBytes;
+            pending.clear();
+            pendingBytes = 0;
+        }
+        byte[] size = (Integer.toHexString(length) + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer chunk = ByteBuffer.allocate(size.length + length + 2);
+        chunk.put(size);
+        for (byte[] event : events) {
+            chunk.put(event);
+        }
+        chunk.put((byte) '\r').put((byte) '\n');
+        chunk.flip();
+        return chunk;
+    }
+
+    /**
+     * 客户端在事件流上发送的数据全部丢弃，读到-1说明客户端已经断开
+     */
+    @Override
+    public void onReadable(ByteBuffer readBuffer) {
+        try {
+            int len;
+            do {
+                readBuffer.clear();
+                len = wrapper.getSocketChannel().read(readBuffer);
+            } while (len > 0);
+            if (len < 0) {
+                logger.info("{} 客户端关闭了事件流", wrapper);
+                closeNow();
+            }
+        } catch (IOException e) {
+            closeNow();
+        }
+    }
+
+    /**
+     * 由IdleConnectionCleaner定期调用：长时间没有写出数据时发送心跳，
+     * 有数据积压且超过写超时仍没有进展时关闭连接
+     */
+    @Override
+    public void checkIdle(long now) {
+        if (!open) {
+            return;
+        }
+        boolean stalled;
+        synchronized (this) {
+            stalled = pendingBytes > 0;
+        }
+        ByteBuffer current = outbound;
+        stalled = stalled || (current != null && current.hasRemaining());
+        if (stalled) {
+            if (now - lastWrite > NetWorkConstant.WRITE_TIMEOUT) {
+                logger.info("{} 写超时，关闭事件流", wrapper);
+                closeNow();
+            }
+        } else if (now - lastWrite > HEARTBEAT_INTERVAL) {
+            send(SseEvent.HEARTBEAT);
+        }
+    }
+
+    private void interest(int ops) {
+        SelectionKey key = wrapper.getSocketChannel().keyFor(wrapper.getNioPoller().getSelector());
+        if (key != null && key.isValid()) {
+            key.interestOps(ops);
+        }
+    }
+
+    private void closeNow() {
+        open = false;
+        try {
+            wrapper.close();
+        } catch (IOException e) {
+            logger.error("关闭连接失败", e);
+        }
+    }
+}
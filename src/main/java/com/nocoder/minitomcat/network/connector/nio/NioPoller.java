@@ -8,12 +8,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.*;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  *
@@ -35,6 +37,19 @@ public class NioPoller implements Runnable {
     @Getter
     private final String pollerName;
     private final Map<SocketChannel, NioSocketWrapper> sockets;
+    /**
+     * 读缓冲，请求读取只在Poller线程中进行，所以同一个Poller上的连接共用一个缓冲
+     */
+    @Getter
+    private final ByteBuffer readBuffer;
+    /**
+     * 有数据待写出的事件流/WebSocket连接，由应用线程放入，Poller线程每轮select后批量写出
+     */
+    private final Queue<NioChannelHandler> pendingWrites;
+    /**
+     * 本轮select是否已经被唤醒过，避免广播时每个连接都调用一次wakeup
+     */
+    private final AtomicBoolean wakeupPending;
     
     public NioPoller(NioEndpoint nioEndpoint, String pollerName) throws IOException {
         this.sockets = new ConcurrentHashMap<>();
@@ -42,6 +57,9 @@ public class NioPoller implements Runnable {
         this.selector = Selector.open();
         this.events = new ConcurrentLinkedQueue<>();
         this.pollerName = pollerName;
+        this.readBuffer = ByteBuffer.allocate(8192);
+        this.pendingWrites = new ConcurrentLinkedQueue<>();
+        this.wakeupPending = new AtomicBoolean();
     }
 
     /**
@@ -68,6 +86,16 @@ public class NioPoller implements Runnable {
         selector.wakeup();
     }
 
+    /**
+     * 事件流/WebSocket连接有新数据，交给Poller线程写出
+     */
+    public void scheduleWrite(NioChannelHandler handler) {
+        pendingWrites.offer(handler);
+        if (wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
     public void close() throws IOException {
         for (NioSocketWrapper wrapper : sockets.values()) {
             wrapper.close();
@@ -83,6 +111,8 @@ public class NioPoller implements Runnable {
             try {
                 // 注册读事件
                 events();
+                wakeupPending.set(false);
+                flushPendingWrites();
                 if (selector.select() <= 0) {
                     continue;
                 }
@@ -90,6 +120,18 @@ public class NioPoller implements Runnable {
                 //获取当前选择器中所有注册的监听事件
                 for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext(); ) {
                     SelectionKey key = it.next();
+                    it.remove();
+                    NioChannelHandler channelHandler = key.attachment() == null ? null : ((NioSocketWrapper) key.attachment()).getChannelHandler();
+                    if (channelHandler != null) {
+                        // 切换了协议的连接不会再分发给worker，读写都在Poller线程中处理
+                        if (key.isValid() && key.isWritable()) {
+                            channelHandler.flush();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            channelHandler.onReadable(readBuffer);
+                        }
+                        continue;
+                    }
                     //开始监听
                     if (key.isReadable()) {
                         //如果"读取"事件已就绪
@@ -97,11 +139,12 @@ public class NioPoller implements Runnable {
                         logger.info("serverSocket读已就绪,准备读");
                         NioSocketWrapper attachment = (NioSocketWrapper) key.attachment();
                         if (attachment != null) {
+                            // 处理期间不再关注读事件，直到register重新注册，
+                            // 避免同一连接上的下一段数据在请求处理完之前被读取（request/response会被复用）
+                            key.interestOps(0);
                             processSocket(attachment);
                         }
                     }
-                    //处理完毕后，需要取消当前的选择键
-                    it.remove();
                 }
             } catch (IOException e) {
                logger.error("selector发生io错误", e);
@@ -116,6 +159,13 @@ public class NioPoller implements Runnable {
         nioEndpoint.execute(attachment);
     }
 
+    private void flushPendingWrites() {
+        NioChannelHandler handler;
+        for (int i = 0, size = pendingWrites.size(); i < size && (handler = pendingWrites.poll()) != null; i++) {
+            handler.flush();
+        }
+    }
+
     private void events() {
         logger.info("Queue大小为{},清空Queue,将连接到的Socket注册到selector中", events.size());
         PollerEvent pollerEvent;
@@ -134,6 +184,11 @@ public class NioPoller implements Runnable {
                 it.remove();
                 continue;
             }
+            if (wrapper.getChannelHandler() != null) {
+                // 事件流/WebSocket不受keep-alive超时限制，由它们自己处理心跳和超时
+                wrapper.getChannelHandler().checkIdle(System.currentTimeMillis());
+                continue;
+            }
             if (wrapper.isWorking()) {
                 logger.info("该socket正在工作中，不予关闭");
                 continue;
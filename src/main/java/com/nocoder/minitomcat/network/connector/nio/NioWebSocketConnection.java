@@ -0,0 +1,410 @@
+package com.nocoder.minitomcat.network.connector.nio;
+
+import com.nocoder.minitomcat.constant.NetWorkConstant;
+import com.nocoder.minitomcat.network.wrapper.nio.NioSocketWrapper;
+import com.nocoder.minitomcat.util.PropertyUtil;
+import com.nocoder.minitomcat.util.UUIDUtil;
+import com.nocoder.minitomcat.websocket.FrameDecoder;
+import com.nocoder.minitomcat.websocket.WebSocketEndpoint;
+import com.nocoder.minitomcat.websocket.WebSocketException;
+import com.nocoder.minitomcat.websocket.WebSocketFrame;
+import com.nocoder.minitomcat.websocket.WebSocketSession;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.nocoder.minitomcat.constant.CharsetProperties.UTF_8_CHARSET;
+
+/**
+ * NIO连接上的WebSocket会话
+ * 1、读：Poller线程读取数据并解码帧，ping/close等控制帧直接在Poller线程中处理，
+ *    合并分片后的完整消息交给worker线程池，同一连接上的回调串行执行，保证消息顺序
+ * 2、写：send只把编码好的帧放入写队列并通知Poller，由Poller线程聚集写出，写不完时关注OP_WRITE；
+ *    队列中的字节数超过上限时send返回false，作为对应用的背压
+ * 3、空闲：由IdleConnectionCleaner检测读空闲和写超时
+ * server.websocket.max-message-size  单条消息（合并分片后）的最大字节数，默认1MB
+ * server.websocket.max-pending-bytes 写队列的最大字节数，默认1MB
+ * server.websocket.idle-timeout      读空闲超时毫秒数，默认300000，小于等于0表示不检测
+ * @author 29282
+ */
+@Slf4j
+public class NioWebSocketConnection implements WebSocketSession, NioChannelHandler, FrameDecoder.FrameListener {
+    private final Logger logger = LoggerFactory.getLogger(NioWebSocketConnection.class);
+
+    private static final int MAX_MESSAGE_SIZE = Integer.parseInt(PropertyUtil.getProperty("server.websocket.max-message-size", String.valueOf(1024 * 1024)));
+    private static final long MAX_PENDING_BYTES = Long.parseLong(PropertyUtil.getProperty("server.websocket.max-pending-bytes", String.valueOf(1024 * 1024)));
+    private static final long IDLE_TIMEOUT = Long.parseLong(PropertyUtil.getProperty("server.websocket.idle-timeout", "300000"));
+    /**
+     * 一次聚集写最多的帧数
+     */
+    private static final int MAX_GATHER = 16;
+
+    private final String id;
+    private final NioSocketWrapper wrapper;
+    private final WebSocketEndpoint endpoint;
+    private final Executor executor;
+    private final Map<String, Object> attributes;
+    private final FrameDecoder decoder;
+
+    /**
+     * 分片消息，只在Poller线程中访问
+     */
+    private ByteArrayOutputStream fragments;
+    private int fragmentOpcode;
+
+    private final Queue<ByteBuffer> outbound;
+    private final AtomicLong pendingBytes;
+    private final AtomicBoolean scheduled;
+    private volatile boolean open;
+    /**
+     * 已发送关闭帧，写完后关闭连接
+     */
+    private volatile boolean closeSent;
+    /**
+     * 已入队的关闭帧，Poller写完这个帧之后才关闭连接
+     */
+    private volatile ByteBuffer closeFrame;
+    private volatile long lastRead;
+    private volatile long lastWrite;
+
+    /**
+     * 待执行的应用回调，同一时刻只有一个worker在执行
+     */
+    private final Queue<Runnable> callbacks;
+    private final AtomicBoolean running;
+    private final AtomicBoolean closeNotified;
+
+    public NioWebSocketConnection(NioSocketWrapper wrapper, WebSocketEndpoint endpoint, Executor executor) {
+        this.id = UUIDUtil.uuid();
+        this.wrapper = wrapper;
+        this.endpoint = endpoint;
+        this.executor = executor;
+        this.attributes = new ConcurrentHashMap<>();
+        this.decoder = new FrameDecoder(MAX_MESSAGE_SIZE);
+        this.outbound = new ConcurrentLinkedQueue<>();
+        this.pendingBytes = new AtomicLong();
+        this.scheduled = new AtomicBoolean();
+        this.callbacks = new ConcurrentLinkedQueue<>();
+        this.running = new AtomicBoolean();
+        this.closeNotified = new AtomicBoolean();
+        this.open = true;
+        this.lastRead = System.currentTimeMillis();
+        this.lastWrite = this.lastRead;
+    }
+
+    /**
+     * 握手完成，回调onOpen；在注册到Poller之前调用，保证onOpen先于任何消息回调
+     */
+    public void start() {
+        dispatch(() -> endpoint.onOpen(this));
+    }
+
+    /*------------------------------ WebSocketSession ------------------------------*/
+
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public boolean sendText(String message) {
+        return send(WebSocketFrame.encode(WebSocketFrame.OPCODE_TEXT, message.getBytes(UTF_8_CHARSET)), true);
+    }
+
+    @Override
+    public boolean sendBinary(byte[] message) {
+        return send(WebSocketFrame.encode(WebSocketFrame.OPCODE_BINARY, message), true);
+    }
+
+    @Override
+    public long getBufferedAmount() {
+        return pendingBytes.get();
+    }
+
+    @Override
+    public void close() {
+        close(WebSocketFrame.NORMAL_CLOSURE, null);
+    }
+
+    @Override
+    public void close(int code, String reason) {
+        if (!open || closeSent) {
+            return;
+        }
+        ByteBuffer frame = WebSocketFrame.encodeClose(code, reason);
+        closeFrame = frame;
+        closeSent = true;
+        enqueue(frame);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open && !closeSent;
+    }
+
+    @Override
+    public Map<String, Object> getAttributes() {
+        return attributes;
+    }
+
+    /**
+     * @param limited 数据帧受写队列上限约束，控制帧不受约束
+     */
+    private boolean send(ByteBuffer frame, boolean limited) {
+        if (!open || closeSent) {
+            return false;
+        }
+        if (limited && pendingBytes.get() + frame.remaining() > MAX_PENDING_BYTES) {
+            return false;
+        }
+        enqueue(frame);
+        return true;
+    }
+
+    private void enqueue(ByteBuffer frame) {
+        pendingBytes.addAndGet(frame.remaining());
+        outbound.offer(frame);
+        if (scheduled.compareAndSet(false, true)) {
+            wrapper.getNioPoller().scheduleWrite(this);
+        }
+    }
+
+    /*------------------------------ Poller线程 ------------------------------*/
+
+    @Override
+    public void flush() {
+        scheduled.set(false);
+        if (!open) {
+            return;
+        }
+        ByteBuffer[] batch = new ByteBuffer[MAX_GATHER];
+        // 不能只看closeSent：close置位后、关闭帧入队前队列可能是空的，这时关闭连接关闭帧就发不出去了
+        boolean closeWritten = false;
+        try {
+            while (!outbound.isEmpty()) {
+                int count = 0;
+                for (Iterator<ByteBuffer> it = outbound.iterator(); it.hasNext() && count < MAX_GATHER; ) {
+                    batch[count++] = it.next();
+                }
+                wrapper.getSocketChannel().write(batch, 0, count);
+                for (int i = 0; i < count && !batch[i].hasRemaining(); i++) {
+                    outbound.poll();
+                    pendingBytes.addAndGet(-batch[i].limit());
+                    if (batch[i] == closeFrame) {
+                        closeWritten = true;
+                    }
+                }
+                if (closeWritten) {
+                    // 关闭帧之后不再发送任何数据
+                    break;
+                }
+                if (batch[count - 1].hasRemaining()) {
+                    // 写缓冲已满，等待可写
+                    interest(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                lastWrite = System.currentTimeMillis();
+            }
+            if (closeWritten) {
+                closeNow(WebSocketFrame.NORMAL_CLOSURE, null);
+                return;
+            }
+            interest(SelectionKey.OP_READ);
+        } catch (IOException e) {
+            logger.info("{} 写入WebSocket帧失败，关闭连接", wrapper);
+            closeNow(WebSocketFrame.ABNORMAL_CLOSURE, null);
+        }
+    }
+
+    @Override
+    public void onReadable(ByteBuffer readBuffer) {
+        try {
+            int len;
+            while ((len = readBuffer(readBuffer)) > 0) {
+                lastRead = System.currentTimeMillis();
+                readBuffer.flip();
+                decoder.feed(readBuffer, this);
+                if (!open) {
+                    return;
+                }
+            }
+            if (len < 0) {
+                logger.info("{} 客户端断开WebSocket连接", wrapper);
+                closeNow(WebSocketFrame.ABNORMAL_CLOSURE, null);
+            }
+        } catch (WebSocketException e) {
+            logger.info("{} WebSocket协议错误: {}", wrapper, e.getMessage());
+            close(e.getCloseCode(), e.getMessage());
+        } catch (IOException e) {
+            closeNow(WebSocketFrame.ABNORMAL_CLOSURE, null);
+        }
+    }
+
+    private int readBuffer(ByteBuffer readBuffer) throws IOException {
+        readBuffer.clear();
+        return wrapper.getSocketChannel().read(readBuffer);
+    }
+
+    @Override
+    public void onFrame(boolean fin, int opcode, byte[] payload) throws WebSocketException {
+        switch (opcode) {
+            case WebSocketFrame.OPCODE_TEXT:
+            case WebSocketFrame.OPCODE_BINARY:
+                if (fragments != null) {
+                    throw new WebSocketException(WebSocketFrame.PROTOCOL_ERROR, "expected continuation frame");
+                }
+                if (fin) {
+                    deliver(opcode, payload);
+                } else {
+                    fragments = new ByteArrayOutputStream(payload.length * 2);
+                    fragments.write(payload, 0, payload.length);
+                    fragmentOpcode = opcode;
+                }
+                break;
+            case WebSocketFrame.OPCODE_CONTINUATION:
+                if (fragments == null) {
+                    throw new WebSocketException(WebSocketFrame.PROTOCOL_ERROR, "unexpected continuation frame");
+                }
+                if (fragments.size() + payload.length > MAX_MESSAGE_SIZE) {
+                    throw new WebSocketException(WebSocketFrame.MESSAGE_TOO_BIG, "message too large");
+                }
+                fragments.write(payload, 0, payload.length);
+                if (fin) {
+                    byte[] message = fragments.toByteArray();
+                    fragments = null;
+                    deliver(fragmentOpcode, message);
+                }
+                break;
+            case WebSocketFrame.OPCODE_PING:
+                send(WebSocketFrame.encode(WebSocketFrame.OPCODE_PONG, payload), false);
+                break;
+            case WebSocketFrame.OPCODE_CLOSE:
+                onCloseFrame(payload);
+                break;
+            case WebSocketFrame.OPCODE_PONG:
+            default:
+                break;
+        }
+    }
+
+    private void deliver(int opcode, byte[] message) throws WebSocketException {
+        if (opcode == WebSocketFrame.OPCODE_TEXT) {
+            String text = decodeText(message);
+            dispatch(() -> endpoint.onText(this, text));
+        } else {
+            dispatch(() -> endpoint.onBinary(this, message));
+        }
+    }
+
+    private static String decodeText(byte[] message) throws WebSocketException {
+        try {
+            CharBuffer chars = UTF_8_CHARSET.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .decode(ByteBuffer.wrap(message));
+            return chars.toString();
+        } catch (CharacterCodingException e) {
+            throw new WebSocketException(WebSocketFrame.INVALID_PAYLOAD, "invalid UTF-8");
+        }
+    }
+
+    /**
+     * 对方发起关闭：回复关闭帧，写完后关闭连接
+     */
+    private void onCloseFrame(byte[] payload) {
+        int code = WebSocketFrame.NO_STATUS;
+        String reason = null;
+        if (payload.length >= 2) {
+            code = ((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF);
+            reason = new String(payload, 2, payload.length - 2, UTF_8_CHARSET);
+        }
+        notifyClose(code, reason);
+        close(code == WebSocketFrame.NO_STATUS ? WebSocketFrame.NORMAL_CLOSURE : code, null);
+    }
+
+    @Override
+    public void checkIdle(long now) {
+        if (!open) {
+            return;
+        }
+        if (!outbound.isEmpty() && now - lastWrite > NetWorkConstant.WRITE_TIMEOUT) {
+            logger.info("{} WebSocket写超时，关闭连接", wrapper);
+            closeNow(WebSocketFrame.ABNORMAL_CLOSURE, null);
+        } else if (IDLE_TIMEOUT > 0 && now - lastRead > IDLE_TIMEOUT) {
+            logger.info("{} WebSocket读空闲超时", wrapper);
+            close(WebSocketFrame.GOING_AWAY, "idle timeout");
+        }
+    }
+
+    /*------------------------------ 内部 ------------------------------*/
+
+    private void interest(int ops) {
+        SelectionKey key = wrapper.getSocketChannel().keyFor(wrapper.getNioPoller().getSelector());
+        if (key != null && key.isValid()) {
+            key.interestOps(ops);
+        }
+    }
+
+    private void closeNow(int code, String reason) {
+        open = false;
+        outbound.clear();
+        pendingBytes.set(0);
+        try {
+            wrapper.close();
+        } catch (IOException e) {
+            logger.error("关闭连接失败", e);
+        }
+        notifyClose(code, reason);
+    }
+
+    private void notifyClose(int code, String reason) {
+        if (closeNotified.compareAndSet(false, true)) {
+            dispatch(() -> endpoint.onClose(this, code, reason));
+        }
+    }
+
+    /**
+     * 把应用回调交给worker线程池，同一连接上的回调按提交顺序串行执行
+     */
+    private void dispatch(Runnable callback) {
+        callbacks.offer(callback);
+        if (running.compareAndSet(false, true)) {
+            executor.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        do {
+            Runnable callback;
+            while ((callback = callbacks.poll()) != null) {
+                try {
+                    callback.run();
+                } catch (Throwable e) {
+                    logger.error("WebSocket回调异常", e);
+                    try {
+                        endpoint.onError(this, e);
+                    } catch (Throwable ignored) {
+                        // onError本身抛出的异常不再处理
+                    }
+                }
+            }
+            running.set(false);
+        } while (!callbacks.isEmpty() && running.compareAndSet(false, true));
+    }
+}
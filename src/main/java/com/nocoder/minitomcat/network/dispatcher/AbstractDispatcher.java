@@ -3,13 +3,18 @@ package com.nocoder.minitomcat.network.dispatcher;
 import com.nocoder.minitomcat.context.ServletContext;
 import com.nocoder.minitomcat.context.WebApplication;
 import com.nocoder.minitomcat.exception.handler.ExceptionHandler;
+import com.nocoder.minitomcat.network.handler.AbstractRequestHandler;
 import com.nocoder.minitomcat.network.wrapper.SocketWrapper;
 import com.nocoder.minitomcat.resource.ResourceHandler;
+import com.nocoder.minitomcat.servlet.impl.DefaultServlet;
+import com.nocoder.minitomcat.util.PropertyUtil;
 
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import org.springframework.util.AntPathMatcher;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 
 /**
  * 
@@ -19,28 +24,103 @@ import java.util.concurrent.TimeUnit;
 public abstract class AbstractDispatcher {
     protected ResourceHandler resourceHandler;
     protected ExceptionHandler exceptionHandler;
-    protected ThreadPoolExecutor pool;
+    /**
+     * worker线程池，类型由server.worker.executor决定，见WorkerExecutors
+     */
+    protected ExecutorService pool;
     protected ServletContext servletContext;
+    protected AsyncTimeoutChecker asyncTimeoutChecker;
+    /**
+     * 自适应并发限制，server.concurrency-limit.enabled为false时为null
+     */
+    protected AdaptiveConcurrencyLimiter concurrencyLimiter;
+    /**
+     * server.scheduler.bulk-patterns配置的批处理请求路径，逗号分隔
+     */
+    private final List<String> bulkPatterns;
+    private final AntPathMatcher matcher;
     
     public AbstractDispatcher() {
         this.servletContext = WebApplication.getServletContext();
         this.exceptionHandler = new ExceptionHandler();
         this.resourceHandler = new ResourceHandler(exceptionHandler);
-        ThreadFactory threadFactory = new ThreadFactory() {
-            private int count;
+        this.pool = WorkerExecutors.create();
+        this.asyncTimeoutChecker = new AsyncTimeoutChecker(pool);
+        this.asyncTimeoutChecker.start();
+        this.bulkPatterns = new ArrayList<>();
+        for (String pattern : PropertyUtil.getProperty("server.scheduler.bulk-patterns", "").split(",")) {
+            if (!pattern.trim().isEmpty()) {
+                bulkPatterns.add(pattern.trim());
+            }
+        }
+        this.matcher = new AntPathMatcher();
+        if (Boolean.parseBoolean(PropertyUtil.getProperty("server.concurrency-limit.enabled", "false"))) {
+            this.concurrencyLimiter = new AdaptiveConcurrencyLimiter(pool);
+        }
+    }
 
-            @Override
-            public Thread newThread(Runnable r) {
-                return new Thread(r, "Worker Pool-" + count++);
+    /**
+     * 把读取完毕的请求交给worker线程池
+     * 映射到隔离舱的请求由隔离舱限制并发，不再经过并发限制器；其余请求开启了并发限制时先经过限制器
+     * @param handler
+     */
+    protected void execute(AbstractRequestHandler handler) {
+        handler.setRequestClass(classify(handler));
+        Bulkhead bulkhead = servletContext.mapBulkhead(handler.getRequest().getUrl());
+        if (bulkhead != null) {
+            bulkhead.execute(handler, pool);
+        } else if (concurrencyLimiter != null) {
+            concurrencyLimiter.execute(handler);
+        } else {
+            pool.execute(handler);
+        }
+    }
+
+    /**
+     * 路由之后给请求分类：DefaultServlet处理的是静态资源，匹配bulk-patterns的是批处理请求
+     * @param handler
+     * @return
+     */
+    protected RequestClass classify(AbstractRequestHandler handler) {
+        if (handler.getServlet() instanceof DefaultServlet) {
+            return RequestClass.STATIC;
+        }
+        String url = handler.getRequest().getUrl();
+        for (int i = 0; i < bulkPatterns.size(); i++) {
+            if (matcher.match(bulkPatterns.get(i), url)) {
+                return RequestClass.BULK;
             }
-        };
-        this.pool = new ThreadPoolExecutor(100, 100, 1, TimeUnit.SECONDS, new ArrayBlockingQueue<>(200), threadFactory, new ThreadPoolExecutor.CallerRunsPolicy());
+        }
+        return RequestClass.API;
+    }
+
+    /**
+     * @return 没有开启并发限制时返回null
+     */
+    public AdaptiveConcurrencyLimiter getConcurrencyLimiter() {
+        return concurrencyLimiter;
     }
     
+    /**
+     * worker线程池，切换了协议的连接（WebSocket）用它执行应用回调
+     */
+    public Executor getExecutor() {
+        return pool;
+    }
+
+    /**
+     * worker线程池，可以从中读取线程数、排队时间等指标
+     * @return server.worker.executor不是threadpool时返回null
+     */
+    public WorkerPool getWorkerPool() {
+        return pool instanceof WorkerPool ? (WorkerPool) pool : null;
+    }
+
     /**
      * 关闭
      */
     public void shutdown() {
+        asyncTimeoutChecker.shutdown();
         pool.shutdown();
         servletContext.destroy();
     }
@@ -0,0 +1,288 @@
+package com.nocoder.minitomcat.network.dispatcher;
+
+import com.nocoder.minitomcat.network.handler.AbstractRequestHandler;
+import com.nocoder.minitomcat.util.PropertyUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 自适应并发限制，放在Dispatcher和worker线程池之间
+ * 每个请求从交给worker线程池到执行完毕的耗时作为样本，不包括在本限制器队列中的等待，
+ * 否则排队越久样本越大、limit越小，排队又会更久；进入异步模式的请求在worker线程返回时就释放名额，不作为样本。
+ * 按梯度算法调整允许同时处理的请求数：
+ * 每个采样窗口取平均耗时short，与长期平均耗时long比较，
+ * gradient = clamp(tolerance * long / short, 0.5, 1)，newLimit = limit * gradient + sqrt(limit)，
+ * 耗时没有变长时limit按sqrt(limit)增长，排队使耗时变长时limit按比例收缩；
+ * 正在处理的请求不到limit的一半时说明负载不高，不再增长。
+ * 超过limit的请求进入一个有界队列，最多等待max-queue-time，队列满或等待超时的请求直接返回503
+ * server.concurrency-limit.enabled         是否开启，默认false
+ * server.concurrency-limit.initial         初始limit，默认20
+ * server.concurrency-limit.min             最小limit，默认4
+ * server.concurrency-limit.max             最大limit，默认200
+ * server.concurrency-limit.queue-size      等待队列长度，默认100
+ * server.concurrency-limit.max-queue-time  最长等待毫秒数，默认50
+ * server.concurrency-limit.tolerance       可以容忍的耗时增长倍数，默认1.5
+ * @author 29282
+ */
+@Slf4j
+public class AdaptiveConcurrencyLimiter {
+    private final Logger logger = LoggerFactory.getLogger(AdaptiveConcurrencyLimiter.class);
+
+    /**
+     * 采样窗口的最短时间和最少样本数
+     */
+    private static final long WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final int WINDOW_SAMPLES = 10;
+    /**
+     * 长期平均耗时的平滑系数，约等于最近600个窗口的平均
+     */
+    private static final double LONG_RTT_FACTOR = 2.0 / 601;
+    /**
+     * 新limit的平滑系数
+     */
+    private static final double SMOOTHING = 0.2;
+
+    private static class Pending {
+        final AbstractRequestHandler handler;
+        final long enqueuedAt;
+
+        Pending(AbstractRequestHandler handler, long enqueuedAt) {
+            this.handler = handler;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+
+    private final Executor executor;
+    private final int minLimit;
+    private final int maxLimit;
+    private final int queueSize;
+    private final long maxQueueNanos;
+    private final double tolerance;
+
+    private volatile double limit;
+    private final AtomicInteger inflight;
+    private final Queue<Pending> queue;
+    private final AtomicInteger queued;
+
+    private final LongAdder windowRtt;
+    private final LongAdder windowCount;
+    private volatile long windowStart;
+    private final ReentrantLock windowLock;
+    /**
+     * 长期平均耗时，只在持有windowLock时修改
+     */
+    private double longRtt;
+
+    private final LongAdder accepted;
+    private final LongAdder dropped;
+
+    public AdaptiveConcurrencyLimiter(Executor executor) {
+        this(executor,
+                Integer.parseInt(PropertyUtil.getProperty("server.concurrency-limit.initial", "20")),
+                Integer.parseInt(PropertyUtil.getProperty("server.concurrency-limit.min", "4")),
+                Integer.parseInt(PropertyUtil.getProperty("server.concurrency-limit.max", "200")),
+                Integer.parseInt(PropertyUtil.getProperty("server.concurrency-limit.queue-size", "100")),
+                Long.parseLong(PropertyUtil.getProperty("server.concurrency-limit.max-queue-time", "50")),
+                Double.parseDouble(PropertyUtil.getProperty("server.concurrency-limit.tolerance", "1.5")));
+    }
+
+    public AdaptiveConcurrencyLimiter(Executor executor, int initialLimit, int minLimit, int maxLimit,
+                                      int queueSize, long maxQueueMillis, double tolerance) {
+        if (minLimit < 1 || maxLimit < minLimit || tolerance < 1) {
+            throw new IllegalArgumentException("invalid concurrency limit settings");
+        }
+        this.executor = executor;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.queueSize = queueSize;
+        this.maxQueueNanos = TimeUnit.MILLISECONDS.toNanos(maxQueueMillis);
+        this.tolerance = tolerance;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+        this.inflight = new AtomicInteger();
+        this.queue = new ConcurrentLinkedQueue<>();
+        this.queued = new AtomicInteger();
+        this.windowRtt = new LongAdder();
+        this.windowCount = new LongAdder();
+        this.windowStart = System.nanoTime();
+        this.windowLock = new ReentrantLock();
+        this.accepted = new LongAdder();
+        this.dropped = new LongAdder();
+    }
+
+    /**
+     * 提交一个请求，没有空余名额时排队，队列已满时直接返回503
+     */
+    public void execute(AbstractRequestHandler handler) {
+        long now = System.nanoTime();
+        shedExpired(now);
+        if (queued.get() == 0 && tryAcquire()) {
+            dispatch(handler);
+            return;
+        }
+        if (queued.incrementAndGet() > queueSize) {
+            queued.decrementAndGet();
+            shed(handler);
+            return;
+        }
+        queue.offer(new Pending(handler, now));
+        // 入队期间可能有请求结束，没有人再来取队列中的请求
+        drain();
+    }
+
+    public int getLimit() {
+        return (int) limit;
+    }
+
+    public int getInflight() {
+        return inflight.get();
+    }
+
+    public int getQueued() {
+        return queued.get();
+    }
+
+    public long getAccepted() {
+        return accepted.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * 被拒绝的请求占全部请求的比例
+     */
+    public double getDropRate() {
+        long drop = dropped.sum();
+        long total = drop + accepted.sum();
+        return total == 0 ? 0 : (double) drop / total;
+    }
+
+    private boolean tryAcquire() {
+        while (true) {
+            int current = inflight.get();
+            if (current >= (int) limit) {
+                return false;
+            }
+            if (inflight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void dispatch(AbstractRequestHandler handler) {
+        accepted.increment();
+        long dispatchedAt = System.nanoTime();
+        try {
+            executor.execute(new HandlerTask(handler, async -> release(async ? -1 : System.nanoTime() - dispatchedAt)));
+        } catch (RuntimeException e) {
+            inflight.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * @param rtt 耗时纳秒数，小于0表示不作为样本
+     */
+    private void release(long rtt) {
+        inflight.decrementAndGet();
+        if (rtt >= 0) {
+            sample(rtt);
+        }
+        drain();
+    }
+
+    /**
+     * 有空余名额时按顺序执行排队的请求，等待超时的返回503
+     */
+    private void drain() {
+        while (queued.get() > 0 && tryAcquire()) {
+            Pending pending = queue.poll();
+            if (pending == null) {
+                inflight.decrementAndGet();
+                return;
+            }
+            queued.decrementAndGet();
+            long now = System.nanoTime();
+            if (now - pending.enqueuedAt > maxQueueNanos) {
+                inflight.decrementAndGet();
+                shed(pending.handler);
+            } else {
+                dispatch(pending.handler);
+            }
+        }
+    }
+
+    /**
+     * 所有名额都被慢请求占着时没有人调用drain，提交新请求时顺便清理队头等待超时的请求
+     */
+    private void shedExpired(long now) {
+        Pending head;
+        while ((head = queue.peek()) != null && now - head.enqueuedAt > maxQueueNanos) {
+            if (queue.remove(head)) {
+                queued.decrementAndGet();
+                shed(head.handler);
+            }
+        }
+    }
+
+    private void shed(AbstractRequestHandler handler) {
+        dropped.increment();
+        ServiceUnavailable.send(handler);
+    }
+
+    private void sample(long rtt) {
+        windowRtt.add(rtt);
+        windowCount.increment();
+        long now = System.nanoTime();
+        if (now - windowStart < WINDOW_NANOS || windowCount.sum() < WINDOW_SAMPLES || !windowLock.tryLock()) {
+            return;
+        }
+        try {
+            long count = windowCount.sumThenReset();
+            long total = windowRtt.sumThenReset();
+            windowStart = now;
+            if (count == 0) {
+                return;
+            }
+            updateLimit((double) total / count);
+        } finally {
+            windowLock.unlock();
+        }
+    }
+
+    private void updateLimit(double shortRtt) {
+        if (longRtt == 0) {
+            longRtt = shortRtt;
+        } else {
+            longRtt += (shortRtt - longRtt) * LONG_RTT_FACTOR;
+            // 过载持续一段时间后long也会变大，耗时恢复时让它尽快回落
+            if (longRtt > shortRtt * 2) {
+                longRtt = shortRtt * 2;
+            }
+        }
+        double current = limit;
+        // 负载不高，耗时不能说明limit是否合适
+        if (inflight.get() * 2 < current) {
+            return;
+        }
+        double gradient = Math.max(0.5, Math.min(1.0, tolerance * longRtt / shortRtt));
+        double newLimit = current * gradient + Math.sqrt(current);
+        newLimit = current * (1 - SMOOTHING) + newLimit * SMOOTHING;
+        newLimit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+        if ((int) newLimit != (int) current && logger.isDebugEnabled()) {
+            logger.debug("并发限制 {} -> {}，耗时 {}/{}ms，处理中 {}", (int) current, (int) newLimit,
+                    String.format("%.2f", shortRtt / 1e6), String.format("%.2f", longRtt / 1e6), inflight.get());
+        }
+        limit = newLimit;
+    }
+}
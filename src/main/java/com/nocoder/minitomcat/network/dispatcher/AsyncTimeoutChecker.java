@@ -0,0 +1,69 @@
+package com.nocoder.minitomcat.network.dispatcher;
+
+import com.nocoder.minitomcat.request.AsyncContext;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 异步请求超时检测，每个Dispatcher持有一个
+ * 定期扫描进行中的AsyncContext，超时的交给worker线程池处理（超时处理会写回响应，不在扫描线程中进行）
+ * @author 29282
+ */
+@Slf4j
+public class AsyncTimeoutChecker implements Runnable {
+    private final Logger logger = LoggerFactory.getLogger(AsyncTimeoutChecker.class);
+
+    private final Set<AsyncContext> asyncContexts;
+    private final Executor executor;
+    private ScheduledExecutorService scheduler;
+
+    public AsyncTimeoutChecker(Executor executor) {
+        this.asyncContexts = ConcurrentHashMap.newKeySet();
+        this.executor = executor;
+    }
+
+    public void start() {
+        ThreadFactory threadFactory = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "AsyncTimeoutChecker");
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        scheduler = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        scheduler.scheduleWithFixedDelay(this, 1, 1, TimeUnit.SECONDS);
+    }
+
+    public void shutdown() {
+        scheduler.shutdown();
+    }
+
+    public void register(AsyncContext asyncContext) {
+        asyncContexts.add(asyncContext);
+    }
+
+    @Override
+    public void run() {
+        long now = System.currentTimeMillis();
+        for (Iterator<AsyncContext> it = asyncContexts.iterator(); it.hasNext(); ) {
+            AsyncContext asyncContext = it.next();
+            if (asyncContext.isCompleted()) {
+                it.remove();
+            } else if (asyncContext.isExpired(now)) {
+                it.remove();
+                executor.execute(asyncContext::onTimeout);
+            }
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package com.nocoder.minitomcat.network.dispatcher;
+
+import com.nocoder.minitomcat.network.handler.AbstractRequestHandler;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 隔离舱，限制一组servlet映射同时占用的线程数，慢servlet不会占满共享的worker线程池
+ * THREAD_POOL：使用独立的线程池，maxConcurrency个线程，queueSize长的队列
+ * SEMAPHORE：仍然在共享的worker线程池中执行，但同时执行的请求不超过maxConcurrency个，其余在自己的队列中等待
+ * 队列满时按rejection处理：REJECT返回503，SHARED不再受隔离舱限制，交给共享的worker线程池
+ * @author 29282
+ */
+@Slf4j
+public class Bulkhead {
+    private final Logger logger = LoggerFactory.getLogger(Bulkhead.class);
+
+    public enum Type {
+        THREAD_POOL, SEMAPHORE
+    }
+
+    public enum Rejection {
+        REJECT, SHARED
+    }
+
+    private final String name;
+    private final Type type;
+    private final int maxConcurrency;
+    private final int queueSize;
+    private final Rejection rejection;
+    /**
+     * THREAD_POOL时使用
+     */
+    private ThreadPoolExecutor executor;
+    /**
+     * SEMAPHORE时使用，THREAD_POOL时正在执行的请求数由线程池统计
+     */
+    private final AtomicInteger active;
+    private final Queue<AbstractRequestHandler> waiting;
+    private final AtomicInteger queued;
+
+    private final LongAdder completed;
+    private final LongAdder rejected;
+
+    public Bulkhead(String name, Type type, int maxConcurrency, int queueSize, Rejection rejection) {
+        if (maxConcurrency < 1 || queueSize < 0) {
+            throw new IllegalArgumentException("invalid bulkhead " + name);
+        }
+        this.name = name;
+        this.type = type;
+        this.maxConcurrency = maxConcurrency;
+        this.queueSize = queueSize;
+        this.rejection = rejection;
+        this.active = new AtomicInteger();
+        this.waiting = new ConcurrentLinkedQueue<>();
+        this.queued = new AtomicInteger();
+        this.completed = new LongAdder();
+        this.rejected = new LongAdder();
+        if (type == Type.THREAD_POOL) {
+            ThreadFactory threadFactory = new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "Bulkhead-" + name + "-" + count.getAndIncrement());
+                }
+            };
+            BlockingQueue<Runnable> queue = queueSize == 0 ? new SynchronousQueue<>() : new ArrayBlockingQueue<>(queueSize);
+            this.executor = new ThreadPoolExecutor(maxConcurrency, maxConcurrency, 60, TimeUnit.SECONDS, queue,
+                    threadFactory, new ThreadPoolExecutor.AbortPolicy());
+            this.executor.allowCoreThreadTimeOut(true);
+        }
+    }
+
+    /**
+     * 执行请求
+     * @param handler
+     * @param shared  共享的worker线程池
+     */
+    public void execute(AbstractRequestHandler handler, Executor shared) {
+        if (type == Type.THREAD_POOL) {
+            try {
+                executor.execute(new HandlerTask(handler, completed::increment));
+            } catch (RejectedExecutionException e) {
+                reject(handler, shared);
+            }
+            return;
+        }
+        if (queued.get() == 0 && tryAcquire()) {
+            dispatch(handler, shared);
+            return;
+        }
+        if (queued.incrementAndGet() > queueSize) {
+            queued.decrementAndGet();
+            reject(handler, shared);
+            return;
+        }
+        waiting.offer(handler);
+        // 入队期间可能有请求结束，没有人再来取队列中的请求
+        drain(shared);
+    }
+
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    public int getActive() {
+        return type == Type.THREAD_POOL ? executor.getActiveCount() : active.get();
+    }
+
+    public int getQueued() {
+        return type == Type.THREAD_POOL ? executor.getQueue().size() : queued.get();
+    }
+
+    /**
+     * 正在执行的请求占maxConcurrency的比例
+     */
+    public double getSaturation() {
+        return (double) getActive() / maxConcurrency;
+    }
+
+    public long getCompleted() {
+        return completed.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    private boolean tryAcquire() {
+        while (true) {
+            int current = active.get();
+            if (current >= maxConcurrency) {
+                return false;
+            }
+            if (active.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void dispatch(AbstractRequestHandler handler, Executor shared) {
+        try {
+            shared.execute(new HandlerTask(handler, () -> {
+                active.decrementAndGet();
+                completed.increment();
+                drain(shared);
+            }));
+        } catch (RuntimeException e) {
+            active.decrementAndGet();
+            throw e;
+        }
+    }
+
+    private void drain(Executor shared) {
+        while (queued.get() > 0 && tryAcquire()) {
+            AbstractRequestHandler handler = waiting.poll();
+            if (handler == null) {
+                active.decrementAndGet();
+                return;
+            }
+            queued.decrementAndGet();
+            dispatch(handler, shared);
+        }
+    }
+
+    private void reject(AbstractRequestHandler handler, Executor shared) {
+        rejected.increment();
+        if (rejection == Rejection.SHARED) {
+            shared.execute(handler);
+            return;
+        }
+        logger.info("隔离舱{}已满，拒绝请求{}", name, handler.getRequest().getUrl());
+        ServiceUnavailable.send(handler);
+    }
+}
@@ -0,0 +1,38 @@
+package com.nocoder.minitomcat.network.dispatcher;
+
+import com.nocoder.minitomcat.network.handler.AbstractRequestHandler;
+
+import java.util.function.Consumer;
+
+/**
+ * 执行一个请求，之后执行回调；worker线程池可以从中取出handler，按请求类别排队
+ * 回调的参数为请求是否进入了异步模式，此时run返回并不代表请求已经处理完
+ * @author 29282
+ */
+class HandlerTask implements Runnable {
+    private final AbstractRequestHandler handler;
+    private final Consumer<Boolean> afterRun;
+
+    HandlerTask(AbstractRequestHandler handler, Runnable afterRun) {
+        this(handler, async -> afterRun.run());
+    }
+
+    HandlerTask(AbstractRequestHandler handler, Consumer<Boolean> afterRun) {
+        this.handler = handler;
+        this.afterRun = afterRun;
+    }
+
+    AbstractRequestHandler getHandler() {
+        return handler;
+    }
+
+    @Override
+    public void run() {
+        int generation = handler.getGeneration();
+        try {
+            handler.run();
+        } finally {
+            afterRun.accept(handler.isAsyncStartedSince(generation));
+        }
+    }
+}
@@ -0,0 +1,329 @@
+package com.nocoder.minitomcat.network.dispatcher;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * worker线程池的任务队列，每个请求类别一个FIFO队列，总长度有上限
+ * STRICT：总是先取优先级最高的非空队列
+ * WEIGHTED：按权重做平滑加权轮询（每次给非空队列加上各自的权重，取最大的一个，再减去非空队列的权重和），
+ * 低优先级的请求按比例得到执行，不会饿死
+ * 元素为WorkerPool.QueuedTask，按其中的类别入队
+ * @author 29282
+ */
+class PriorityTaskQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+    enum Mode {
+        STRICT, WEIGHTED
+    }
+
+    private static final RequestClass[] CLASSES = RequestClass.values();
+
+    private final Mode mode;
+    private final int[] weights;
+    private final int capacity;
+    private final ArrayDeque<Runnable>[] queues;
+    /**
+     * 平滑加权轮询的当前值
+     */
+    private final int[] current;
+    private int count;
+    private final ReentrantLock lock;
+    private final Condition notEmpty;
+    private final Condition notFull;
+
+    @SuppressWarnings("unchecked")
+    PriorityTaskQueue(Mode mode, int[] weights, int capacity) {
+        this.mode = mode;
+        this.weights = weights;
+        this.capacity = capacity;
+        this.queues = new ArrayDeque[CLASSES.length];
+        this.current = new int[CLASSES.length];
+        for (int i = 0; i < CLASSES.length; i++) {
+            queues[i] = new ArrayDeque<>();
+        }
+        this.lock = new ReentrantLock();
+        this.notEmpty = lock.newCondition();
+        this.notFull = lock.newCondition();
+    }
+
+    /**
+     * 某个类别正在排队的任务数
+     */
+    int size(RequestClass requestClass) {
+        lock.lock();
+        try {
+            return queues[requestClass.ordinal()].size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(Runnable task) {
+        lock.lock();
+        try {
+            if (count == capacity) {
+                return false;
+            }
+            enqueue(task);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(Runnable task) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (count == capacity) {
+                notFull.await();
+            }
+            enqueue(task);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(Runnable task, long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (count == capacity) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+            enqueue(task);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll() {
+        lock.lock();
+        try {
+            return count == 0 ? null : dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                notEmpty.await();
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable peek() {
+        lock.lock();
+        try {
+            for (ArrayDeque<Runnable> queue : queues) {
+                if (!queue.isEmpty()) {
+                    return queue.peekFirst();
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 所有类别中最早入队的任务，各类别都是FIFO，只需比较每个队列的队首
+     * peek按优先级返回，严格优先级下低优先级队首可能已经等待了更久
+     * @return 队列为空时返回null
+     */
+    WorkerPool.QueuedTask oldest() {
+        lock.lock();
+        try {
+            WorkerPool.QueuedTask oldest = null;
+            for (ArrayDeque<Runnable> queue : queues) {
+                Runnable head = queue.peekFirst();
+                if (head instanceof WorkerPool.QueuedTask) {
+                    WorkerPool.QueuedTask task = (WorkerPool.QueuedTask) head;
+                    if (oldest == null || task.enqueuedAt - oldest.enqueuedAt < 0) {
+                        oldest = task;
+                    }
+                }
+            }
+            return oldest;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        lock.lock();
+        try {
+            for (ArrayDeque<Runnable> queue : queues) {
+                if (queue.removeFirstOccurrence(o)) {
+                    count--;
+                    notFull.signal();
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        lock.lock();
+        try {
+            return capacity - count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c, int maxElements) {
+        lock.lock();
+        try {
+            int n = 0;
+            while (n < maxElements && count > 0) {
+                c.add(dequeue());
+                n++;
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 返回快照的迭代器，ThreadPoolExecutor只在purge等管理操作中使用
+     */
+    @Override
+    public Iterator<Runnable> iterator() {
+        lock.lock();
+        try {
+            List<Runnable> snapshot = new ArrayList<>(count);
+            for (ArrayDeque<Runnable> queue : queues) {
+                snapshot.addAll(queue);
+            }
+            Iterator<Runnable> it = snapshot.iterator();
+            return new Iterator<Runnable>() {
+                private Runnable last;
+
+                @Override
+                public boolean hasNext() {
+                    return it.hasNext();
+                }
+
+                @Override
+                public Runnable next() {
+                    last = it.next();
+                    return last;
+                }
+
+                @Override
+                public void remove() {
+                    PriorityTaskQueue.this.remove(last);
+                }
+            };
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void enqueue(Runnable task) {
+        queues[classOf(task).ordinal()].addLast(task);
+        count++;
+        notEmpty.signal();
+    }
+
+    private Runnable dequeue() {
+        int index = mode == Mode.STRICT ? firstNonEmpty() : nextWeighted();
+        Runnable task = queues[index].pollFirst();
+        count--;
+        notFull.signal();
+        return task;
+    }
+
+    private int firstNonEmpty() {
+        for (int i = 0; i < queues.length; i++) {
+            if (!queues[i].isEmpty()) {
+                return i;
+            }
+        }
+        throw new IllegalStateException("queue is empty");
+    }
+
+    private int nextWeighted() {
+        int total = 0;
+        int best = -1;
+        for (int i = 0; i < queues.length; i++) {
+            if (queues[i].isEmpty()) {
+                continue;
+            }
+            current[i] += weights[i];
+            total += weights[i];
+            if (best < 0 || current[i] > current[best]) {
+                best = i;
+            }
+        }
+        current[best] -= total;
+        return best;
+    }
+
+    private static RequestClass classOf(Runnable task) {
+        return task instanceof WorkerPool.QueuedTask ? ((WorkerPool.QueuedTask) task).requestClass : RequestClass.API;
+    }
+}
@@ -0,0 +1,12 @@
+package com.nocoder.minitomcat.network.dispatcher;
+
+/**
+ * 请求在worker线程池中排队时的类别，按声明顺序优先级从高到低
+ * STATIC：由DefaultServlet处理的静态资源
+ * API：其他动态请求，以及异步超时、WebSocket回调等非请求任务
+ * BULK：server.scheduler.bulk-patterns匹配的批处理请求
+ * @author 29282
+ */
+public enum RequestClass {
+    STATIC, API, BULK
+}
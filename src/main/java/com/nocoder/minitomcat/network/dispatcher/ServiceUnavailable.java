@@ -0,0 +1,29 @@
+package com.nocoder.minitomcat.network.dispatcher;
+
+import com.nocoder.minitomcat.enumeration.HttpStatus;
+import com.nocoder.minitomcat.network.handler.AbstractRequestHandler;
+import com.nocoder.minitomcat.response.Header;
+import com.nocoder.minitomcat.response.Response;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 过载时拒绝请求：直接写回503，不执行filter和servlet
+ * @author 29282
+ */
+final class ServiceUnavailable {
+    private static final byte[] BODY = "Service Unavailable".getBytes(StandardCharsets.UTF_8);
+    private static final Header RETRY_AFTER = new Header("Retry-After", "1");
+
+    private ServiceUnavailable() {
+    }
+
+    static void send(AbstractRequestHandler handler) {
+        Response response = handler.getResponse();
+        response.setStatus(HttpStatus.SERVICE_UNAVAILABLE);
+        response.setContentType("text/plain;charset=utf-8");
+        response.addHeader(RETRY_AFTER);
+        response.setBody(BODY);
+        handler.flushResponse();
+    }
+}
@@ -0,0 +1,101 @@
+package com.nocoder.minitomcat.network.dispatcher;
+
+import com.nocoder.minitomcat.util.PropertyUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 按server.worker.executor创建Dispatcher使用的worker线程池
+ * threadpool（默认）：WorkerPool，所有worker共用一个队列，支持自动伸缩和按请求类别调度
+ * forkjoin：异步模式（FIFO）的ForkJoinPool，每个worker有自己的双端队列，空闲时从其他worker窃取任务，
+ *           外部线程提交的任务也分散到多个提交队列中，没有单一队列的锁竞争；
+ *           线程数由server.worker.parallelism指定，默认CPU核数*2（至少4），servlet中的阻塞IO不会触发补偿线程
+ * virtual：每个任务一个虚拟线程，需要运行在JDK 21及以上，更低的版本退回threadpool
+ * 后两种不经过WorkerPool，server.worker.*中的伸缩参数和server.scheduler.*不生效
+ * @author 29282
+ */
+@Slf4j
+final class WorkerExecutors {
+    private static final Logger logger = LoggerFactory.getLogger(WorkerExecutors.class);
+
+    private static final String NAME_PREFIX = "Worker Pool-";
+
+    private WorkerExecutors() {
+    }
+
+    static ExecutorService create() {
+        String type = PropertyUtil.getProperty("server.worker.executor", "threadpool");
+        if ("forkjoin".equalsIgnoreCase(type)) {
+            return forkJoin();
+        }
+        if ("virtual".equalsIgnoreCase(type)) {
+            ExecutorService executor = virtual();
+            if (executor != null) {
+                return executor;
+            }
+        } else if (!"threadpool".equalsIgnoreCase(type)) {
+            throw new IllegalArgumentException("unknown server.worker.executor: " + type);
+        }
+        WorkerPool pool = new WorkerPool(platformThreadFactory());
+        pool.start();
+        return pool;
+    }
+
+    private static ThreadFactory platformThreadFactory() {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, NAME_PREFIX + count.getAndIncrement());
+            }
+        };
+    }
+
+    private static ExecutorService forkJoin() {
+        int parallelism = Integer.parseInt(PropertyUtil.getProperty("server.worker.parallelism",
+                String.valueOf(Math.max(4, Runtime.getRuntime().availableProcessors() * 2))));
+        ForkJoinPool.ForkJoinWorkerThreadFactory threadFactory = new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName(NAME_PREFIX + count.getAndIncrement());
+                // 默认是守护线程，与threadpool保持一致
+                thread.setDaemon(false);
+                return thread;
+            }
+        };
+        logger.info("worker线程池使用ForkJoinPool，并行度{}", parallelism);
+        return new ForkJoinPool(parallelism, threadFactory, null, true);
+    }
+
+    /**
+     * 编译目标是Java 8，通过反射调用Thread.ofVirtual().name(prefix, 0).factory()和Executors.newThreadPerTaskExecutor
+     * @return 当前JVM不支持虚拟线程时返回null
+     */
+    private static ExecutorService virtual() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, NAME_PREFIX, 0L);
+            ThreadFactory threadFactory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            ExecutorService executor = (ExecutorService) Executors.class
+                    .getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, threadFactory);
+            logger.info("worker线程池使用虚拟线程，每个请求一个线程");
+            return executor;
+        } catch (ReflectiveOperationException e) {
+            logger.warn("当前JVM不支持虚拟线程，worker线程池退回threadpool");
+            return null;
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package com.nocoder.minitomcat.network.dispatcher;
+
+import com.nocoder.minitomcat.network.handler.AbstractRequestHandler;
+import com.nocoder.minitomcat.util.PropertyUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * worker线程池，根据任务在队列中的等待时间和CPU使用率自动伸缩
+ * 每个任务入队时记录时间，开始执行时累计等待时间；每个调整周期取平均等待时间和队首任务已经等待的时间中较大的一个，
+ * 所有线程都卡住、没有任务开始执行时队首的等待时间仍然会增长，之后做指数平滑，
+ * 超过目标等待时间且CPU没有打满时按1/4增加核心线程数，远低于目标且一半以上线程空闲时按1/8减少，
+ * 核心线程数始终在[min-threads, max-threads]之间；多出核心线程数的线程空闲idle-timeout后退出
+ * server.worker.min-threads        最少线程数，默认CPU核数*2（至少4）
+ * server.worker.max-threads        最多线程数，默认200
+ * server.worker.queue-size         队列长度，默认200
+ * server.worker.target-queue-wait  目标排队毫秒数，默认10
+ * server.worker.smoothing          等待时间的平滑系数，默认0.3
+ * server.worker.cpu-ceiling        CPU使用率超过该值时不再增加线程，默认0.9
+ * server.worker.idle-timeout       空闲线程退出的秒数，默认60
+ * server.worker.scale-interval     调整周期毫秒数，默认1000
+ * 队列按server.scheduler.mode选择：fifo（默认）所有请求共用一个FIFO队列；
+ * strict/weighted按请求类别（RequestClass）分别排队，见PriorityTaskQueue
+ * server.scheduler.weights          weighted时STATIC、API、BULK的权重，默认8,4,1
+ * @author 29282
+ */
+@Slf4j
+public class WorkerPool extends ThreadPoolExecutor {
+    private final Logger logger = LoggerFactory.getLogger(WorkerPool.class);
+
+    /**
+     * 记录入队时间和请求类别的任务
+     */
+    static class QueuedTask implements Runnable {
+        final Runnable task;
+        final long enqueuedAt;
+        final RequestClass requestClass;
+
+        QueuedTask(Runnable task, long enqueuedAt, RequestClass requestClass) {
+            this.task = task;
+            this.enqueuedAt = enqueuedAt;
+            this.requestClass = requestClass;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+    }
+
+    private final int minThreads;
+    private final int maxThreads;
+    private final double targetWaitMillis;
+    private final double smoothing;
+    private final double cpuCeiling;
+    private final long scaleInterval;
+    private final OperatingSystemMXBean os;
+    private ScheduledExecutorService scaler;
+
+    private final LongAdder waitNanos;
+    private final LongAdder waitCount;
+    private volatile double queueWaitMillis;
+    private volatile double cpuLoad;
+    private final LongAdder growCount;
+    private final LongAdder shrinkCount;
+    /**
+     * 各请求类别累计的排队时间和任务数
+     */
+    private final LongAdder[] classWaitNanos;
+    private final LongAdder[] classWaitCount;
+
+    public WorkerPool(ThreadFactory threadFactory) {
+        this(Integer.parseInt(PropertyUtil.getProperty("server.worker.min-threads",
+                        String.valueOf(Math.max(4, Runtime.getRuntime().availableProcessors() * 2)))),
+                Integer.parseInt(PropertyUtil.getProperty("server.worker.max-threads", "200")),
+                createQueue(Integer.parseInt(PropertyUtil.getProperty("server.worker.queue-size", "200"))),
+                Double.parseDouble(PropertyUtil.getProperty("server.worker.target-queue-wait", "10")),
+                Double.parseDouble(PropertyUtil.getProperty("server.worker.smoothing", "0.3")),
+                Double.parseDouble(PropertyUtil.getProperty("server.worker.cpu-ceiling", "0.9")),
+                Long.parseLong(PropertyUtil.getProperty("server.worker.idle-timeout", "60")),
+                Long.parseLong(PropertyUtil.getProperty("server.worker.scale-interval", "1000")),
+                threadFactory);
+    }
+
+    public WorkerPool(int minThreads, int maxThreads, BlockingQueue<Runnable> queue, double targetWaitMillis, double smoothing,
+                      double cpuCeiling, long idleTimeoutSeconds, long scaleInterval, ThreadFactory threadFactory) {
+        super(minThreads, Math.max(minThreads, maxThreads), idleTimeoutSeconds, TimeUnit.SECONDS,
+                queue, threadFactory, new CallerRunsPolicy());
+        if (smoothing <= 0 || smoothing > 1) {
+            throw new IllegalArgumentException("server.worker.smoothing must be in (0, 1]");
+        }
+        this.minThreads = minThreads;
+        this.maxThreads = Math.max(minThreads, maxThreads);
+        this.targetWaitMillis = targetWaitMillis;
+        this.smoothing = smoothing;
+        this.cpuCeiling = cpuCeiling;
+        this.scaleInterval = scaleInterval;
+        this.os = ManagementFactory.getOperatingSystemMXBean();
+        this.waitNanos = new LongAdder();
+        this.waitCount = new LongAdder();
+        this.growCount = new LongAdder();
+        this.shrinkCount = new LongAdder();
+        this.cpuLoad = -1;
+        this.classWaitNanos = new LongAdder[RequestClass.values().length];
+        this.classWaitCount = new LongAdder[RequestClass.values().length];
+        for (int i = 0; i < classWaitNanos.length; i++) {
+            classWaitNanos[i] = new LongAdder();
+            classWaitCount[i] = new LongAdder();
+        }
+    }
+
+    private static BlockingQueue<Runnable> createQueue(int queueSize) {
+        String mode = PropertyUtil.getProperty("server.scheduler.mode", "fifo");
+        if ("fifo".equalsIgnoreCase(mode)) {
+            return new ArrayBlockingQueue<>(queueSize);
+        }
+        String[] values = PropertyUtil.getProperty("server.scheduler.weights", "8,4,1").split(",");
+        int[] weights = new int[RequestClass.values().length];
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = Math.max(1, Integer.parseInt(values[Math.min(i, values.length - 1)].trim()));
+        }
+        return new PriorityTaskQueue(PriorityTaskQueue.Mode.valueOf(mode.toUpperCase()), weights, queueSize);
+    }
+
+    /**
+     * 启动自动伸缩，最少线程数等于最多线程数时不需要调整
+     */
+    public void start() {
+        if (minThreads == maxThreads) {
+            return;
+        }
+        ThreadFactory threadFactory = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "WorkerPoolScaler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        scaler = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        scaler.scheduleWithFixedDelay(this::adjust, scaleInterval, scaleInterval, TimeUnit.MILLISECONDS);
+        logger.info("worker线程池自动伸缩: {}~{}个线程，目标排队时间{}ms", minThreads, maxThreads, targetWaitMillis);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        super.execute(new QueuedTask(command, System.nanoTime(), classOf(command)));
+    }
+
+    @Override
+    protected void beforeExecute(Thread t, Runnable r) {
+        if (r instanceof QueuedTask) {
+            QueuedTask task = (QueuedTask) r;
+            long wait = System.nanoTime() - task.enqueuedAt;
+            waitNanos.add(wait);
+            waitCount.increment();
+            classWaitNanos[task.requestClass.ordinal()].add(wait);
+            classWaitCount[task.requestClass.ordinal()].increment();
+        }
+    }
+
+    /**
+     * 请求的类别由Dispatcher在路由后设置，其他任务（异步超时、WebSocket回调等）按API排队
+     */
+    private static RequestClass classOf(Runnable command) {
+        if (command instanceof AbstractRequestHandler) {
+            return ((AbstractRequestHandler) command).getRequestClass();
+        }
+        if (command instanceof HandlerTask) {
+            return ((HandlerTask) command).getHandler().getRequestClass();
+        }
+        return RequestClass.API;
+    }
+
+    /**
+     * 某个请求类别正在排队的任务数，fifo模式下不区分类别，返回-1
+     */
+    public int getQueueDepth(RequestClass requestClass) {
+        BlockingQueue<Runnable> queue = getQueue();
+        return queue instanceof PriorityTaskQueue ? ((PriorityTaskQueue) queue).size(requestClass) : -1;
+    }
+
+    /**
+     * 某个请求类别启动以来的平均排队毫秒数
+     */
+    public double getQueueWaitMillis(RequestClass requestClass) {
+        long count = classWaitCount[requestClass.ordinal()].sum();
+        return count == 0 ? 0 : classWaitNanos[requestClass.ordinal()].sum() / 1e6 / count;
+    }
+
+    @Override
+    public void shutdown() {
+        if (scaler != null) {
+            scaler.shutdown();
+        }
+        super.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        if (scaler != null) {
+            scaler.shutdownNow();
+        }
+        return super.shutdownNow();
+    }
+
+    /**
+     * 平滑后的排队毫秒数
+     */
+    public double getQueueWaitMillis() {
+        return queueWaitMillis;
+    }
+
+    /**
+     * 最近一次取到的CPU使用率，取不到时为-1
+     */
+    public double getCpuLoad() {
+        return cpuLoad;
+    }
+
+    public long getGrowCount() {
+        return growCount.sum();
+    }
+
+    public long getShrinkCount() {
+        return shrinkCount.sum();
+    }
+
+    private void adjust() {
+        long count = waitCount.sumThenReset();
+        long total = waitNanos.sumThenReset();
+        // 只统计开始执行的任务时，线程全部阻塞的周期样本为0，反而会缩容，所以同时取队首的等待时间
+        double sample = Math.max(count == 0 ? 0 : total / 1e6 / count, oldestQueuedMillis());
+        double wait = queueWaitMillis * (1 - smoothing) + sample * smoothing;
+        queueWaitMillis = wait;
+        double cpu = cpuLoad();
+        cpuLoad = cpu;
+        int core = getCorePoolSize();
+        // 本周期的样本也超过目标才扩容，避免排队已经消失后平滑值还没有降下来时继续扩容
+        if (wait > targetWaitMillis && sample > targetWaitMillis && core < maxThreads) {
+            if (cpu >= cpuCeiling) {
+                logger.debug("排队{}ms超过目标，但CPU使用率{}已达上限，不增加线程", format(wait), format(cpu));
+                return;
+            }
+            int next = Math.min(maxThreads, core + Math.max(1, core / 4));
+            setCorePoolSize(next);
+            growCount.increment();
+            logger.info("worker线程池扩容 {} -> {}，排队{}ms，CPU使用率{}", core, next, format(wait), format(cpu));
+        } else if (wait < targetWaitMillis / 4 && core > minThreads && getActiveCount() * 2 < core) {
+            int next = Math.max(minThreads, core - Math.max(1, core / 8));
+            setCorePoolSize(next);
+            shrinkCount.increment();
+            logger.info("worker线程池缩容 {} -> {}，排队{}ms，活跃线程{}", core, next, format(wait), getActiveCount());
+        }
+    }
+
+    /**
+     * 队列中最早入队的任务已经等待的毫秒数，队列为空时返回0
+     */
+    private double oldestQueuedMillis() {
+        BlockingQueue<Runnable> queue = getQueue();
+        Runnable oldest = queue instanceof PriorityTaskQueue ? ((PriorityTaskQueue) queue).oldest() : queue.peek();
+        if (!(oldest instanceof QueuedTask)) {
+            return 0;
+        }
+        return Math.max(0, System.nanoTime() - ((QueuedTask) oldest).enqueuedAt) / 1e6;
+    }
+
+    /**
+     * 整机CPU使用率，HotSpot之外的JVM用平均负载估算，都取不到时返回-1
+     */
+    private double cpuLoad() {
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            double load = ((com.sun.management.OperatingSystemMXBean) os).getSystemCpuLoad();
+            if (load >= 0) {
+                return load;
+            }
+        }
+        double average = os.getSystemLoadAverage();
+        return average < 0 ? -1 : Math.min(1, average / os.getAvailableProcessors());
+    }
+
+    private static String format(double value) {
+        return String.format("%.2f", value);
+    }
+}
@@ -1,10 +1,13 @@
 package com.nocoder.minitomcat.network.dispatcher.aio;
 
+import com.nocoder.minitomcat.exception.RequestTooLargeException;
 import com.nocoder.minitomcat.exception.base.ServletException;
 import com.nocoder.minitomcat.network.dispatcher.AbstractDispatcher;
+import com.nocoder.minitomcat.network.handler.AbstractRequestHandler;
 import com.nocoder.minitomcat.network.handler.aio.AioRequestHandler;
 import com.nocoder.minitomcat.network.wrapper.SocketWrapper;
 import com.nocoder.minitomcat.network.wrapper.aio.AioSocketWrapper;
+import com.nocoder.minitomcat.request.HttpRequestReader;
 import com.nocoder.minitomcat.request.Request;
 import com.nocoder.minitomcat.response.Response;
 import lombok.extern.slf4j.Slf4j;
@@ -14,6 +17,7 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.CompletionHandler;
+import java.util.concurrent.TimeUnit;
 
 @Slf4j
 public class AioDispatcher extends AbstractDispatcher {
@@ -23,20 +27,50 @@ public class AioDispatcher extends AbstractDispatcher {
     @Override
     public void doDispatch(SocketWrapper socketWrapper) {
         AioSocketWrapper aioSocketWrapper = (AioSocketWrapper) socketWrapper;
-        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        HttpRequestReader reader = aioSocketWrapper.getRequestReader();
+        ByteBuffer buffer = aioSocketWrapper.getReadBuffer();
         aioSocketWrapper.getSocketChannel().read(buffer, buffer, new CompletionHandler<Integer, ByteBuffer>() {
             @Override
             public void completed(Integer result, ByteBuffer attachment) {
                 Request request = null;
                 Response response = null;
                 try {
+                    if (result < 0) {
+                        reader.abort();
+                        aioSocketWrapper.close();
+                        return;
+                    }
+                    attachment.flip();
+                    boolean finished = reader.feed(attachment.array(), 0, attachment.limit());
+                    attachment.clear();
+                    if (!finished) {
+                        // 请求尚未读完，继续读取
+                        aioSocketWrapper.getSocketChannel().read(attachment, attachment, this);
+                        return;
+                    }
                     //解析请求
-                    request = new Request(attachment.array());
-                    response = new Response();
-                    pool.execute(new AioRequestHandler(aioSocketWrapper, servletContext, exceptionHandler, resourceHandler, this, request, response));
+                    request = reader.getRequest();
+                    // 优先复用连接上回收的handler/request/response
+                    AbstractRequestHandler handler = aioSocketWrapper.takeRecycledHandler();
+                    if (handler != null) {
+                        handler.init(request, handler.getResponse());
+                    } else {
+                        response = new Response();
+                        handler = new AioRequestHandler(aioSocketWrapper, servletContext, exceptionHandler, resourceHandler, this, request, response);
+                        handler.setAsyncTimeoutChecker(asyncTimeoutChecker);
+                    }
+                    execute(handler);
                 } catch (ServletException e) {
+                    reader.abort();
+                    if (response == null) {
+                        response = new Response();
+                    }
                     exceptionHandler.handle(e, response, aioSocketWrapper);
+                    if (e instanceof RequestTooLargeException) {
+                        rejectAndClose(aioSocketWrapper, response);
+                    }
                 } catch (IOException e) {
+                    reader.abort();
                     e.printStackTrace();
                 }
             }
@@ -44,8 +78,32 @@ public class AioDispatcher extends AbstractDispatcher {
             @Override
             public void failed(Throwable e, ByteBuffer attachment) {
                 logger.error("read failed");
+                reader.abort();
                 e.printStackTrace();
             }
         });
     }
+
+    /**
+     * 请求体过大时直接写回错误响应并关闭连接
+     */
+    private void rejectAndClose(AioSocketWrapper aioSocketWrapper, Response response) {
+        aioSocketWrapper.getSocketChannel().write(response.getResponseByteBuffer(), 0, 2, 0L, TimeUnit.MILLISECONDS, null, new CompletionHandler<Long, Object>() {
+            @Override
+            public void completed(Long result, Object attachment) {
+                response.release();
+                try {
+                    aioSocketWrapper.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            @Override
+            public void failed(Throwable e, Object attachment) {
+                response.release();
+                logger.error("写回错误响应失败", e);
+            }
+        });
+    }
 }
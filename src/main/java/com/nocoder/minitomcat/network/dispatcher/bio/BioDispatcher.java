@@ -1,17 +1,20 @@
 package com.nocoder.minitomcat.network.dispatcher.bio;
 
 import com.nocoder.minitomcat.exception.RequestInvalidException;
+import com.nocoder.minitomcat.exception.RequestTooLargeException;
 import com.nocoder.minitomcat.exception.base.ServletException;
 import com.nocoder.minitomcat.network.dispatcher.AbstractDispatcher;
 import com.nocoder.minitomcat.network.handler.bio.BioRequestHandler;
 import com.nocoder.minitomcat.network.wrapper.SocketWrapper;
 import com.nocoder.minitomcat.network.wrapper.bio.BioSocketWrapper;
+import com.nocoder.minitomcat.request.HttpRequestReader;
 import com.nocoder.minitomcat.request.Request;
 import com.nocoder.minitomcat.response.Response;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.Socket;
 
 /**
@@ -34,25 +37,50 @@ public class BioDispatcher extends AbstractDispatcher {
         Socket socket = bioSocketWrapper.getSocket();
         Request request = null;
         Response response = null;
+        HttpRequestReader reader = new HttpRequestReader();
         try {
             BufferedInputStream bin = new BufferedInputStream(socket.getInputStream());
-            byte[] buf = null;
-            try {
-                buf = new byte[bin.available()];
-                int len = bin.read(buf);
-                if (len <= 0) {
-                    throw new RequestInvalidException();
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
+            // 阻塞读取，直到请求头和Content-Length长度的请求体全部读完，multipart请求体边读边写入part
+            byte[] buf = new byte[8192];
+            boolean finished = false;
+            int len;
+            while (!finished && (len = bin.read(buf)) != -1) {
+                finished = reader.feed(buf, 0, len);
+            }
+            if (!finished) {
+                throw new RequestInvalidException();
             }
             // 这里不要把in关掉，把in关掉就等同于把socket关掉
             //解析请求
             response = new Response();
-            request = new Request(buf);
-            pool.execute(new BioRequestHandler(socketWrapper, servletContext, exceptionHandler, resourceHandler, request, response));
+            request = reader.getRequest();
+            BioRequestHandler handler = new BioRequestHandler(socketWrapper, servletContext, exceptionHandler, resourceHandler, request, response);
+            handler.setAsyncTimeoutChecker(asyncTimeoutChecker);
+            execute(handler);
         } catch (ServletException e) {
+            reader.abort();
+            if (response == null) {
+                response = new Response();
+            }
             exceptionHandler.handle(e, response, socketWrapper);
+            if (e instanceof RequestTooLargeException) {
+                rejectAndClose(bioSocketWrapper, response);
+            }
+        } catch (IOException e) {
+            reader.abort();
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 请求体过大时直接写回错误响应并关闭连接
+     */
+    private void rejectAndClose(BioSocketWrapper bioSocketWrapper, Response response) {
+        try {
+            OutputStream os = bioSocketWrapper.getSocket().getOutputStream();
+            os.write(response.getResponseBytes());
+            os.flush();
+            bioSocketWrapper.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -0,0 +1,143 @@
+package com.nocoder.minitomcat.network.dispatcher.nio;
+
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 监视在Poller线程中直接执行的请求
+ * 每个Poller线程一个Slot，开始执行时记录时间和url，结束时清零，不分配对象；
+ * 后台线程定期扫描，执行时间超过maxBlocking的打印一次警告和Poller线程当前的调用栈，
+ * 说明声明了NonBlocking的servlet/filter实际上阻塞了
+ * @author 29282
+ */
+@Slf4j
+public class InlineWatchdog {
+    private final Logger logger = LoggerFactory.getLogger(InlineWatchdog.class);
+
+    private static class Slot {
+        final Thread thread;
+        /**
+         * 开始执行的System.nanoTime，0表示空闲
+         */
+        volatile long startedAt;
+        volatile String url;
+        /**
+         * 本次执行是否已经警告过，只在扫描线程中读写
+         */
+        long warnedAt;
+
+        Slot(Thread thread) {
+            this.thread = thread;
+        }
+    }
+
+    private final long maxBlockingNanos;
+    private final long checkInterval;
+    private final List<Slot> slots;
+    private final ThreadLocal<Slot> currentSlot;
+    private final LongAdder inlineCount;
+    private final LongAdder blockedCount;
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * @param maxBlockingMillis 超过该毫秒数视为阻塞
+     * @param checkInterval     扫描间隔毫秒数
+     */
+    public InlineWatchdog(long maxBlockingMillis, long checkInterval) {
+        this.maxBlockingNanos = TimeUnit.MILLISECONDS.toNanos(maxBlockingMillis);
+        this.checkInterval = checkInterval;
+        this.slots = new CopyOnWriteArrayList<>();
+        this.currentSlot = new ThreadLocal<>();
+        this.inlineCount = new LongAdder();
+        this.blockedCount = new LongAdder();
+    }
+
+    public void start() {
+        ThreadFactory threadFactory = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "InlineWatchdog");
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        scheduler = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        scheduler.scheduleWithFixedDelay(this::check, checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+    }
+
+    public void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+    }
+
+    /**
+     * 当前线程开始直接执行一个请求
+     * @param url
+     */
+    public void begin(String url) {
+        Slot slot = currentSlot.get();
+        if (slot == null) {
+            slot = new Slot(Thread.currentThread());
+            currentSlot.set(slot);
+            slots.add(slot);
+        }
+        slot.url = url;
+        // nanoTime可能为0，此时往后挪1纳秒，0留给空闲状态
+        long now = System.nanoTime();
+        slot.startedAt = now == 0 ? 1 : now;
+        inlineCount.increment();
+    }
+
+    /**
+     * 当前线程的请求执行完毕
+     */
+    public void end() {
+        Slot slot = currentSlot.get();
+        if (slot != null) {
+            slot.startedAt = 0;
+        }
+    }
+
+    /**
+     * 直接在Poller线程中执行的请求数
+     */
+    public long getInlineCount() {
+        return inlineCount.sum();
+    }
+
+    /**
+     * 执行时间超过maxBlocking的请求数
+     */
+    public long getBlockedCount() {
+        return blockedCount.sum();
+    }
+
+    private void check() {
+        long now = System.nanoTime();
+        for (Slot slot : slots) {
+            long startedAt = slot.startedAt;
+            if (startedAt == 0 || startedAt == slot.warnedAt || now - startedAt <= maxBlockingNanos) {
+                continue;
+            }
+            slot.warnedAt = startedAt;
+            blockedCount.increment();
+            StringBuilder stack = new StringBuilder();
+            for (StackTraceElement element : slot.thread.getStackTrace()) {
+                stack.append("\n\tat ").append(element);
+            }
+            logger.warn("{} 中直接执行的请求{}已经阻塞{}ms，同一个Poller上的连接都在等待，" +
+                            "servlet或filter不应该声明NonBlocking{}", slot.thread.getName(), slot.url,
+                    TimeUnit.NANOSECONDS.toMillis(now - startedAt), stack);
+        }
+    }
+}
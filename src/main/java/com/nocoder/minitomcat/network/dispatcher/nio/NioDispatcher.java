@@ -1,57 +1,182 @@
 package com.nocoder.minitomcat.network.dispatcher.nio;
 
-import com.nocoder.minitomcat.exception.ServerErrorException;
 import com.nocoder.minitomcat.exception.base.ServletException;
 import com.nocoder.minitomcat.network.dispatcher.AbstractDispatcher;
+import com.nocoder.minitomcat.network.handler.AbstractRequestHandler;
 import com.nocoder.minitomcat.network.handler.nio.NioRequestHandler;
 import com.nocoder.minitomcat.network.wrapper.SocketWrapper;
 import com.nocoder.minitomcat.network.wrapper.nio.NioSocketWrapper;
+import com.nocoder.minitomcat.request.HttpRequestReader;
 import com.nocoder.minitomcat.request.Request;
 import com.nocoder.minitomcat.response.Response;
+import com.nocoder.minitomcat.util.PropertyUtil;
 import lombok.extern.slf4j.Slf4j;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 
 /**
+ * 响应缓存命中的请求，以及servlet和filter都声明了NonBlocking的请求，直接在Poller线程中执行，不经过worker线程池；
+ * 响应一次非阻塞写写不完时，剩余部分由worker线程池写出
+ * server.inline.enabled       是否开启，默认true
+ * server.inline.max-blocking  直接执行超过该毫秒数时打印警告，默认20
  * @author 29282
  */
 @Slf4j
 public class NioDispatcher extends AbstractDispatcher {
     private final Logger logger = LoggerFactory.getLogger(NioDispatcher.class);
 
+    private final boolean inlineEnabled;
+    private InlineWatchdog inlineWatchdog;
+
+    public NioDispatcher() {
+        this.inlineEnabled = Boolean.parseBoolean(PropertyUtil.getProperty("server.inline.enabled", "true"));
+        if (inlineEnabled) {
+            long maxBlocking = Long.parseLong(PropertyUtil.getProperty("server.inline.max-blocking", "20"));
+            this.inlineWatchdog = new InlineWatchdog(maxBlocking, Math.max(1, maxBlocking / 2));
+            this.inlineWatchdog.start();
+        }
+    }
+
     /**
      * 分发请求，注意IO读取必须放在IO线程中进行，不能放到线程池中，否则会出现多个线程同时读同一个socket数据的情况
-     * 1、读取数据
-     * 2、构造request，response
-     * 3、将业务放入到线程池中处理
+     * 1、读取数据，交给连接上的HttpRequestReader增量解析（multipart请求体会边读边写入part）
+     * 2、请求未读完时重新注册到Poller，等待下一次读就绪事件
+     * 3、读完后构造request，response，能直接执行的请求在当前线程中执行，其余的将业务放入到线程池中处理
      */
     @Override
     public void doDispatch(SocketWrapper socketWrapper) {
         NioSocketWrapper nioSocketWrapper = (NioSocketWrapper) socketWrapper;
-        logger.info("已经将请求放入worker线程池中");
-        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        HttpRequestReader reader = nioSocketWrapper.getRequestReader();
+        ByteBuffer buffer = nioSocketWrapper.getNioPoller().getReadBuffer();
+        buffer.clear();
         logger.info("开始读取Request");
         Request request;
         Response response = null;
         try {
-            ByteArrayOutputStream requestData = new ByteArrayOutputStream();
-            while (nioSocketWrapper.getSocketChannel().read(buffer) > 0) {
+            boolean finished = false;
+            int len;
+            while ((len = nioSocketWrapper.getSocketChannel().read(buffer)) > 0) {
                 buffer.flip();
-                requestData.write(buffer.array());
+                finished = reader.feed(buffer.array(), 0, buffer.limit());
+                buffer.clear();
+                if (finished) {
+                    break;
+                }
+            }
+            if (!finished) {
+                if (len < 0) {
+                    logger.info("客户端{} 已关闭连接", nioSocketWrapper.getSocketChannel());
+                    nioSocketWrapper.close();
+                } else {
+                    // 请求尚未读完，等待下一次读就绪
+                    nioSocketWrapper.getNioPoller().register(nioSocketWrapper.getSocketChannel(), false);
+                }
+                return;
             }
-            requestData.close();
-            request = new Request(requestData.toByteArray());
-            response = new Response();
-            pool.execute(new NioRequestHandler(nioSocketWrapper, servletContext, exceptionHandler, resourceHandler, request, response));
+            request = reader.getRequest();
+            // 优先复用连接上回收的handler/request/response
+            AbstractRequestHandler handler = nioSocketWrapper.takeRecycledHandler();
+            if (handler != null) {
+                handler.init(request, handler.getResponse());
+            } else {
+                response = new Response();
+                handler = new NioRequestHandler(nioSocketWrapper, servletContext, exceptionHandler, resourceHandler, request, response);
+                handler.setAsyncTimeoutChecker(asyncTimeoutChecker);
+            }
+            if (inlineEnabled && runInline(handler)) {
+                return;
+            }
+            execute(handler);
+            logger.info("已经将请求放入worker线程池中");
         } catch (IOException e) {
             e.printStackTrace();
-            exceptionHandler.handle(new ServerErrorException(), response, nioSocketWrapper);
+            reader.abort();
+            closeQuietly(nioSocketWrapper);
         } catch (ServletException e) {
+            reader.abort();
+            if (response == null) {
+                response = new Response();
+            }
             exceptionHandler.handle(e, response, nioSocketWrapper);
+            rejectAndClose(nioSocketWrapper, response);
+        }
+    }
+
+    /**
+     * 在Poller线程中直接执行请求：先查响应缓存，没有命中时只有声明了NonBlocking的请求才继续执行
+     * 异常不能抛到Poller的循环中，否则Poller线程会退出，这里关闭出错的连接
+     * @return 请求是否已经执行，返回false时交给worker线程池
+     */
+    private boolean runInline(AbstractRequestHandler handler) {
+        NioSocketWrapper nioSocketWrapper = (NioSocketWrapper) handler.getSocketWrapper();
+        NioRequestHandler nioHandler = (NioRequestHandler) handler;
+        // 写回响应后handler会被回收，提前取出url
+        inlineWatchdog.begin(handler.getRequest().getUrl());
+        // 写回时只做一次非阻塞写，写不完的部分交给worker线程池，Poller线程不等待可写
+        nioHandler.setInline(true);
+        try {
+            if (handler.serveCachedInline()) {
+                return true;
+            }
+            if (!handler.isNonBlocking()) {
+                return false;
+            }
+            handler.run();
+            logger.info("已经在Poller线程中处理请求");
+            return true;
+        } catch (RuntimeException e) {
+            logger.error("在Poller线程中处理请求失败", e);
+            closeQuietly(nioSocketWrapper);
+            return true;
+        } finally {
+            // 之后在其他线程中写回的响应（异步请求）按普通方式写出
+            nioHandler.setInline(false);
+            inlineWatchdog.end();
+        }
+    }
+
+    /**
+     * 直接执行的请求数和其中阻塞超时的请求数
+     * @return 没有开启时返回null
+     */
+    public InlineWatchdog getInlineWatchdog() {
+        return inlineWatchdog;
+    }
+
+    @Override
+    public void shutdown() {
+        if (inlineWatchdog != null) {
+            inlineWatchdog.shutdown();
+        }
+        super.shutdown();
+    }
+
+    /**
+     * 请求读取或解析失败时直接写回错误响应并关闭连接，剩余的请求数据不再读取
+     * 由于处理期间连接不再关注读事件，这里必须关闭连接，否则连接会一直挂在Poller上
+     */
+    private void rejectAndClose(NioSocketWrapper nioSocketWrapper, Response response) {
+        if (!nioSocketWrapper.getSocketChannel().isOpen()) {
+            return;
+        }
+        try {
+            nioSocketWrapper.getSocketChannel().write(response.getResponseByteBuffer());
+            nioSocketWrapper.close();
+        } catch (IOException e) {
+            logger.error("写回错误响应失败", e);
+        } finally {
+            response.release();
+        }
+    }
+
+    private void closeQuietly(NioSocketWrapper nioSocketWrapper) {
+        try {
+            nioSocketWrapper.close();
+        } catch (IOException e) {
+            logger.error("关闭连接失败", e);
         }
     }
 }
@@ -7,6 +7,7 @@ import com.nocoder.minitomcat.network.connector.nio.NioPoller;
 import com.nocoder.minitomcat.network.dispatcher.nio.NioDispatcher;
 import com.nocoder.minitomcat.network.endpoint.Endpoint;
 import com.nocoder.minitomcat.network.wrapper.nio.NioSocketWrapper;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ThreadFactory;
 import lombok.extern.slf4j.Slf4j;
 import org.slf4j.Logger;
@@ -142,6 +143,10 @@ public class NioEndpoint extends Endpoint {
     nioDispatcher.doDispatch(socketWrapper);
   }
 
+  public Executor getWorkerExecutor() {
+    return nioDispatcher.getExecutor();
+  }
+
   /**
    * 轮询Poller，实现负载均衡
    */
@@ -1,6 +1,7 @@
 package com.nocoder.minitomcat.network.handler;
 
 import com.nocoder.minitomcat.context.ServletContext;
+import com.nocoder.minitomcat.enumeration.RequestMethod;
 import com.nocoder.minitomcat.exception.FilterNotFoundException;
 import com.nocoder.minitomcat.exception.ServerErrorException;
 import com.nocoder.minitomcat.exception.ServletNotFoundException;
@@ -8,15 +9,26 @@ import com.nocoder.minitomcat.exception.base.ServletException;
 import com.nocoder.minitomcat.exception.handler.ExceptionHandler;
 import com.nocoder.minitomcat.filter.Filter;
 import com.nocoder.minitomcat.filter.FilterChain;
+import com.nocoder.minitomcat.network.dispatcher.AsyncTimeoutChecker;
+import com.nocoder.minitomcat.network.dispatcher.RequestClass;
 import com.nocoder.minitomcat.network.wrapper.SocketWrapper;
+import com.nocoder.minitomcat.request.AsyncContext;
 import com.nocoder.minitomcat.request.Request;
 import com.nocoder.minitomcat.resource.ResourceHandler;
 import com.nocoder.minitomcat.response.Response;
+import com.nocoder.minitomcat.response.cache.CachedResponse;
+import com.nocoder.minitomcat.response.cache.CoalescingPolicy;
+import com.nocoder.minitomcat.response.cache.RequestCoalescer;
+import com.nocoder.minitomcat.response.cache.ResponseCachePolicy;
+import com.nocoder.minitomcat.response.sse.EventStream;
+import com.nocoder.minitomcat.servlet.NonBlocking;
 import com.nocoder.minitomcat.servlet.Servlet;
+import com.nocoder.minitomcat.websocket.WebSocketEndpoint;
 import lombok.extern.slf4j.Slf4j;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.util.List;
 import java.util.concurrent.locks.AbstractQueuedSynchronizer;
 
@@ -40,13 +52,54 @@ public abstract class AbstractRequestHandler implements FilterChain, Runnable {
     protected Servlet servlet;
     protected List<Filter> filters;
     private int filterIndex = 0;
+    /**
+     * 当前请求所在servlet映射的响应缓存配置，只有GET请求才可能不为null
+     */
+    protected ResponseCachePolicy cachePolicy;
+    /**
+     * 当前请求所在servlet映射的请求合并配置，只有GET请求才可能不为null
+     */
+    protected CoalescingPolicy coalescingPolicy;
+    /**
+     * 当前请求作为执行者时，等待它的响应的相同请求
+     */
+    private RequestCoalescer.Flight flight;
+    /**
+     * 已经在IO线程中查过响应缓存并且没有命中，run时不再重复查询
+     */
+    private boolean cacheMissed;
+    /**
+     * 在worker线程池中排队时的类别，由Dispatcher在路由后设置
+     */
+    private RequestClass requestClass = RequestClass.API;
+    /**
+     * servlet调用startAsync后不为null，此时service返回不会写回响应
+     */
+    protected volatile AsyncContext asyncContext;
+    /**
+     * 每次回收加一；同步请求在flushResponse中就交还给了连接，之后可能已经在其他线程中处理下一个请求，
+     * run结束时据此判断asyncContext是否还属于本次请求
+     */
+    private volatile int generation;
+    private AsyncTimeoutChecker asyncTimeoutChecker;
 
     public AbstractRequestHandler(SocketWrapper socketWrapper, ServletContext servletContext, ExceptionHandler exceptionHandler, ResourceHandler resourceHandler, Request request, Response response) throws ServletNotFoundException, FilterNotFoundException {
         this.socketWrapper = socketWrapper;
         this.servletContext = servletContext;
         this.exceptionHandler = exceptionHandler;
         this.resourceHandler = resourceHandler;
+        init(request, response);
+    }
+
+    /**
+     * 绑定一个请求，连接复用handler时每个新请求都会调用一次
+     * @param request
+     * @param response
+     */
+    public void init(Request request, Response response) throws ServletNotFoundException, FilterNotFoundException {
         this.isFinished = false;
+        this.filterIndex = 0;
+        this.asyncContext = null;
         this.request = request;
         this.response = response;
         request.setServletContext(servletContext);
@@ -56,6 +109,103 @@ public abstract class AbstractRequestHandler implements FilterChain, Runnable {
         servlet = servletContext.mapServlet(request.getUrl());
         // 根据url查询匹配的filter，结果是0个或多个
         filters = servletContext.mapFilter(request.getUrl());
+        boolean get = request.getMethod() == RequestMethod.GET;
+        cachePolicy = get ? servletContext.mapResponseCachePolicy(request.getUrl()) : null;
+        coalescingPolicy = get ? servletContext.mapCoalescingPolicy(request.getUrl()) : null;
+        flight = null;
+        cacheMissed = false;
+        requestClass = RequestClass.API;
+    }
+
+    /**
+     * 请求结束后回收request和response，返回当前handler能否被连接复用
+     * 调试模式下只回收不复用，应用代码再使用旧对象时会抛出异常
+     * @return
+     */
+    public boolean recycle() {
+        if (!Request.RECYCLE) {
+            return false;
+        }
+        generation++;
+        request.recycle();
+        response.recycle();
+        servlet = null;
+        filters = null;
+        cachePolicy = null;
+        coalescingPolicy = null;
+        flight = null;
+        filterIndex = 0;
+        asyncContext = null;
+        return !Request.RECYCLE_DEBUG;
+    }
+
+    /**
+     * 进入异步模式，由Request.startAsync调用
+     * @return
+     */
+    public AsyncContext startAsync() {
+        if (asyncContext != null) {
+            throw new IllegalStateException("async already started");
+        }
+        if (isFinished) {
+            throw new IllegalStateException("response already flushed");
+        }
+        asyncContext = new AsyncContext(this, request, response);
+        if (asyncTimeoutChecker != null) {
+            asyncTimeoutChecker.register(asyncContext);
+        }
+        return asyncContext;
+    }
+
+    public boolean isAsyncStarted() {
+        return asyncContext != null;
+    }
+
+    public AsyncContext getAsyncContext() {
+        return asyncContext;
+    }
+
+    /**
+     * 当前的回收次数，在run之前取得，之后交给isAsyncStartedSince
+     */
+    public int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * run返回后判断本次请求是否进入了异步模式并且还没有写回
+     * 同步请求写回后handler可能已经被回收并处理下一个请求，所以与run中一样先读asyncContext再比较generation
+     */
+    public boolean isAsyncStartedSince(int startGeneration) {
+        AsyncContext async = asyncContext;
+        return async != null && generation == startGeneration;
+    }
+
+    /**
+     * 由Dispatcher在创建handler时设置，用于检测异步请求超时
+     * @param asyncTimeoutChecker
+     */
+    public void setAsyncTimeoutChecker(AsyncTimeoutChecker asyncTimeoutChecker) {
+        this.asyncTimeoutChecker = asyncTimeoutChecker;
+    }
+
+    /**
+     * 将当前连接切换为事件流，只有NIO连接器支持
+     * @return
+     * @throws IOException
+     */
+    public EventStream openEventStream() throws IOException {
+        throw new UnsupportedOperationException("event stream is only supported by the NIO connector");
+    }
+
+    /**
+     * 将当前连接升级为WebSocket，只有NIO连接器支持
+     * @param endpoint
+     * @throws IOException
+     * @throws ServletException 不是合法的升级请求
+     */
+    public void upgradeToWebSocket(WebSocketEndpoint endpoint) throws IOException, ServletException {
+        throw new UnsupportedOperationException("websocket is only supported by the NIO connector");
     }
 
     public Logger getLogger() {
@@ -90,6 +240,14 @@ public abstract class AbstractRequestHandler implements FilterChain, Runnable {
         return isFinished;
     }
 
+    public RequestClass getRequestClass() {
+        return requestClass;
+    }
+
+    public void setRequestClass(RequestClass requestClass) {
+        this.requestClass = requestClass;
+    }
+
     public Servlet getServlet() {
         return servlet;
     }
@@ -115,15 +273,74 @@ public abstract class AbstractRequestHandler implements FilterChain, Runnable {
      */
     @Override
     public void run() {
-        // 如果没有filter，则直接执行servlet
-        if (filters.isEmpty()) {
-            service();
-        } else {
-            // 先执行filter
-            doFilter(request, response);
+        int startGeneration = generation;
+        // 作为执行者加入的请求合并，service结束时handler可能已被复用，不能再读flight字段
+        RequestCoalescer.Flight joined = null;
+        try {
+            // 命中响应缓存时直接写回，filter和servlet都不执行
+            if (cachePolicy != null && !cacheMissed && serveFromCache()) {
+                return;
+            }
+            // 有相同的请求正在执行时等待并复用它的响应
+            if (coalescingPolicy != null && serveCoalesced()) {
+                return;
+            }
+            joined = flight;
+            // 如果没有filter，则直接执行servlet
+            if (filters.isEmpty()) {
+                service();
+            } else {
+                // 先执行filter
+                doFilter(request, response);
+            }
+        } finally {
+            // 没有在service中交出响应（filter拦截、异步、异常），让等待的请求自己执行；已经交出的再abandon不起作用
+            if (joined != null) {
+                servletContext.getRequestCoalescer().abandon(joined);
+            }
+            // 异步模式下worker线程到这里就释放了，响应在complete之后写回
+            // 同步请求在service中已经写回并回收，handler可能正在处理下一个请求，
+            // 先读asyncContext再比较generation，generation没有变化才说明读到的是本次请求的asyncContext
+            AsyncContext async = asyncContext;
+            if (async != null && generation == startGeneration) {
+                async.dispatchReturned();
+            }
         }
     }
 
+    /**
+     * servlet和映射到的所有filter都声明了NonBlocking时，可以直接在IO线程中执行；
+     * 开启了请求合并时可能要等待相同请求的响应，不能直接执行
+     * @return
+     */
+    public boolean isNonBlocking() {
+        if (coalescingPolicy != null || !(servlet instanceof NonBlocking)) {
+            return false;
+        }
+        for (int i = 0; i < filters.size(); i++) {
+            if (!(filters.get(i) instanceof NonBlocking)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 在IO线程中查询响应缓存，命中时直接写回
+     * 没有命中时记录下来，交给worker线程执行时不再重复查询
+     * @return 是否已经写回响应
+     */
+    public boolean serveCachedInline() {
+        if (cachePolicy == null || cacheMissed) {
+            return false;
+        }
+        if (serveFromCache()) {
+            return true;
+        }
+        cacheMissed = true;
+        return false;
+    }
+
     /**
      * 递归执行，自定义filter中如果同意放行，那么会调用filterChain(也就是requestHandler)的doiFilter方法，
      * 此时会执行下一个filter的doFilter方法；
@@ -157,13 +374,52 @@ public abstract class AbstractRequestHandler implements FilterChain, Runnable {
             e.printStackTrace();
             exceptionHandler.handle(new ServerErrorException(), response, socketWrapper);
         } finally {
-            if (!isFinished) {
+            if (!isFinished && asyncContext == null) {
+                if (cachePolicy != null) {
+                    servletContext.getResponseCache().store(request, response, cachePolicy);
+                }
+                if (flight != null) {
+                    servletContext.getRequestCoalescer().complete(flight, request, response);
+                    flight = null;
+                }
                 flushResponse();
             }
         }
         logger.info("请求处理完毕");
     }
 
+    /**
+     * 加入相同请求的执行，成为执行者时返回false继续执行；
+     * 否则等待执行者的响应，不能复用时同样返回false自己执行
+     */
+    private boolean serveCoalesced() {
+        RequestCoalescer coalescer = servletContext.getRequestCoalescer();
+        RequestCoalescer.Flight joined = coalescer.join(request, coalescingPolicy);
+        if (joined.isLeader()) {
+            flight = joined;
+            return false;
+        }
+        CachedResponse shared = coalescer.await(joined, request, coalescingPolicy);
+        if (shared == null) {
+            return false;
+        }
+        shared.applyTo(response);
+        logger.info("复用相同请求的响应 {}", request.getUrl());
+        flushResponse();
+        return true;
+    }
+
+    private boolean serveFromCache() {
+        CachedResponse cached = servletContext.getResponseCache().lookup(request, cachePolicy);
+        if (cached == null) {
+            return false;
+        }
+        cached.applyTo(response);
+        logger.info("响应缓存命中 {}", request.getUrl());
+        flushResponse();
+        return true;
+    }
+
     /**
      * 响应数据写回到客户端
      */
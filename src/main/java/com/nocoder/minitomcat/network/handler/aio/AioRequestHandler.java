@@ -16,6 +16,7 @@ import lombok.extern.slf4j.Slf4j;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.channels.CompletionHandler;
@@ -45,19 +46,40 @@ public class AioRequestHandler extends AbstractRequestHandler {
 
     /**
      * 写回后重新调用readHandler，进行读取（猜测AIO也是保活的）
+     * 写回完成后回收当前handler，下一个请求直接复用；响应已中止时不写出剩余数据，直接关闭连接
      */
     @Override
     public void flushResponse() {
         isFinished = true;
-        ByteBuffer[] responseData = response.getResponseByteBuffer();
         AioSocketWrapper aioSocketWrapper = (AioSocketWrapper) socketWrapper;
+        if (response.isAborted()) {
+            logger.info("响应已中止，关闭连接");
+            response.release();
+            WebApplication.getServletContext().afterRequestDestroyed(request);
+            try {
+                aioSocketWrapper.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+        ByteBuffer[] responseData = response.getResponseByteBuffer();
         AsynchronousSocketChannel socketChannel = aioSocketWrapper.getSocketChannel();
-        socketChannel.write(responseData, 0, 2, 0L, TimeUnit.MILLISECONDS, null, new CompletionHandler<Long, Object>() {
+        socketChannel.write(responseData, 0, responseData.length, 0L, TimeUnit.MILLISECONDS, null, new CompletionHandler<Long, Object>() {
 
             @Override
             public void completed(Long result, Object attachment) {
+                // 聚集写可能只写出一部分，继续写剩余的数据
+                if (responseData[responseData.length - 1].hasRemaining()) {
+                    socketChannel.write(responseData, 0, responseData.length, 0L, TimeUnit.MILLISECONDS, null, this);
+                    return;
+                }
                 logger.info("写入完毕...");
-                ByteBuffer byteBuffer = ByteBuffer.allocate(1024);
+                response.release();
+                WebApplication.getServletContext().afterRequestDestroyed(request);
+                aioSocketWrapper.recycle(AioRequestHandler.this);
+                ByteBuffer byteBuffer = aioSocketWrapper.getReadBuffer();
+                byteBuffer.clear();
                 socketChannel.read(byteBuffer, byteBuffer, readHandler);
             }
 
@@ -65,8 +87,9 @@ public class AioRequestHandler extends AbstractRequestHandler {
             public void failed(Throwable e, Object attachment) {
                 logger.info("写入失败...");
                 e.printStackTrace();
+                response.release();
+                WebApplication.getServletContext().afterRequestDestroyed(request);
             }
         });
-        WebApplication.getServletContext().afterRequestDestroyed(request);
     }
 }
@@ -39,12 +39,22 @@ public class BioRequestHandler extends AbstractRequestHandler {
 
 
     /**
-     * 写回后立即关闭socket
+     * 写回后立即关闭socket，响应已中止时不写出剩余数据直接关闭
      */
     @Override
     public void flushResponse() {
         isFinished = true;
         BioSocketWrapper bioSocketWrapper = (BioSocketWrapper) socketWrapper;
+        if (response.isAborted()) {
+            response.release();
+            try {
+                bioSocketWrapper.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            WebApplication.getServletContext().afterRequestDestroyed(request);
+            return;
+        }
         byte[] bytes = response.getResponseBytes();
         OutputStream os = null;
         try {
@@ -4,13 +4,20 @@ import com.nocoder.minitomcat.context.ServletContext;
 import com.nocoder.minitomcat.context.WebApplication;
 import com.nocoder.minitomcat.exception.FilterNotFoundException;
 import com.nocoder.minitomcat.exception.ServletNotFoundException;
+import com.nocoder.minitomcat.exception.base.ServletException;
 import com.nocoder.minitomcat.exception.handler.ExceptionHandler;
+import com.nocoder.minitomcat.network.connector.nio.NioEventStream;
+import com.nocoder.minitomcat.network.connector.nio.NioWebSocketConnection;
 import com.nocoder.minitomcat.network.handler.AbstractRequestHandler;
 import com.nocoder.minitomcat.network.wrapper.SocketWrapper;
 import com.nocoder.minitomcat.network.wrapper.nio.NioSocketWrapper;
 import com.nocoder.minitomcat.request.Request;
 import com.nocoder.minitomcat.resource.ResourceHandler;
+import com.nocoder.minitomcat.response.Header;
 import com.nocoder.minitomcat.response.Response;
+import com.nocoder.minitomcat.response.sse.EventStream;
+import com.nocoder.minitomcat.websocket.WebSocketEndpoint;
+import com.nocoder.minitomcat.websocket.WebSocketHandshake;
 import lombok.extern.slf4j.Slf4j;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -27,33 +34,138 @@ import java.util.List;
 @Slf4j
 public class NioRequestHandler extends AbstractRequestHandler {
     private final Logger logger = LoggerFactory.getLogger(NioRequestHandler.class);
+
+    /**
+     * 是否正在Poller线程中直接执行，由NioDispatcher设置
+     */
+    private boolean inline;
     
     public NioRequestHandler(SocketWrapper socketWrapper, ServletContext servletContext, ExceptionHandler exceptionHandler, ResourceHandler resourceHandler, Request request, Response response) throws ServletNotFoundException, FilterNotFoundException {
         super(socketWrapper, servletContext, exceptionHandler, resourceHandler, request, response);
     }
 
+    public void setInline(boolean inline) {
+        this.inline = inline;
+    }
+
     /**
      * 写入后会根据请求头Connection来判断是关闭连接还是重新将连接放回Poller，实现保活
+     * 保活时先回收当前handler再重新注册，下一个请求会复用同一组handler/request/response
+     * 在Poller线程中直接执行时只做一次非阻塞写，写不完（响应大或者客户端读得慢）时把剩余部分交给worker线程池写出，
+     * Poller线程不会等待可写
+     * 响应已中止时不写出剩余数据，直接关闭连接
      */
     @Override
     public void flushResponse() {
         isFinished = true;
         NioSocketWrapper nioSocketWrapper = (NioSocketWrapper) socketWrapper;
+        if (response.isAborted()) {
+            // 已提交的响应不完整，不写出结束块，直接断开让客户端知道响应被截断
+            logger.info("ABORT: 响应已中止，关闭客户端连接{}", nioSocketWrapper.getSocketChannel());
+            response.release();
+            WebApplication.getServletContext().afterRequestDestroyed(request);
+            closeQuietly(nioSocketWrapper);
+            return;
+        }
         ByteBuffer[] responseData = response.getResponseByteBuffer();
-        try {
-            nioSocketWrapper.getSocketChannel().write(responseData);
-            List<String> connection = request.getHeaders().get("Connection");
-            if (connection != null && "close".equals(connection.get(0))) {
-                logger.info("CLOSE: 客户端连接{} 已关闭", nioSocketWrapper.getSocketChannel());
-                nioSocketWrapper.close();
-            } else {
-                // keep-alive 重新注册到Poller中
-                logger.info("KEEP-ALIVE: 客户端连接{} 重新注册到Poller中", nioSocketWrapper.getSocketChannel());
-                nioSocketWrapper.getNioPoller().register(nioSocketWrapper.getSocketChannel(), false);
+        if (inline) {
+            try {
+                if (!nioSocketWrapper.tryWrite(responseData)) {
+                    logger.info("响应没有一次写完，交给worker线程池继续写出");
+                    nioSocketWrapper.getServer().getWorkerExecutor().execute(() -> finishFlush(nioSocketWrapper, responseData));
+                    return;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                response.release();
+                WebApplication.getServletContext().afterRequestDestroyed(request);
+                closeQuietly(nioSocketWrapper);
+                return;
             }
+        }
+        finishFlush(nioSocketWrapper, responseData);
+    }
+
+    /**
+     * 写出剩余的响应数据，之后关闭连接或者重新注册到Poller
+     */
+    private void finishFlush(NioSocketWrapper nioSocketWrapper, ByteBuffer[] responseData) {
+        try {
+            nioSocketWrapper.write(responseData);
         } catch (IOException e) {
             e.printStackTrace();
+            WebApplication.getServletContext().afterRequestDestroyed(request);
+            closeQuietly(nioSocketWrapper);
+            return;
+        } finally {
+            response.release();
         }
+        List<String> connection = request.getHeaders().get("Connection");
+        boolean close = connection != null && "close".equals(connection.get(0));
+        // 必须在重新注册之前完成，注册之后Poller线程随时可能读取下一个请求
         WebApplication.getServletContext().afterRequestDestroyed(request);
+        if (close) {
+            logger.info("CLOSE: 客户端连接{} 已关闭", nioSocketWrapper.getSocketChannel());
+            closeQuietly(nioSocketWrapper);
+        } else {
+            // keep-alive 重新注册到Poller中
+            logger.info("KEEP-ALIVE: 客户端连接{} 重新注册到Poller中", nioSocketWrapper.getSocketChannel());
+            nioSocketWrapper.recycle(this);
+            nioSocketWrapper.getNioPoller().register(nioSocketWrapper.getSocketChannel(), false);
+        }
+    }
+
+    /**
+     * 写出响应头后把连接交还给Poller，之后由NioEventStream在Poller线程中写出事件，
+     * 请求到这里就结束了，handler和request/response不会被复用
+     */
+    @Override
+    public EventStream openEventStream() throws IOException {
+        if (isFinished || asyncContext != null) {
+            throw new IllegalStateException("response already flushed or async started");
+        }
+        NioSocketWrapper nioSocketWrapper = (NioSocketWrapper) socketWrapper;
+        response.setContentType("text/event-stream;charset=utf-8");
+        response.addHeader(new Header("Cache-Control", "no-cache"));
+        // 提交响应头，未声明长度所以使用chunked编码
+        response.flushBuffer();
+        isFinished = true;
+        response.release();
+        WebApplication.getServletContext().afterRequestDestroyed(request);
+        NioEventStream eventStream = new NioEventStream(nioSocketWrapper);
+        nioSocketWrapper.setChannelHandler(eventStream);
+        logger.info("EVENT-STREAM: 客户端连接{} 切换为事件流", nioSocketWrapper.getSocketChannel());
+        nioSocketWrapper.getNioPoller().register(nioSocketWrapper.getSocketChannel(), false);
+        return eventStream;
+    }
+
+    /**
+     * 写出101响应后把连接交还给Poller，之后帧的读写都由NioWebSocketConnection处理
+     */
+    @Override
+    public void upgradeToWebSocket(WebSocketEndpoint endpoint) throws IOException, ServletException {
+        if (isFinished || asyncContext != null) {
+            throw new IllegalStateException("response already flushed or async started");
+        }
+        String accept = WebSocketHandshake.accept(request);
+        NioSocketWrapper nioSocketWrapper = (NioSocketWrapper) socketWrapper;
+        nioSocketWrapper.write(new ByteBuffer[]{ByteBuffer.wrap(WebSocketHandshake.response(accept))});
+        isFinished = true;
+        response.release();
+        WebApplication.getServletContext().afterRequestDestroyed(request);
+        NioWebSocketConnection connection = new NioWebSocketConnection(nioSocketWrapper, endpoint,
+                nioSocketWrapper.getServer().getWorkerExecutor());
+        nioSocketWrapper.setChannelHandler(connection);
+        connection.start();
+        logger.info("WEBSOCKET: 客户端连接{} 升级为WebSocket", nioSocketWrapper.getSocketChannel());
+        nioSocketWrapper.getNioPoller().register(nioSocketWrapper.getSocketChannel(), false);
+    }
+
+    private void closeQuietly(NioSocketWrapper nioSocketWrapper) {
+        try {
+            nioSocketWrapper.close();
+        } catch (IOException e) {
+            logger.error("关闭连接失败", e);
+        }
     }
 }
@@ -1,7 +1,22 @@
 package com.nocoder.minitomcat.network.wrapper;
 
 import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
 
 public interface SocketWrapper {
     void close() throws IOException;
+
+    /**
+     * 阻塞写，直到所有缓冲都写完，由worker线程在流式输出响应时调用
+     * @param buffers
+     * @throws IOException
+     */
+    void write(ByteBuffer[] buffers) throws IOException;
+
+    /**
+     * 客户端地址，在连接建立时取得，同一连接上的请求返回同一个对象
+     * @return 取不到时返回null
+     */
+    InetAddress getRemoteAddress();
 }
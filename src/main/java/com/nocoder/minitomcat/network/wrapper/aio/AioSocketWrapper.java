@@ -1,11 +1,21 @@
 package com.nocoder.minitomcat.network.wrapper.aio;
 
+import com.nocoder.minitomcat.constant.NetWorkConstant;
 import com.nocoder.minitomcat.network.endpoint.aio.AioEndpoint;
+import com.nocoder.minitomcat.network.handler.AbstractRequestHandler;
 import com.nocoder.minitomcat.network.wrapper.SocketWrapper;
+import com.nocoder.minitomcat.request.HttpRequestReader;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousSocketChannel;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 @Slf4j
 public class AioSocketWrapper implements SocketWrapper {
@@ -13,17 +23,64 @@ public class AioSocketWrapper implements SocketWrapper {
     private AsynchronousSocketChannel socketChannel;
     private volatile long waitBegin;
     private volatile boolean isWorking;
+    /**
+     * 一个请求可能要经过多次read回调才能读完，读取状态保存在这里
+     */
+    private final HttpRequestReader requestReader;
+    /**
+     * 连接上复用的RequestHandler（连同它持有的Request和Response）
+     */
+    private volatile AbstractRequestHandler recycledHandler;
+    /**
+     * 连接上的读缓冲，同一时刻只有一个read在进行，可以复用
+     */
+    private final ByteBuffer readBuffer;
+    private final InetAddress remoteAddress;
     
     public AioSocketWrapper(AioEndpoint server, AsynchronousSocketChannel socketChannel) {
         this.server = server;
         this.socketChannel = socketChannel;
         this.isWorking = false;
+        this.requestReader = new HttpRequestReader();
+        this.readBuffer = ByteBuffer.allocate(8192);
+        InetAddress address = null;
+        try {
+            InetSocketAddress socketAddress = (InetSocketAddress) socketChannel.getRemoteAddress();
+            address = socketAddress == null ? null : socketAddress.getAddress();
+        } catch (IOException ignored) {
+        }
+        this.remoteAddress = address;
     }
     
     public void close() throws IOException {
+        requestReader.abort();
         socketChannel.close();
     }
 
+    /**
+     * AIO下用Future等待每次写完成，同一时刻只有一个write在进行
+     */
+    @Override
+    public void write(ByteBuffer[] buffers) throws IOException {
+        try {
+            for (ByteBuffer buffer : buffers) {
+                while (buffer.hasRemaining()) {
+                    socketChannel.write(buffer).get(NetWorkConstant.WRITE_TIMEOUT, TimeUnit.MILLISECONDS);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException | TimeoutException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public InetAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
     public AioEndpoint getServer() {
         return server;
     }
@@ -40,6 +97,34 @@ public class AioSocketWrapper implements SocketWrapper {
         this.socketChannel = socketChannel;
     }
 
+    public ByteBuffer getReadBuffer() {
+        return readBuffer;
+    }
+
+    public HttpRequestReader getRequestReader() {
+        return requestReader;
+    }
+
+    /**
+     * 请求处理完毕后回收handler及其持有的request/response，供同一连接上的下一个请求复用
+     * 由worker线程在写回响应之后、重新注册读事件之前调用
+     */
+    public void recycle(AbstractRequestHandler handler) {
+        if (handler.recycle()) {
+            requestReader.recycle(handler.getRequest());
+            this.recycledHandler = handler;
+        }
+    }
+
+    /**
+     * 取出可复用的handler，没有时返回null
+     */
+    public AbstractRequestHandler takeRecycledHandler() {
+        AbstractRequestHandler handler = this.recycledHandler;
+        this.recycledHandler = null;
+        return handler;
+    }
+
     public long getWaitBegin() {
         return waitBegin;
     }
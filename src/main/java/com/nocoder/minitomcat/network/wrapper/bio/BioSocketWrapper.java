@@ -4,7 +4,10 @@ import com.nocoder.minitomcat.network.wrapper.SocketWrapper;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 
 /**
  * Socket的包装类
@@ -16,6 +19,11 @@ public class BioSocketWrapper implements SocketWrapper {
         this.socket = socket;
     }
 
+    @Override
+    public InetAddress getRemoteAddress() {
+        return socket.getInetAddress();
+    }
+
     public Socket getSocket() {
         return socket;
     }
@@ -25,4 +33,20 @@ public class BioSocketWrapper implements SocketWrapper {
         socket.close();
     }
 
+    @Override
+    public void write(ByteBuffer[] buffers) throws IOException {
+        OutputStream os = socket.getOutputStream();
+        for (ByteBuffer buffer : buffers) {
+            if (buffer.hasArray()) {
+                os.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                buffer.position(buffer.limit());
+            } else {
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                os.write(bytes);
+            }
+        }
+        os.flush();
+    }
+
 }
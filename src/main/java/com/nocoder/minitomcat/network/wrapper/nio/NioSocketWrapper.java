@@ -1,11 +1,20 @@
 package com.nocoder.minitomcat.network.wrapper.nio;
 
+import com.nocoder.minitomcat.constant.NetWorkConstant;
+import com.nocoder.minitomcat.network.connector.nio.NioChannelHandler;
 import com.nocoder.minitomcat.network.connector.nio.NioPoller;
 import com.nocoder.minitomcat.network.endpoint.nio.NioEndpoint;
+import com.nocoder.minitomcat.network.handler.AbstractRequestHandler;
 import com.nocoder.minitomcat.network.wrapper.SocketWrapper;
+import com.nocoder.minitomcat.request.HttpRequestReader;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 
 @Slf4j
@@ -16,6 +25,19 @@ public class NioSocketWrapper implements SocketWrapper {
     private final boolean isNewSocket;
     private volatile long waitBegin;
     private volatile boolean isWorking;
+    /**
+     * 一个请求可能要经过多次读就绪事件才能读完，读取状态保存在这里
+     */
+    private final HttpRequestReader requestReader;
+    /**
+     * 连接上复用的RequestHandler（连同它持有的Request和Response）
+     */
+    private volatile AbstractRequestHandler recycledHandler;
+    /**
+     * 连接切换为事件流或WebSocket后不为null，之后不再读取HTTP请求
+     */
+    private volatile NioChannelHandler channelHandler;
+    private final InetAddress remoteAddress;
     
     public NioSocketWrapper(NioEndpoint server, SocketChannel socketChannel, NioPoller nioPoller, boolean isNewSocket) {
         this.server = server;
@@ -23,13 +45,70 @@ public class NioSocketWrapper implements SocketWrapper {
         this.nioPoller = nioPoller;
         this.isNewSocket = isNewSocket;
         this.isWorking = false;
+        this.requestReader = new HttpRequestReader();
+        this.remoteAddress = socketChannel.socket().getInetAddress();
     }
     
     public void close() throws IOException {
-        socketChannel.keyFor(nioPoller.getSelector()).cancel();
+        requestReader.abort();
+        SelectionKey key = socketChannel.keyFor(nioPoller.getSelector());
+        if (key != null) {
+            key.cancel();
+        }
         socketChannel.close();
     }
 
+    /**
+     * socket是非阻塞的，一次write可能写不完；写不进去时借助一个临时Selector等待可写
+     */
+    @Override
+    public void write(ByteBuffer[] buffers) throws IOException {
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        Selector selector = null;
+        try {
+            while (remaining > 0) {
+                long written = socketChannel.write(buffers);
+                remaining -= written;
+                if (written == 0) {
+                    if (selector == null) {
+                        selector = Selector.open();
+                        socketChannel.register(selector, SelectionKey.OP_WRITE);
+                    }
+                    if (selector.select(NetWorkConstant.WRITE_TIMEOUT) == 0) {
+                        throw new SocketTimeoutException("write timeout");
+                    }
+                    selector.selectedKeys().clear();
+                }
+            }
+        } finally {
+            if (selector != null) {
+                selector.close();
+            }
+        }
+    }
+
+    /**
+     * 只做一次非阻塞写，写不进去的部分留在buffers中，不等待可写
+     * @return 是否已经全部写出
+     */
+    public boolean tryWrite(ByteBuffer[] buffers) throws IOException {
+        socketChannel.write(buffers);
+        for (ByteBuffer buffer : buffers) {
+            if (buffer.hasRemaining()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public InetAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
     public NioEndpoint getServer() {
         return server;
     }
@@ -42,6 +121,38 @@ public class NioSocketWrapper implements SocketWrapper {
         return nioPoller;
     }
 
+    public HttpRequestReader getRequestReader() {
+        return requestReader;
+    }
+
+    /**
+     * 请求处理完毕后回收handler及其持有的request/response，供同一连接上的下一个请求复用
+     * 由worker线程在写回响应之后、重新注册读事件之前调用
+     */
+    public void recycle(AbstractRequestHandler handler) {
+        if (handler.recycle()) {
+            requestReader.recycle(handler.getRequest());
+            this.recycledHandler = handler;
+        }
+    }
+
+    /**
+     * 取出可复用的handler，没有时返回null
+     */
+    public AbstractRequestHandler takeRecycledHandler() {
+        AbstractRequestHandler handler = this.recycledHandler;
+        this.recycledHandler = null;
+        return handler;
+    }
+
+    public NioChannelHandler getChannelHandler() {
+        return channelHandler;
+    }
+
+    public void setChannelHandler(NioChannelHandler channelHandler) {
+        this.channelHandler = channelHandler;
+    }
+
     public boolean isNewSocket() {
         return isNewSocket;
     }
@@ -0,0 +1,162 @@
+package com.nocoder.minitomcat.request;
+
+import com.nocoder.minitomcat.exception.ServerErrorException;
+import com.nocoder.minitomcat.exception.base.ServletException;
+import com.nocoder.minitomcat.listener.AsyncListener;
+import com.nocoder.minitomcat.listener.event.AsyncEvent;
+import com.nocoder.minitomcat.network.handler.AbstractRequestHandler;
+import com.nocoder.minitomcat.response.Response;
+import com.nocoder.minitomcat.util.PropertyUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 异步请求上下文，由Request.startAsync创建
+ * servlet调用startAsync后直接返回，worker线程被释放，响应不会在service结束时写回；
+ * 之后可以在任意线程中写入response并调用complete，或者通过completeWhen交给一个CompletableFuture。
+ * 超时由连接器的AsyncTimeoutChecker检测，超时后先通知监听器，仍未完成则返回500。
+ * server.async.timeout 默认超时毫秒数，小于等于0表示不超时
+ * @author 29282
+ */
+@Slf4j
+public class AsyncContext {
+    private final Logger logger = LoggerFactory.getLogger(AsyncContext.class);
+
+    public static final long DEFAULT_TIMEOUT = Long.parseLong(PropertyUtil.getProperty("server.async.timeout", "30000"));
+
+    private final AbstractRequestHandler requestHandler;
+    private final Request request;
+    private final Response response;
+    private final List<AsyncListener> listeners;
+    private final AtomicBoolean completed;
+    /**
+     * service返回和complete各减一次，减到0的线程负责写回响应，
+     * 避免servlet还没有返回时就在其他线程中写回并回收了request/response
+     */
+    private final AtomicInteger pending;
+    private volatile long timeout;
+    private volatile long deadline;
+
+    public AsyncContext(AbstractRequestHandler requestHandler, Request request, Response response) {
+        this.requestHandler = requestHandler;
+        this.request = request;
+        this.response = response;
+        this.listeners = new CopyOnWriteArrayList<>();
+        this.completed = new AtomicBoolean();
+        this.pending = new AtomicInteger(2);
+        setTimeout(DEFAULT_TIMEOUT);
+    }
+
+    public Request getRequest() {
+        return request;
+    }
+
+    public Response getResponse() {
+        return response;
+    }
+
+    public void addListener(AsyncListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * 设置超时，从调用时开始计算
+     * @param timeout 毫秒，小于等于0表示不超时
+     */
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+        this.deadline = timeout > 0 ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    public boolean isCompleted() {
+        return completed.get();
+    }
+
+    /**
+     * 结束异步处理并写回响应，可以在任意线程中调用，重复调用无效
+     */
+    public void complete() {
+        if (completed.compareAndSet(false, true)) {
+            finish();
+        }
+    }
+
+    /**
+     * 按异常写入错误页面并结束异步处理
+     * 只有把completed从false改为true的线程才能修改response，
+     * 否则应用线程同时complete时，response可能已经写回并被下一个keep-alive请求复用
+     */
+    private void completeWithError(ServletException e) {
+        if (completed.compareAndSet(false, true)) {
+            requestHandler.getExceptionHandler().handle(e, response, requestHandler.getSocketWrapper());
+            finish();
+        }
+    }
+
+    private void finish() {
+        for (AsyncListener listener : listeners) {
+            listener.onComplete(new AsyncEvent(this));
+        }
+        release();
+    }
+
+    /**
+     * stage完成时结束异步处理，异常完成时按异常返回错误页面
+     * 响应内容应当在stage的回调中写入
+     */
+    public void completeWhen(CompletionStage<?> stage) {
+        stage.whenComplete((result, e) -> {
+            if (e != null) {
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                logger.error("异步处理失败", cause);
+                completeWithError(cause instanceof ServletException ? (ServletException) cause : new ServerErrorException());
+            } else {
+                complete();
+            }
+        });
+    }
+
+    /**
+     * servlet（或filter）执行完毕返回，由worker线程调用
+     */
+    public void dispatchReturned() {
+        release();
+    }
+
+    public boolean isExpired(long now) {
+        return !completed.get() && now >= deadline;
+    }
+
+    /**
+     * 超时处理，由连接器在worker线程池中调用
+     */
+    public void onTimeout() {
+        if (completed.get()) {
+            return;
+        }
+        logger.info("异步请求 {} 超时", request.getUrl());
+        for (AsyncListener listener : listeners) {
+            listener.onTimeout(new AsyncEvent(this));
+        }
+        // 监听器中已经complete的话这里什么也不做
+        completeWithError(new ServerErrorException());
+    }
+
+    private void release() {
+        if (pending.decrementAndGet() == 0 && !requestHandler.isFinished()) {
+            requestHandler.flushResponse();
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.nocoder.minitomcat.request;
+
+import com.nocoder.minitomcat.context.WebApplication;
+import com.nocoder.minitomcat.exception.RequestInvalidException;
+import com.nocoder.minitomcat.exception.RequestTooLargeException;
+import com.nocoder.minitomcat.exception.base.ServletException;
+import com.nocoder.minitomcat.request.multipart.MultipartConfig;
+import com.nocoder.minitomcat.request.multipart.MultipartParser;
+import com.nocoder.minitomcat.util.PropertyUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * 增量式的请求读取器，连接器每读到一段数据就调用一次feed
+ * 1、先缓存请求头，直到读到CRLFCRLF，解析请求行和请求头
+ * 2、再根据Content-Length读取请求体；multipart请求体直接交给MultipartParser，不在内存中拼接
+ * 非multipart的请求体在内存中拼接，长度不能超过server.max-body-size（默认2MB，-1表示不限制），超过时返回413
+ * NIO下一个请求可能要经过多次读就绪事件才能读完，所以读取器由NioSocketWrapper持有，跨多次读取保存状态
+ * @author 29282
+ */
+@Slf4j
+public class HttpRequestReader {
+    private final Logger logger = LoggerFactory.getLogger(HttpRequestReader.class);
+
+    /**
+     * 请求头的最大字节数
+     */
+    private static final int MAX_HEADER_SIZE = 16 * 1024;
+    /**
+     * 非multipart请求体的最大字节数
+     */
+    private static final long MAX_BODY_SIZE = Long.parseLong(PropertyUtil.getProperty("server.max-body-size", String.valueOf(2 * 1024 * 1024)));
+    private static final byte[] HEADER_END = {'\r', '\n', '\r', '\n'};
+    private static final byte[] EMPTY_BODY = new byte[0];
+
+    private final MultipartConfig multipartConfig;
+    private byte[] head;
+    private int headLength;
+    private Request request;
+    /**
+     * 上一个请求回收后的Request，下一个请求直接复用
+     */
+    private Request recycledRequest;
+    private MultipartParser multipartParser;
+    private ByteArrayOutputStream body;
+    private long contentLength;
+    private long received;
+    private boolean finished;
+
+    public HttpRequestReader() {
+        this(MultipartConfig.getDefault());
+    }
+
+    public HttpRequestReader(MultipartConfig multipartConfig) {
+        this.multipartConfig = multipartConfig;
+        this.head = new byte[1024];
+    }
+
+    /**
+     * 喂入一段从socket读到的数据
+     * @return 请求是否已经读取完整
+     */
+    public boolean feed(byte[] data, int offset, int length) throws ServletException, IOException {
+        if (finished || length <= 0) {
+            return finished;
+        }
+        if (request != null) {
+            feedBody(data, offset, length);
+            return finished;
+        }
+        int searchFrom = Math.max(0, headLength - HEADER_END.length + 1);
+        appendHead(data, offset, length);
+        int headEnd = indexOfHeaderEnd(searchFrom);
+        if (headEnd < 0) {
+            if (headLength > MAX_HEADER_SIZE) {
+                logger.info("请求头超过{}字节", MAX_HEADER_SIZE);
+                throw new RequestInvalidException();
+            }
+            return false;
+        }
+        if (recycledRequest != null) {
+            request = recycledRequest;
+            recycledRequest = null;
+        } else {
+            request = new Request();
+        }
+        request.parseHead(head, 0, headEnd);
+        contentLength = request.getContentLength();
+        String boundary = MultipartParser.getBoundary(request.getHeader("Content-Type"));
+        if (boundary != null) {
+            if (multipartConfig.getMaxRequestSize() >= 0 && contentLength > multipartConfig.getMaxRequestSize()) {
+                logger.info("Content-Length {} 超过上传大小限制", contentLength);
+                throw new RequestTooLargeException();
+            }
+            multipartParser = new MultipartParser(boundary, multipartConfig);
+        } else if (contentLength > 0) {
+            if (MAX_BODY_SIZE >= 0 && contentLength > MAX_BODY_SIZE) {
+                logger.info("Content-Length {} 超过请求体大小限制", contentLength);
+                throw new RequestTooLargeException();
+            }
+            body = new ByteArrayOutputStream((int) Math.min(contentLength, 8192));
+        }
+        if (contentLength == 0) {
+            complete();
+        } else if (headLength > headEnd) {
+            feedBody(head, headEnd, headLength - headEnd);
+        }
+        return finished;
+    }
+
+    /**
+     * 返回读取完毕的请求，之后读取器可以用来读取同一连接上的下一个请求
+     */
+    public Request getRequest() {
+        Request result = this.request;
+        reset();
+        return result;
+    }
+
+    /**
+     * 归还已回收的Request，供同一连接上的下一个请求复用
+     */
+    public void recycle(Request request) {
+        this.recycledRequest = request;
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * 是否已经读到了部分数据
+     */
+    public boolean isStarted() {
+        return headLength > 0;
+    }
+
+    /**
+     * 读取失败或连接关闭时丢弃已读取的数据，包括上传产生的临时文件
+     */
+    public void abort() {
+        if (multipartParser != null) {
+            multipartParser.cleanup();
+        }
+        reset();
+    }
+
+    private void reset() {
+        this.headLength = 0;
+        this.request = null;
+        this.multipartParser = null;
+        this.body = null;
+        this.contentLength = 0;
+        this.received = 0;
+        this.finished = false;
+    }
+
+    private void feedBody(byte[] data, int offset, int length) throws ServletException, IOException {
+        int n = (int) Math.min(length, contentLength - received);
+        if (multipartParser != null) {
+            multipartParser.feed(data, offset, n);
+        } else {
+            body.write(data, offset, n);
+        }
+        received += n;
+        if (received >= contentLength) {
+            complete();
+        }
+    }
+
+    private void complete() throws ServletException, IOException {
+        if (multipartParser != null) {
+            multipartParser.finish();
+            request.setParts(multipartParser.getParts());
+        } else {
+            request.parseBody(body == null ? EMPTY_BODY : body.toByteArray());
+        }
+        finished = true;
+        WebApplication.getServletContext().afterRequestCreated(request);
+    }
+
+    private void appendHead(byte[] data, int offset, int length) {
+        if (head.length - headLength < length) {
+            byte[] bigger = new byte[Math.max(head.length * 2, headLength + length)];
+            System.arraycopy(head, 0, bigger, 0, headLength);
+            head = bigger;
+        }
+        System.arraycopy(data, offset, head, headLength, length);
+        headLength += length;
+    }
+
+    /**
+     * 查找请求头结束位置
+     * @return CRLFCRLF之后的下标，找不到返回-1
+     */
+    private int indexOfHeaderEnd(int from) {
+        outer:
+        for (int i = from, last = headLength - HEADER_END.length; i <= last; i++) {
+            for (int j = 0; j < HEADER_END.length; j++) {
+                if (head[i + j] != HEADER_END[j]) {
+                    continue outer;
+                }
+            }
+            return i + HEADER_END.length;
+        }
+        return -1;
+    }
+}
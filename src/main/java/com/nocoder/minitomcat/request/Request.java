@@ -4,23 +4,29 @@ package com.nocoder.minitomcat.request;
 import com.nocoder.minitomcat.constant.CharConstant;
 import com.nocoder.minitomcat.constant.CharsetProperties;
 import com.nocoder.minitomcat.context.ServletContext;
-import com.nocoder.minitomcat.context.WebApplication;
 import com.nocoder.minitomcat.cookie.Cookie;
 import com.nocoder.minitomcat.enumeration.RequestMethod;
 import com.nocoder.minitomcat.exception.RequestInvalidException;
 import com.nocoder.minitomcat.exception.RequestParseException;
+import com.nocoder.minitomcat.exception.base.ServletException;
 import com.nocoder.minitomcat.network.handler.AbstractRequestHandler;
 import com.nocoder.minitomcat.request.dispatcher.RequestDispatcher;
 import com.nocoder.minitomcat.request.dispatcher.impl.ApplicationRequestDispatcher;
+import com.nocoder.minitomcat.request.multipart.Part;
 import com.nocoder.minitomcat.session.HttpSession;
+import com.nocoder.minitomcat.util.PropertyUtil;
+import com.nocoder.minitomcat.websocket.WebSocketEndpoint;
 import lombok.extern.slf4j.Slf4j;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
 import java.net.URLDecoder;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -54,16 +60,67 @@ public class Request {
   private ServletContext servletContext;
   private Cookie[] cookies;
   private HttpSession session;
+  private List<Part> parts;
+  /**
+   * 调试模式下被回收后置为true，之后应用代码再使用该对象会抛出异常
+   */
+  private boolean recycled;
+
+  /**
+   * 是否在同一连接上复用Request/Response/RequestHandler，减少每个请求的对象分配
+   */
+  public static final boolean RECYCLE = Boolean.parseBoolean(PropertyUtil.getProperty("server.recycle", "true"));
+  /**
+   * 回收调试模式：回收后的对象不再复用，应用代码在请求结束后继续持有并使用会抛出IllegalStateException
+   */
+  public static final boolean RECYCLE_DEBUG = Boolean.parseBoolean(PropertyUtil.getProperty("server.recycle.debug", "false"));
+
+  /**
+   * 进入异步模式，servlet返回后不会立即写回响应，需要调用AsyncContext.complete
+   * @return
+   */
+  public AsyncContext startAsync() {
+    checkRecycled();
+    return requestHandler.startAsync();
+  }
+
+  public boolean isAsyncStarted() {
+    return requestHandler != null && requestHandler.isAsyncStarted();
+  }
+
+  public AsyncContext getAsyncContext() {
+    return requestHandler.getAsyncContext();
+  }
+
+  /**
+   * 将连接升级为WebSocket，servlet调用后直接返回即可，之后的消息交给endpoint处理
+   * @param endpoint
+   * @throws IOException
+   * @throws ServletException 请求不是合法的WebSocket升级请求
+   */
+  public void upgradeToWebSocket(WebSocketEndpoint endpoint) throws IOException, ServletException {
+    checkRecycled();
+    requestHandler.upgradeToWebSocket(endpoint);
+  }
 
   public AbstractRequestHandler getRequestHandler() {
     return requestHandler;
   }
 
+  /**
+   * 客户端地址，取不到时返回null
+   */
+  public InetAddress getRemoteAddress() {
+    checkRecycled();
+    return requestHandler.getSocketWrapper().getRemoteAddress();
+  }
+
   public void setRequestHandler(AbstractRequestHandler requestHandler) {
     this.requestHandler = requestHandler;
   }
 
   public RequestMethod getMethod() {
+    checkRecycled();
     return method;
   }
 
@@ -72,14 +129,17 @@ public class Request {
   }
 
   public String getUrl() {
+    checkRecycled();
     return url;
   }
 
   public void setUrl(String url) {
+    checkRecycled();
     this.url = url;
   }
 
   public Map<String, List<String>> getParams() {
+    checkRecycled();
     return params;
   }
 
@@ -88,6 +148,7 @@ public class Request {
   }
 
   public Map<String, List<String>> getHeaders() {
+    checkRecycled();
     return headers;
   }
 
@@ -96,6 +157,7 @@ public class Request {
   }
 
   public Map<String, Object> getAttributes() {
+    checkRecycled();
     return attributes;
   }
 
@@ -104,6 +166,7 @@ public class Request {
   }
 
   public ServletContext getServletContext() {
+    checkRecycled();
     return servletContext;
   }
 
@@ -112,6 +175,7 @@ public class Request {
   }
 
   public Cookie[] getCookies() {
+    checkRecycled();
     return cookies;
   }
 
@@ -124,6 +188,7 @@ public class Request {
   }
 
   public String getQueryString() {
+    checkRecycled();
     return queryString;
   }
 
@@ -132,6 +197,7 @@ public class Request {
   }
 
   public byte[] getRequestBody() {
+    checkRecycled();
     return requestBody;
   }
 
@@ -145,6 +211,7 @@ public class Request {
    * @return
    */
   public String getParameter(String key) {
+    checkRecycled();
     List<String> params = this.params.get(key);
     if(params == null) {
       return null;
@@ -153,6 +220,7 @@ public class Request {
   }
 
   public String[] getParameterValues(String s) {
+    checkRecycled();
      List<String> params = this.params.get(s);
      return (params != null)
         ? params.toArray(new String[0])
@@ -160,57 +228,167 @@ public class Request {
   }
 
 
+  public Request() {
+    this.attributes = new HashMap<>();
+    this.params = new HashMap<>();
+    this.headers = new HashMap<>();
+    this.parts = Collections.emptyList();
+  }
+
+  /**
+   * 请求结束后清空状态，以便同一连接上的下一个请求复用
+   * 只清空Map而不重新创建，调试模式下标记为已回收
+   */
+  public void recycle() {
+    this.requestHandler = null;
+    this.requestBody = null;
+    this.method = null;
+    this.url = null;
+    this.queryString = null;
+    this.params.clear();
+    this.headers.clear();
+    this.attributes.clear();
+    this.servletContext = null;
+    this.cookies = null;
+    this.session = null;
+    this.parts = Collections.emptyList();
+    this.recycled = RECYCLE_DEBUG;
+  }
+
+  private void checkRecycled() {
+    if (recycled) {
+      throw new IllegalStateException("request has been recycled");
+    }
+  }
+
   /**
-   * 解析HTTP请求
-   * 读取请求体只能使用字节流，使用字符流读不到
-   * @param data
+   * 解析HTTP请求行与请求头，请求体由HttpRequestReader随读取过程单独处理
+   * 只对请求行（其中的URL和查询参数）进行URL解码，请求头的值保持原样，
+   * 否则Sec-WebSocket-Key等base64值中的+会被解码成空格
+   * @param data 以CRLFCRLF结尾的请求头字节
    * @throws RequestParseException
    */
-  public Request(byte[] data) throws RequestParseException, RequestInvalidException, IOException {
-    this.attributes = new HashMap<>();
-    String[] lines = null;
+  void parseHead(byte[] data, int offset, int length) throws RequestParseException, RequestInvalidException {
+    String[] lines = new String(data, offset, length, CharsetProperties.UTF_8_CHARSET).split(CharConstant.CRLF);
     try {
       //支持中文，对中文进行URL解码
-      lines = URLDecoder.decode(new String(data, CharsetProperties.UTF_8_CHARSET), CharsetProperties.UTF_8).split(CharConstant.CRLF);
+      lines[0] = URLDecoder.decode(lines[0], CharsetProperties.UTF_8);
     } catch (UnsupportedEncodingException e) {
       e.printStackTrace();
+    } catch (IllegalArgumentException e) {
+      throw new RequestParseException();
     }
-    logger.info("Request读取完毕");
+    logger.info("请求头读取完毕");
     logger.info("请求行: {}", Arrays.toString(lines));
-    if (lines != null && lines.length <= 1) {
+    if (lines == null || lines.length <= 1) {
       throw new RequestInvalidException();
     }
     try {
-      if (lines != null) {
-        parseHeaders(lines);
-      }
-      // 解析请求体,将此时的请求体转为byte字节数组,也就是String ==> byte[]
-      if (lines != null) {
-        this.requestBody = lines[lines.length - 1].getBytes();
-      }
+      parseHeaders(lines);
+    } catch (Throwable e) {
+      e.printStackTrace();
+      throw new RequestParseException();
+    }
+  }
 
-      if (headers.containsKey("Content-Length") && !headers.get("Content-Length").get(0).equals("0")) {
-        if (lines != null) {
-          parseBody(lines[lines.length - 1]);
-        }
-      }
+  /**
+   * 解析非multipart的请求体，请求体保持原始字节，不再经过String转换
+   */
+  void parseBody(byte[] body) throws RequestParseException {
+    this.requestBody = body;
+    if (body.length == 0) {
+      return;
+    }
+    try {
+      parseBody(URLDecoder.decode(new String(body, CharsetProperties.UTF_8_CHARSET), CharsetProperties.UTF_8));
     } catch (Throwable e) {
       e.printStackTrace();
       throw new RequestParseException();
     }
+  }
+
+  /**
+   * multipart请求体解析完毕，普通表单字段同时作为参数暴露
+   */
+  void setParts(List<Part> parts) throws IOException {
+    this.requestBody = new byte[0];
+    this.parts = parts;
+    for (Part part : parts) {
+      if (part.getName() != null && part.getSubmittedFileName() == null && part.isInMemory()) {
+        List<String> values = params.get(part.getName());
+        values = values == null ? new ArrayList<>() : new ArrayList<>(values);
+        values.add(part.getString(CharsetProperties.UTF_8_CHARSET));
+        params.put(part.getName(), values);
+      }
+    }
+  }
+
+  public List<Part> getParts() {
+    checkRecycled();
+    return parts;
+  }
+
+  public Part getPart(String name) {
+    checkRecycled();
+    for (Part part : parts) {
+      if (name.equals(part.getName())) {
+        return part;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * 删除上传产生的临时文件，请求销毁时调用
+   */
+  public void deleteParts() {
+    for (Part part : parts) {
+      part.delete();
+    }
+  }
 
-    WebApplication.getServletContext().afterRequestCreated(this);
+  /**
+   * 取请求头的第一个值
+   */
+  public String getHeader(String key) {
+    checkRecycled();
+    List<String> values = headers.get(key);
+    return values == null || values.isEmpty() ? null : values.get(0);
+  }
+
+  /**
+   * 请求体长度，没有Content-Length时为0
+   * @throws RequestParseException 不是数字或者为负数
+   */
+  public long getContentLength() throws RequestParseException {
+    String length = getHeader("Content-Length");
+    if (length == null) {
+      return 0;
+    }
+    long contentLength;
+    try {
+      contentLength = Long.parseLong(length.trim());
+    } catch (NumberFormatException e) {
+      throw new RequestParseException();
+    }
+    if (contentLength < 0) {
+      throw new RequestParseException();
+    }
+    return contentLength;
   }
 
   public void setAttribute(String key, Object value) {
+    checkRecycled();
     attributes.put(key, value);
   }
 
   public Object getAttribute(String key) {
+    checkRecycled();
     return attributes.get(key);
   }
 
   public RequestDispatcher getRequestDispatcher(String url) {
+    checkRecycled();
     return new ApplicationRequestDispatcher(url);
   }
 
@@ -228,6 +406,7 @@ public class Request {
    * @return HttpSession
    */
   public HttpSession getSession(boolean createIfNotExists) {
+    checkRecycled();
     if (session != null) {
       return session;
     }
@@ -251,7 +430,17 @@ public class Request {
     return getSession(true);
   }
 
+  /**
+   * 请求结束时取出本次请求使用过的session，不会查找或创建session，取出后请求不再持有它
+   */
+  public HttpSession detachSession() {
+    HttpSession current = session;
+    session = null;
+    return current;
+  }
+
   public String getServletPath() {
+    checkRecycled();
     return url;
   }
 
@@ -282,7 +471,6 @@ public class Request {
 
     //解析请求头
     String header;
-    this.headers = new HashMap<>();
     for (int i = 1; i < lines.length; i++) {
       header = lines[i];
       if (header.isEmpty()) {
@@ -312,18 +500,7 @@ public class Request {
 
   private void parseBody(String body) {
     logger.info("解析请求体");
-    byte[] bytes = body.getBytes(CharsetProperties.UTF_8_CHARSET);
-    List<String> lengths = this.headers.get("Content-Length");
-    if (lengths != null) {
-      int length = Integer.parseInt(lengths.get(0));
-      logger.info("length:{}", length);
-      parseParams(new String(bytes, 0, Math.min(length,bytes.length), CharsetProperties.UTF_8_CHARSET).trim());
-    } else {
-      parseParams(body.trim());
-    }
-    if (this.params == null) {
-      this.params = new HashMap<>();
-    }
+    parseParams(body.trim());
   }
 
   private void parseParams(String params) {
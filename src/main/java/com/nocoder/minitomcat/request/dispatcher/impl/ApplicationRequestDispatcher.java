@@ -1,6 +1,5 @@
 package com.nocoder.minitomcat.request.dispatcher.impl;
 
-import com.nocoder.minitomcat.constant.CharsetProperties;
 import com.nocoder.minitomcat.exception.ResourceNotFoundException;
 import com.nocoder.minitomcat.exception.base.ServletException;
 import com.nocoder.minitomcat.request.Request;
@@ -8,7 +7,6 @@ import com.nocoder.minitomcat.request.dispatcher.RequestDispatcher;
 import com.nocoder.minitomcat.resource.ResourceHandler;
 import com.nocoder.minitomcat.response.Response;
 import com.nocoder.minitomcat.template.TemplateResolver;
-import com.nocoder.minitomcat.util.IOUtil;
 import com.nocoder.minitomcat.util.MimeTypeUtil;
 import lombok.extern.slf4j.Slf4j;
 import org.slf4j.Logger;
@@ -46,8 +44,7 @@ public class ApplicationRequestDispatcher implements RequestDispatcher {
             throw new ResourceNotFoundException();
         }
         logger.info("forward至 {} 页面",url);
-        String body = TemplateResolver.resolve(new String(IOUtil.getBytesFromFile(url), CharsetProperties.UTF_8_CHARSET),request);
         response.setContentType(MimeTypeUtil.getTypes(url));
-        response.setBody(body.getBytes(CharsetProperties.UTF_8_CHARSET));
+        TemplateResolver.render(url, request, response);
     }
 }
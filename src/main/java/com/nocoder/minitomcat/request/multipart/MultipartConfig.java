@@ -0,0 +1,55 @@
+package com.nocoder.minitomcat.request.multipart;
+
+import com.nocoder.minitomcat.util.PropertyUtil;
+
+/**
+ * multipart/form-data 上传的配置，读取自server.properties
+ * server.multipart.location             临时文件目录，默认java.io.tmpdir
+ * server.multipart.file-size-threshold  单个part超过该字节数后写入磁盘，默认64KB
+ * server.multipart.max-file-size        单个part的最大字节数，-1表示不限制
+ * server.multipart.max-request-size     整个请求体的最大字节数，-1表示不限制
+ * @author 29282
+ */
+public class MultipartConfig {
+    private static final int DEFAULT_FILE_SIZE_THRESHOLD = 64 * 1024;
+    private static final long DEFAULT_MAX_FILE_SIZE = 100L * 1024 * 1024;
+    private static final long DEFAULT_MAX_REQUEST_SIZE = 200L * 1024 * 1024;
+
+    private static final MultipartConfig DEFAULT = new MultipartConfig(
+            PropertyUtil.getProperty("server.multipart.location", System.getProperty("java.io.tmpdir")),
+            Integer.parseInt(PropertyUtil.getProperty("server.multipart.file-size-threshold", String.valueOf(DEFAULT_FILE_SIZE_THRESHOLD))),
+            Long.parseLong(PropertyUtil.getProperty("server.multipart.max-file-size", String.valueOf(DEFAULT_MAX_FILE_SIZE))),
+            Long.parseLong(PropertyUtil.getProperty("server.multipart.max-request-size", String.valueOf(DEFAULT_MAX_REQUEST_SIZE))));
+
+    private final String location;
+    private final int fileSizeThreshold;
+    private final long maxFileSize;
+    private final long maxRequestSize;
+
+    public MultipartConfig(String location, int fileSizeThreshold, long maxFileSize, long maxRequestSize) {
+        this.location = location;
+        this.fileSizeThreshold = fileSizeThreshold;
+        this.maxFileSize = maxFileSize;
+        this.maxRequestSize = maxRequestSize;
+    }
+
+    public static MultipartConfig getDefault() {
+        return DEFAULT;
+    }
+
+    public String getLocation() {
+        return location;
+    }
+
+    public int getFileSizeThreshold() {
+        return fileSizeThreshold;
+    }
+
+    public long getMaxFileSize() {
+        return maxFileSize;
+    }
+
+    public long getMaxRequestSize() {
+        return maxRequestSize;
+    }
+}
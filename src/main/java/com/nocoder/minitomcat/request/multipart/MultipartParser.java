@@ -0,0 +1,276 @@
+package com.nocoder.minitomcat.request.multipart;
+
+import com.nocoder.minitomcat.exception.RequestParseException;
+import com.nocoder.minitomcat.exception.RequestTooLargeException;
+import com.nocoder.minitomcat.exception.base.ServletException;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.nocoder.minitomcat.constant.CharsetProperties.UTF_8_CHARSET;
+
+/**
+ * 流式的multipart/form-data解析器
+ * 由连接器每读到一段数据就调用一次feed，解析器内部是一个状态机，只缓存可能是分隔符前缀的
+ * 尾部字节以及part头部，part数据会直接写入Part（内存或临时文件），不会在堆中保留整个请求体。
+ *
+ * 报文格式：
+ * --boundary CRLF
+ * Content-Disposition: form-data; name="file"; filename="a.png" CRLF
+ * Content-Type: image/png CRLF
+ * CRLF
+ * 数据 CRLF
+ * --boundary-- CRLF
+ * @author 29282
+ */
+@Slf4j
+public class MultipartParser {
+    private final Logger logger = LoggerFactory.getLogger(MultipartParser.class);
+
+    /**
+     * 单个part头部的最大字节数
+     */
+    private static final int MAX_PART_HEADER_SIZE = 8192;
+    private static final byte[] HEADER_END = {'\r', '\n', '\r', '\n'};
+
+    private enum State {
+        PREAMBLE, DELIMITER, HEADERS, BODY, EPILOGUE
+    }
+
+    private final MultipartConfig config;
+    /**
+     * CRLF--boundary
+     */
+    private final byte[] delimiter;
+    private final List<Part> parts;
+    private State state;
+    private Part current;
+    private long received;
+
+    /**
+     * 待处理数据，[start, end)为有效区间
+     */
+    private byte[] buf;
+    private int start;
+    private int end;
+
+    public MultipartParser(String boundary, MultipartConfig config) {
+        this.config = config;
+        this.delimiter = ("\r\n--" + boundary).getBytes(UTF_8_CHARSET);
+        this.parts = new ArrayList<>();
+        this.state = State.PREAMBLE;
+        this.buf = new byte[Math.max(1024, delimiter.length * 2)];
+        // 第一个分隔符前面没有CRLF，这里预先放入CRLF，使得所有分隔符格式一致
+        this.buf[0] = '\r';
+        this.buf[1] = '\n';
+        this.end = 2;
+    }
+
+    /**
+     * 从Content-Type中取出boundary，不是multipart/form-data时返回null
+     */
+    public static String getBoundary(String contentType) {
+        if (contentType == null || !contentType.toLowerCase().startsWith("multipart/form-data")) {
+            return null;
+        }
+        for (String param : contentType.split(";")) {
+            param = param.trim();
+            if (param.startsWith("boundary=")) {
+                return unquote(param.substring("boundary=".length()));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 喂入一段请求体数据
+     */
+    public void feed(byte[] data, int offset, int length) throws ServletException, IOException {
+        received += length;
+        if (config.getMaxRequestSize() >= 0 && received > config.getMaxRequestSize()) {
+            logger.info("multipart请求体超过大小限制 {}", config.getMaxRequestSize());
+            throw new RequestTooLargeException();
+        }
+        append(data, offset, length);
+        boolean progress = true;
+        while (progress) {
+            switch (state) {
+                case PREAMBLE:
+                case BODY:
+                    progress = scanBody();
+                    break;
+                case DELIMITER:
+                    progress = afterDelimiter();
+                    break;
+                case HEADERS:
+                    progress = parsePartHeaders();
+                    break;
+                case EPILOGUE:
+                default:
+                    start = end;
+                    progress = false;
+                    break;
+            }
+        }
+    }
+
+    /**
+     * 请求体全部读取完毕，检查是否读到了结束分隔符
+     */
+    public void finish() throws ServletException {
+        if (state != State.EPILOGUE) {
+            logger.info("multipart请求体不完整，当前状态 {}", state);
+            throw new RequestParseException();
+        }
+    }
+
+    /**
+     * 解析失败或请求销毁时删除所有临时文件
+     */
+    public void cleanup() {
+        for (Part part : parts) {
+            part.delete();
+        }
+    }
+
+    public List<Part> getParts() {
+        return parts;
+    }
+
+    /**
+     * 查找分隔符，分隔符之前的数据属于当前part（PREAMBLE状态下直接丢弃）
+     * 找不到时保留可能是分隔符前缀的尾部字节，其余数据全部交给part
+     */
+    private boolean scanBody() throws ServletException, IOException {
+        int index = indexOf(delimiter, start, end);
+        if (index >= 0) {
+            writeToPart(index - start);
+            if (current != null) {
+                current.finish();
+                current = null;
+            }
+            start = index + delimiter.length;
+            state = State.DELIMITER;
+            return true;
+        }
+        int safe = end - delimiter.length + 1;
+        if (safe > start) {
+            writeToPart(safe - start);
+            start = safe;
+        }
+        return false;
+    }
+
+    private void writeToPart(int length) throws ServletException, IOException {
+        if (state == State.BODY && current != null) {
+            current.write(buf, start, length);
+        }
+    }
+
+    /**
+     * 分隔符后为"--"表示结束，为CRLF表示后面是下一个part的头部
+     */
+    private boolean afterDelimiter() throws ServletException {
+        if (end - start < 2) {
+            return false;
+        }
+        if (buf[start] == '-' && buf[start + 1] == '-') {
+            state = State.EPILOGUE;
+        } else if (buf[start] == '\r' && buf[start + 1] == '\n') {
+            state = State.HEADERS;
+        } else {
+            throw new RequestParseException();
+        }
+        start += 2;
+        return true;
+    }
+
+    private boolean parsePartHeaders() throws ServletException {
+        // 没有任何头部的part
+        if (end - start >= 2 && buf[start] == '\r' && buf[start + 1] == '\n') {
+            startPart(new HashMap<>());
+            start += 2;
+            return true;
+        }
+        int index = indexOf(HEADER_END, start, end);
+        if (index < 0) {
+            if (end - start > MAX_PART_HEADER_SIZE) {
+                throw new RequestParseException();
+            }
+            return false;
+        }
+        Map<String, String> headers = new HashMap<>();
+        String[] lines = new String(buf, start, index - start, UTF_8_CHARSET).split("\r\n");
+        for (String line : lines) {
+            int colonIndex = line.indexOf(':');
+            if (colonIndex > 0) {
+                headers.put(line.substring(0, colonIndex).trim().toLowerCase(), line.substring(colonIndex + 1).trim());
+            }
+        }
+        startPart(headers);
+        start = index + HEADER_END.length;
+        return true;
+    }
+
+    private void startPart(Map<String, String> headers) {
+        String name = null;
+        String fileName = null;
+        String disposition = headers.get("content-disposition");
+        if (disposition != null) {
+            for (String param : disposition.split(";")) {
+                param = param.trim();
+                if (param.startsWith("name=")) {
+                    name = unquote(param.substring("name=".length()));
+                } else if (param.startsWith("filename=")) {
+                    fileName = unquote(param.substring("filename=".length()));
+                }
+            }
+        }
+        current = new Part(config, headers, name, fileName);
+        parts.add(current);
+        state = State.BODY;
+        logger.debug("开始解析part name:{} filename:{}", name, fileName);
+    }
+
+    /**
+     * 将新数据追加到待处理区间之后，必要时压缩或扩容
+     */
+    private void append(byte[] data, int offset, int length) {
+        int remaining = end - start;
+        if (buf.length - end < length) {
+            byte[] target = buf.length - remaining < length ? new byte[remaining + length] : buf;
+            System.arraycopy(buf, start, target, 0, remaining);
+            buf = target;
+            start = 0;
+            end = remaining;
+        }
+        System.arraycopy(data, offset, buf, end, length);
+        end += length;
+    }
+
+    private int indexOf(byte[] pattern, int from, int to) {
+        outer:
+        for (int i = from, last = to - pattern.length; i <= last; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (buf[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static String unquote(String value) {
+        if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+            return value.substring(1, value.length() - 1);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,161 @@
+package com.nocoder.minitomcat.request.multipart;
+
+import com.nocoder.minitomcat.exception.RequestTooLargeException;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+
+/**
+ * multipart请求中的一个part
+ * 数据先写在内存中，超过fileSizeThreshold后转存到临时文件，之后的数据直接追加到文件，
+ * 这样大文件上传时堆内只会保留一个阈值大小的缓冲
+ * @author 29282
+ */
+@Slf4j
+public class Part {
+    private final Logger logger = LoggerFactory.getLogger(Part.class);
+
+    private final MultipartConfig config;
+    private final Map<String, String> headers;
+    private final String name;
+    private final String submittedFileName;
+    private long size;
+    private ByteArrayOutputStream memory;
+    private File file;
+    private OutputStream fileOut;
+    /**
+     * 临时文件被write(fileName)移走后就不再由容器删除
+     */
+    private boolean moved;
+
+    public Part(MultipartConfig config, Map<String, String> headers, String name, String submittedFileName) {
+        this.config = config;
+        this.headers = headers;
+        this.name = name;
+        this.submittedFileName = submittedFileName;
+        this.memory = new ByteArrayOutputStream();
+    }
+
+    /**
+     * 追加part数据，由MultipartParser在读取过程中调用
+     */
+    void write(byte[] data, int offset, int length) throws IOException, RequestTooLargeException {
+        if (length <= 0) {
+            return;
+        }
+        size += length;
+        if (config.getMaxFileSize() >= 0 && size > config.getMaxFileSize()) {
+            logger.info("part {} 超过大小限制 {}", name, config.getMaxFileSize());
+            throw new RequestTooLargeException();
+        }
+        if (fileOut == null && size > config.getFileSizeThreshold()) {
+            spill();
+        }
+        if (fileOut != null) {
+            fileOut.write(data, offset, length);
+        } else {
+            memory.write(data, offset, length);
+        }
+    }
+
+    /**
+     * 将内存中的数据转存至临时文件
+     */
+    private void spill() throws IOException {
+        file = Files.createTempFile(Paths.get(config.getLocation()), "upload-", ".tmp").toFile();
+        logger.info("part {} 转存至临时文件 {}", name, file);
+        fileOut = new BufferedOutputStream(new FileOutputStream(file), 8192);
+        memory.writeTo(fileOut);
+        memory = null;
+    }
+
+    /**
+     * part读取完毕
+     */
+    void finish() throws IOException {
+        if (fileOut != null) {
+            fileOut.close();
+            fileOut = null;
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getSubmittedFileName() {
+        return submittedFileName;
+    }
+
+    public String getContentType() {
+        return headers.get("content-type");
+    }
+
+    public String getHeader(String name) {
+        return headers.get(name.toLowerCase());
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public boolean isInMemory() {
+        return file == null;
+    }
+
+    public InputStream getInputStream() throws IOException {
+        if (file != null) {
+            return new BufferedInputStream(new FileInputStream(file));
+        }
+        return new ByteArrayInputStream(memory.toByteArray());
+    }
+
+    /**
+     * 以字符串形式返回part内容，仅适用于普通表单字段
+     */
+    public String getString(Charset charset) throws IOException {
+        if (file != null) {
+            return new String(Files.readAllBytes(file.toPath()), charset);
+        }
+        return new String(memory.toByteArray(), charset);
+    }
+
+    /**
+     * 将part写入到指定文件，已转存磁盘的part直接移动临时文件，避免再复制一次
+     */
+    public void write(String fileName) throws IOException {
+        Path target = Paths.get(fileName);
+        if (file != null) {
+            Files.move(file.toPath(), target, StandardCopyOption.REPLACE_EXISTING);
+            file = target.toFile();
+            moved = true;
+        } else {
+            try (OutputStream out = Files.newOutputStream(target)) {
+                memory.writeTo(out);
+            }
+        }
+    }
+
+    /**
+     * 删除临时文件，在请求销毁时被调用
+     */
+    public void delete() {
+        try {
+            finish();
+        } catch (IOException e) {
+            logger.error("关闭临时文件失败", e);
+        }
+        if (file != null && !moved && !file.delete()) {
+            logger.info("临时文件 {} 删除失败", file);
+        }
+        memory = null;
+    }
+}
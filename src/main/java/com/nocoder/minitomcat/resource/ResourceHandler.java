@@ -1,6 +1,5 @@
 package com.nocoder.minitomcat.resource;
 
-import com.nocoder.minitomcat.constant.CharsetProperties;
 import com.nocoder.minitomcat.exception.RequestParseException;
 import com.nocoder.minitomcat.exception.ResourceNotFoundException;
 import com.nocoder.minitomcat.exception.base.ServletException;
@@ -38,14 +37,13 @@ public class ResourceHandler {
                 logger.info("找不到该资源:{}", url);
                 throw new ResourceNotFoundException();
             }
-            byte[] body = IOUtil.getBytesFromFile(url);
+            response.setContentType(MimeTypeUtil.getTypes(url));
             if (url.endsWith(".html")) {
-                body = TemplateResolver
-                        .resolve(new String(body, CharsetProperties.UTF_8_CHARSET), request)
-                        .getBytes(CharsetProperties.UTF_8_CHARSET);
+                // 模板直接渲染进响应的输出流
+                TemplateResolver.render(url, request, response);
+            } else {
+                response.setBody(IOUtil.getBytesFromFile(url));
             }
-            response.setContentType(MimeTypeUtil.getTypes(url));
-            response.setBody(body);
         } catch (IOException e) {
             exceptionHandler.handle(new RequestParseException(), response, socketWrapper);
         } catch (ServletException e) {
@@ -0,0 +1,126 @@
+package com.nocoder.minitomcat.response;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 响应头编码器，直接把ASCII字节写入ByteBuffer，不经过StringBuilder和String.getBytes
+ * 常用的响应头名称预先编码好（包含": "），写入时只需要复制
+ * 缓冲不够时会扩容，所以每个写方法都返回写入后的缓冲
+ * @author 29282
+ */
+public class HeaderEncoder {
+    public static final byte[] CRLF = {'\r', '\n'};
+    public static final byte[] CONTENT_TYPE = name("Content-Type");
+    public static final byte[] CONTENT_LENGTH = name("Content-Length");
+    public static final byte[] SET_COOKIE = name("Set-Cookie");
+    public static final byte[] TRANSFER_ENCODING_CHUNKED = "Transfer-Encoding: chunked\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private static final Map<String, byte[]> COMMON_NAMES = new HashMap<>();
+
+    static {
+        for (String name : new String[]{"Content-Type", "Content-Length", "Set-Cookie", "Location", "Connection",
+                "Cache-Control", "Content-Disposition", "Content-Encoding", "Transfer-Encoding", "Expires",
+                "Last-Modified", "ETag", "Vary", "Server", "Keep-Alive"}) {
+            COMMON_NAMES.put(name, name(name));
+        }
+    }
+
+    private HeaderEncoder() {
+    }
+
+    private static byte[] name(String name) {
+        return (name + ": ").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    public static ByteBuffer write(ByteBuffer buffer, byte[] bytes) {
+        buffer = ensureCapacity(buffer, bytes.length);
+        buffer.put(bytes);
+        return buffer;
+    }
+
+    /**
+     * 写入ASCII字符串；含有非ASCII字符时退回UTF-8编码
+     */
+    public static ByteBuffer writeAscii(ByteBuffer buffer, String value) {
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            if (value.charAt(i) > 0x7F) {
+                return write(buffer, value.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        buffer = ensureCapacity(buffer, length);
+        for (int i = 0; i < length; i++) {
+            buffer.put((byte) value.charAt(i));
+        }
+        return buffer;
+    }
+
+    public static ByteBuffer writeLong(ByteBuffer buffer, long value) {
+        if (value < 0) {
+            return writeAscii(buffer, Long.toString(value));
+        }
+        buffer = ensureCapacity(buffer, 20);
+        if (value == 0) {
+            buffer.put((byte) '0');
+            return buffer;
+        }
+        int start = buffer.position();
+        while (value > 0) {
+            buffer.put((byte) ('0' + value % 10));
+            value /= 10;
+        }
+        // 反转数字
+        for (int i = start, j = buffer.position() - 1; i < j; i++, j--) {
+            byte tmp = buffer.get(i);
+            buffer.put(i, buffer.get(j));
+            buffer.put(j, tmp);
+        }
+        return buffer;
+    }
+
+    /**
+     * 写入一行响应头，name为预编码的名称（包含": "）
+     */
+    public static ByteBuffer writeHeader(ByteBuffer buffer, byte[] name, String value) {
+        buffer = write(buffer, name);
+        buffer = writeAscii(buffer, value);
+        return write(buffer, CRLF);
+    }
+
+    public static ByteBuffer writeHeader(ByteBuffer buffer, String name, String value) {
+        byte[] encoded = COMMON_NAMES.get(name);
+        if (encoded != null) {
+            return writeHeader(buffer, encoded, value);
+        }
+        buffer = writeAscii(buffer, name);
+        buffer = ensureCapacity(buffer, 2);
+        buffer.put((byte) ':').put((byte) ' ');
+        buffer = writeAscii(buffer, value);
+        return write(buffer, CRLF);
+    }
+
+    public static ByteBuffer writeCookie(ByteBuffer buffer, String key, String value) {
+        buffer = write(buffer, SET_COOKIE);
+        buffer = writeAscii(buffer, key);
+        buffer = ensureCapacity(buffer, 1);
+        buffer.put((byte) '=');
+        buffer = writeAscii(buffer, value);
+        return write(buffer, CRLF);
+    }
+
+    /**
+     * 剩余空间不足时扩容为原来的两倍，扩容后的缓冲不会被池回收
+     */
+    private static ByteBuffer ensureCapacity(ByteBuffer buffer, int needed) {
+        if (buffer.remaining() >= needed) {
+            return buffer;
+        }
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + needed));
+        buffer.flip();
+        bigger.put(buffer);
+        return bigger;
+    }
+}
@@ -0,0 +1,52 @@
+package com.nocoder.minitomcat.response;
+
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 共享的Date响应头，每秒刷新一次，所有响应直接复制这份字节
+ * 格式为RFC 7231的IMF-fixdate，比如 Date: Sun, 06 Nov 1994 08:49:37 GMT
+ * @author 29282
+ */
+public class HttpDateTicker implements Runnable {
+    private static final DateTimeFormatter FORMATTER =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+    private static volatile byte[] dateHeader = format();
+
+    static {
+        ThreadFactory threadFactory = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "HttpDateTicker");
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        executor.scheduleAtFixedRate(new HttpDateTicker(), 1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 返回 Date: xxx CRLF 的字节，数组是共享的，调用方不能修改
+     */
+    public static byte[] getDateHeader() {
+        return dateHeader;
+    }
+
+    @Override
+    public void run() {
+        dateHeader = format();
+    }
+
+    private static byte[] format() {
+        return ("Date: " + FORMATTER.format(ZonedDateTime.now(ZoneOffset.UTC)) + "\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+}
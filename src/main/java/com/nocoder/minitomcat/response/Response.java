@@ -4,105 +4,376 @@ package com.nocoder.minitomcat.response;
 import com.nocoder.minitomcat.cookie.Cookie;
 import com.nocoder.minitomcat.enumeration.HttpStatus;
 import com.nocoder.minitomcat.network.handler.AbstractRequestHandler;
+import com.nocoder.minitomcat.request.Request;
+import com.nocoder.minitomcat.response.sse.EventStream;
+import com.nocoder.minitomcat.util.ByteBufferPool;
 import lombok.extern.slf4j.Slf4j;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.List;
 
-import static com.nocoder.minitomcat.constant.CharConstant.BLANK;
-import static com.nocoder.minitomcat.constant.CharConstant.CRLF;
 import static com.nocoder.minitomcat.constant.CharsetProperties.UTF_8_CHARSET;
 import static com.nocoder.minitomcat.constant.ContextConstant.DEFAULT_CONTENT_TYPE;
 
+/**
+ * 响应有两种写法：
+ * 1、setBody一次性设置响应体，请求结束时连同响应头一起写出，带Content-Length
+ * 2、getOutputStream/getWriter流式写出，缓冲写满时提交响应；
+ *    没有通过setContentLength声明长度时使用Transfer-Encoding: chunked，
+ *    请求结束时缓冲中还没有提交的数据仍然按Content-Length写出
+ * 响应提交之后再修改状态码、响应头不会生效
+ */
 @Slf4j
 public class Response {
     private final Logger logger = LoggerFactory.getLogger(Response.class);
 
-    private StringBuilder headerAppender;
+    /**
+     * header缓冲池，所有Response共享
+     */
+    private static final ByteBufferPool HEADER_BUFFER_POOL = new ByteBufferPool(4096, 1024);
+
+    private ByteBuffer headerBuffer;
+    private final ByteBuffer[] responseBuffers = new ByteBuffer[2];
     private List<Cookie> cookies;
     private List<Header> headers;
     private HttpStatus status = HttpStatus.OK;
     private String contentType = DEFAULT_CONTENT_TYPE;
-    private byte[] body = new byte[0];
+    private static final byte[] EMPTY_BODY = new byte[0];
+    private byte[] body = EMPTY_BODY;
     private AbstractRequestHandler requestHandler;
+    private ResponseOutputStream outputStream;
+    private PrintWriter writer;
+    /**
+     * 本次请求是否使用了流式输出
+     */
+    private boolean streaming;
+    /**
+     * 响应头是否已经写出
+     */
+    private boolean committed;
+    /**
+     * 提交之后处理失败，响应已经不完整，连接器不再写出剩余数据而是直接断开连接
+     */
+    private boolean aborted;
+    private boolean chunked;
+    /**
+     * 流式输出时应用声明的长度，-1表示未知
+     */
+    private long contentLength = -1;
+    private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(UTF_8_CHARSET);
+    /**
+     * 块头部：十六进制长度 + CRLF
+     */
+    private final byte[] chunkHeader = new byte[18];
+    /**
+     * 调试模式下被回收后置为true
+     */
+    private boolean recycled;
 
     public Response() {
-        this.headerAppender = new StringBuilder();
         this.cookies = new ArrayList<>();
         this.headers = new ArrayList<>();
     }
 
+    /**
+     * 请求结束后清空状态，以便同一连接上的下一个请求复用
+     */
+    public void recycle() {
+        release();
+        this.streaming = false;
+        this.committed = false;
+        this.aborted = false;
+        this.chunked = false;
+        this.contentLength = -1;
+        this.cookies.clear();
+        this.headers.clear();
+        this.status = HttpStatus.OK;
+        this.contentType = DEFAULT_CONTENT_TYPE;
+        this.body = EMPTY_BODY;
+        this.requestHandler = null;
+        this.recycled = Request.RECYCLE_DEBUG;
+    }
+
+    private void checkRecycled() {
+        if (recycled) {
+            throw new IllegalStateException("response has been recycled");
+        }
+    }
+
     /**
      * 设置HTTP Status
      * @param status
      */
     public void setStatus(HttpStatus status) {
+        checkRecycled();
         this.status = status;
     }
 
     public void setContentType(String contentType) {
+        checkRecycled();
         this.contentType = contentType;
     }
 
+    /**
+     * 设置响应体；流式输出尚未提交时会丢弃缓冲中的数据，改为使用这里的响应体
+     */
     public void setBody(byte[] body) {
+        checkRecycled();
+        if (committed) {
+            logger.warn("响应已提交，忽略setBody");
+            return;
+        }
+        if (streaming) {
+            // Writer中可能还有未编码的字符，直接丢弃
+            streaming = false;
+            writer = null;
+            outputStream.recycle();
+        }
         this.body = body;
     }
 
+    /**
+     * 流式输出时声明响应体长度，声明后不再使用chunked编码
+     */
+    public void setContentLength(long contentLength) {
+        checkRecycled();
+        this.contentLength = contentLength;
+    }
+
+    public ResponseOutputStream getOutputStream() {
+        checkRecycled();
+        if (outputStream == null) {
+            outputStream = new ResponseOutputStream(this);
+        }
+        streaming = true;
+        return outputStream;
+    }
+
+    /**
+     * 按UTF-8编码的Writer，写入的数据最终进入getOutputStream的缓冲
+     */
+    public PrintWriter getWriter() {
+        ResponseOutputStream os = getOutputStream();
+        if (writer == null) {
+            writer = new PrintWriter(new OutputStreamWriter(os, UTF_8_CHARSET), false);
+        }
+        return writer;
+    }
+
+    public boolean isCommitted() {
+        return committed;
+    }
+
+    /**
+     * 响应提交后出错时调用，此时无法再发送错误页面；
+     * 如果照常写出结束块或者按Content-Length结束，客户端会把截断的内容当作完整的响应，所以只能断开连接
+     */
+    public void abort() {
+        this.aborted = true;
+    }
+
+    public boolean isAborted() {
+        return aborted;
+    }
+
+    /**
+     * 立即提交响应，将缓冲中的数据写出
+     */
+    public void flushBuffer() throws IOException {
+        checkRecycled();
+        if (writer != null) {
+            writer.flush();
+        }
+        getOutputStream().flush();
+    }
+
+    /**
+     * 打开Server-Sent Events事件流，servlet可以直接返回，之后通过EventStream或SseBroadcaster推送事件
+     * 只有NIO连接器支持
+     */
+    public EventStream openEventStream() throws IOException {
+        checkRecycled();
+        return requestHandler.openEventStream();
+    }
+
+    /**
+     * 由ResponseOutputStream在缓冲写满或flush时调用，通过连接器的阻塞写写出
+     * 第一次调用时先提交响应头
+     */
+    void writeContent(ByteBuffer data) throws IOException {
+        checkRecycled();
+        ByteBuffer header = null;
+        if (!committed) {
+            committed = true;
+            chunked = contentLength < 0;
+            header = buildHeader(contentLength, chunked);
+        }
+        ByteBuffer[] buffers;
+        if (chunked && data.hasRemaining()) {
+            // 长度为0的块表示结束，所以空数据不能作为块写出
+            buffers = header == null ? new ByteBuffer[3] : new ByteBuffer[4];
+            int i = 0;
+            if (header != null) {
+                buffers[i++] = header;
+            }
+            buffers[i++] = chunkHeader(data.remaining());
+            buffers[i++] = data;
+            buffers[i] = ByteBuffer.wrap(HeaderEncoder.CRLF);
+        } else if (header != null) {
+            buffers = new ByteBuffer[]{header, data};
+        } else {
+            buffers = new ByteBuffer[]{data};
+        }
+        try {
+            requestHandler.getSocketWrapper().write(buffers);
+        } finally {
+            releaseHeader();
+        }
+    }
+
+    private ByteBuffer chunkHeader(int length) {
+        int pos = chunkHeader.length;
+        chunkHeader[--pos] = '\n';
+        chunkHeader[--pos] = '\r';
+        do {
+            chunkHeader[--pos] = HEX_DIGITS[length & 0xF];
+            length >>>= 4;
+        } while (length != 0);
+        return ByteBuffer.wrap(chunkHeader, pos, chunkHeader.length - pos);
+    }
+
+
+    public HttpStatus getStatus() {
+        return status;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public List<Header> getHeaders() {
+        return headers;
+    }
+
+    public List<Cookie> getCookies() {
+        return cookies;
+    }
+
+    /**
+     * 取响应头的第一个值，名称不区分大小写
+     */
+    public String getHeader(String key) {
+        for (int i = 0; i < headers.size(); i++) {
+            Header header = headers.get(i);
+            if (header.getKey().equalsIgnoreCase(key)) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 返回完整的响应体，用于缓存响应；流式输出时返回缓冲中数据的副本
+     * 流式输出已经提交时部分数据已经写出，返回null
+     */
+    public byte[] getBufferedBody() {
+        checkRecycled();
+        if (!streaming) {
+            return body;
+        }
+        if (committed) {
+            return null;
+        }
+        if (writer != null) {
+            writer.flush();
+        }
+        ByteBuffer pending = outputStream.getPending();
+        byte[] copy = new byte[pending.remaining()];
+        pending.get(copy);
+        return copy;
+    }
 
     public void addCookie(Cookie cookie) {
+        checkRecycled();
         cookies.add(cookie);
     }
 
     public void addHeader(Header header) {
+        checkRecycled();
         headers.add(header);
     }
     
     
-    private void buildHeader() {
+    /**
+     * 将状态行和响应头编码到池化的缓冲中
+     * 状态行、Date以及常用响应头名称都是预先编码好的字节，这里大部分只是内存复制
+     */
+    private ByteBuffer buildHeader(long contentLength, boolean chunked) {
+        ByteBuffer buffer = HEADER_BUFFER_POOL.acquire();
         //HTTP/1.1 200 OK
-        headerAppender.append("HTTP/1.1").append(BLANK).append(status.getCode()).append(BLANK).append(status).append(CRLF);
+        buffer = HeaderEncoder.write(buffer, status.getStatusLine());
         //Date: Sat, 31 Dec 2005 23:59:59 GMT
-        headerAppender.append("Date:").append(BLANK).append(new Date()).append(CRLF);
-        headerAppender.append("Content-Type:").append(BLANK).append(contentType).append(CRLF);
-        if (headers != null) {
-            for (Header header : headers) {
-                headerAppender.append(header.getKey()).append(":").append(BLANK).append(header.getValue()).append(CRLF);
-            }
+        buffer = HeaderEncoder.write(buffer, HttpDateTicker.getDateHeader());
+        buffer = HeaderEncoder.writeHeader(buffer, HeaderEncoder.CONTENT_TYPE, contentType);
+        for (int i = 0; i < headers.size(); i++) {
+            Header header = headers.get(i);
+            buffer = HeaderEncoder.writeHeader(buffer, header.getKey(), header.getValue());
         }
-        if (cookies.size() > 0) {
-            for (Cookie cookie : cookies) {
-                headerAppender.append("Set-Cookie:").append(BLANK).append(cookie.getKey()).append("=").append(cookie.getValue()).append(CRLF);
-            }
+        for (int i = 0; i < cookies.size(); i++) {
+            Cookie cookie = cookies.get(i);
+            buffer = HeaderEncoder.writeCookie(buffer, cookie.getKey(), cookie.getValue());
         }
-        headerAppender.append("Content-Length:").append(BLANK);
-    }
-
-    //一次性传入响应体
-    private void buildBody() {
-        this.headerAppender.append(body.length).append(CRLF).append(CRLF);
+        if (chunked) {
+            buffer = HeaderEncoder.write(buffer, HeaderEncoder.TRANSFER_ENCODING_CHUNKED);
+        } else {
+            buffer = HeaderEncoder.write(buffer, HeaderEncoder.CONTENT_LENGTH);
+            buffer = HeaderEncoder.writeLong(buffer, contentLength);
+            buffer = HeaderEncoder.write(buffer, HeaderEncoder.CRLF);
+        }
+        buffer = HeaderEncoder.write(buffer, HeaderEncoder.CRLF);
+        buffer.flip();
+        this.headerBuffer = buffer;
+        return buffer;
     }
 
-    /**
-     * response构建的最后一步，将header和body转为字节数组
-     */
-    private void buildResponse() {
-        buildHeader();
-        buildBody();
-    }
-    
     /**
      * 返回Response构建后的数据，用于NIO/AIO
+     * 流式输出已提交时只返回剩余的数据（chunked时还包括结束块）
+     * 写回完成后需要调用release归还缓冲
      * @return
      */
     public ByteBuffer[] getResponseByteBuffer() {
-        buildResponse();
-        byte[] header = this.headerAppender.toString().getBytes(UTF_8_CHARSET);
-        ByteBuffer[] response = {ByteBuffer.wrap(header), ByteBuffer.wrap(body)};
-        return response;
+        releaseHeader();
+        if (!streaming) {
+            responseBuffers[0] = buildHeader(body.length, false);
+            responseBuffers[1] = ByteBuffer.wrap(body);
+            return responseBuffers;
+        }
+        if (writer != null) {
+            writer.flush();
+        }
+        ByteBuffer pending = outputStream.getPending();
+        if (!committed) {
+            committed = true;
+            responseBuffers[0] = buildHeader(contentLength >= 0 ? contentLength : pending.remaining(), false);
+            responseBuffers[1] = pending;
+            return responseBuffers;
+        }
+        if (!chunked) {
+            return new ByteBuffer[]{pending};
+        }
+        if (!pending.hasRemaining()) {
+            return new ByteBuffer[]{ByteBuffer.wrap(LAST_CHUNK)};
+        }
+        return new ByteBuffer[]{chunkHeader(pending.remaining()), pending,
+                ByteBuffer.wrap(HeaderEncoder.CRLF), ByteBuffer.wrap(LAST_CHUNK)};
     }
 
     /**
@@ -110,23 +381,50 @@ public class Response {
      * @return
      */
     public byte[] getResponseBytes() {
-        buildResponse();
-        byte[] header = this.headerAppender.toString().getBytes(UTF_8_CHARSET);
-        byte[] response = new byte[header.length + body.length];
-        System.arraycopy(header, 0, response, 0, header.length);
-        System.arraycopy(body, 0, response, header.length, body.length);
+        ByteBuffer[] buffers = getResponseByteBuffer();
+        int length = 0;
+        for (ByteBuffer buffer : buffers) {
+            length += buffer.remaining();
+        }
+        byte[] response = new byte[length];
+        int offset = 0;
+        for (ByteBuffer buffer : buffers) {
+            int n = buffer.remaining();
+            buffer.get(response, offset, n);
+            offset += n;
+        }
+        release();
         return response;
     }
 
+    /**
+     * 响应写回后归还header缓冲和响应体缓冲
+     */
+    public void release() {
+        releaseHeader();
+        if (outputStream != null) {
+            outputStream.recycle();
+        }
+    }
+
+    private void releaseHeader() {
+        if (headerBuffer != null) {
+            HEADER_BUFFER_POOL.release(headerBuffer);
+            headerBuffer = null;
+        }
+        responseBuffers[0] = null;
+        responseBuffers[1] = null;
+    }
+
     /**
      * 重定向，注意重定向后会立即写数据至socket中
      * @param url
      */
     public void sendRedirect(String url) {
+        checkRecycled();
         logger.info("重定向至{}", url);
         addHeader(new Header("Location", url));
         setStatus(HttpStatus.MOVED_TEMPORARILY);
-        buildResponse();
         // 刷新至客户端
         requestHandler.flushResponse();
     }
@@ -0,0 +1,109 @@
+package com.nocoder.minitomcat.response;
+
+import com.nocoder.minitomcat.util.ByteBufferPool;
+import com.nocoder.minitomcat.util.PropertyUtil;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * 响应体输出流，数据先写入一个有界缓冲
+ * 缓冲写满或者调用flush时提交响应：先写出响应头，再把缓冲中的数据作为一块写出，
+ * 之后的数据按块写出，这样大响应不需要在堆中拼出完整的byte数组。
+ * 缓冲大小由server.response.buffer-size配置，默认8KB
+ * @author 29282
+ */
+public class ResponseOutputStream extends OutputStream {
+    public static final int BUFFER_SIZE = Integer.parseInt(PropertyUtil.getProperty("server.response.buffer-size", "8192"));
+
+    /**
+     * 响应体缓冲池，所有Response共享
+     */
+    private static final ByteBufferPool BUFFER_POOL = new ByteBufferPool(BUFFER_SIZE, 256);
+
+    private final Response response;
+    /**
+     * 写模式的缓冲，position之前为待写出的数据，第一次写入时才从池中获取
+     */
+    private ByteBuffer buffer;
+
+    ResponseOutputStream(Response response) {
+        this.response = response;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureBuffer();
+        if (!buffer.hasRemaining()) {
+            flushBuffer();
+        }
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureBuffer();
+        if (len > buffer.remaining()) {
+            flushBuffer();
+            // 超过缓冲大小的数据直接写出，不再复制一次
+            if (len >= buffer.capacity()) {
+                response.writeContent(ByteBuffer.wrap(b, off, len));
+                return;
+            }
+        }
+        buffer.put(b, off, len);
+    }
+
+    /**
+     * 应用主动flush会提交响应
+     */
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+    }
+
+    /**
+     * 响应由容器在请求结束时写完，应用close不做任何事
+     */
+    @Override
+    public void close() {
+    }
+
+    private void flushBuffer() throws IOException {
+        ByteBuffer pending = getPending();
+        response.writeContent(pending);
+        if (buffer != null) {
+            buffer.clear();
+        }
+    }
+
+    /**
+     * 返回缓冲中尚未写出的数据，返回的是读模式的视图，不影响缓冲本身
+     */
+    ByteBuffer getPending() {
+        if (buffer == null) {
+            return ByteBuffer.allocate(0);
+        }
+        ByteBuffer pending = buffer.duplicate();
+        pending.flip();
+        return pending;
+    }
+
+    private void ensureBuffer() {
+        if (buffer == null) {
+            buffer = BUFFER_POOL.acquire();
+        }
+    }
+
+    /**
+     * 请求结束后归还缓冲
+     */
+    void recycle() {
+        if (buffer != null) {
+            buffer.clear();
+            BUFFER_POOL.release(buffer);
+            buffer = null;
+        }
+    }
+}
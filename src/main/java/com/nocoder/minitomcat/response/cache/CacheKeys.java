@@ -0,0 +1,77 @@
+package com.nocoder.minitomcat.response.cache;
+
+import com.nocoder.minitomcat.request.Request;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 响应缓存和请求合并共用的key：URL、查询串以及若干请求头的值
+ * @author 29282
+ */
+final class CacheKeys {
+    static final String[] NO_HEADERS = new String[0];
+
+    private CacheKeys() {
+    }
+
+    static String baseKey(Request request, String[] headers) {
+        StringBuilder sb = new StringBuilder(request.getUrl());
+        if (request.getQueryString() != null) {
+            sb.append('?').append(request.getQueryString());
+        }
+        appendHeaders(sb, headers, request);
+        return sb.toString();
+    }
+
+    /**
+     * 在baseKey之后加上Vary请求头的值
+     */
+    static String fullKey(String baseKey, String[] vary, Request request) {
+        if (vary.length == 0) {
+            return baseKey;
+        }
+        StringBuilder sb = new StringBuilder(baseKey).append('\0');
+        appendHeaders(sb, vary, request);
+        return sb.toString();
+    }
+
+    /**
+     * 解析响应头Vary，返回null表示Vary: *
+     */
+    static String[] parseVary(String varyHeader) {
+        if (varyHeader == null) {
+            return NO_HEADERS;
+        }
+        if (varyHeader.trim().equals("*")) {
+            return null;
+        }
+        return varyHeader.trim().split("\\s*,\\s*");
+    }
+
+    /**
+     * \0分隔各个请求头的值，没有该请求头时写入\1，与空值区分开
+     */
+    private static void appendHeaders(StringBuilder sb, String[] names, Request request) {
+        for (String name : names) {
+            String value = header(request, name);
+            sb.append('\0').append(value == null ? "\1" : value);
+        }
+    }
+
+    /**
+     * 请求头按原样保存，这里名称不区分大小写
+     */
+    private static String header(Request request, String name) {
+        String value = request.getHeader(name);
+        if (value != null) {
+            return value;
+        }
+        for (Map.Entry<String, List<String>> entry : request.getHeaders().entrySet()) {
+            if (entry.getKey().equalsIgnoreCase(name) && !entry.getValue().isEmpty()) {
+                return entry.getValue().get(0);
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,66 @@
+package com.nocoder.minitomcat.response.cache;
+
+import com.nocoder.minitomcat.enumeration.HttpStatus;
+import com.nocoder.minitomcat.response.Header;
+import com.nocoder.minitomcat.response.Response;
+
+import java.util.List;
+
+/**
+ * 缓存的一个响应：状态码、响应头和响应体，创建后不再修改，可以被多个请求同时写出
+ * @author 29282
+ */
+public class CachedResponse {
+    /**
+     * 估算时每个响应头的额外开销
+     */
+    private static final int HEADER_OVERHEAD = 64;
+
+    private final String key;
+    private final HttpStatus status;
+    private final String contentType;
+    private final Header[] headers;
+    private final byte[] body;
+    private final long expireAt;
+    private final int size;
+
+    CachedResponse(String key, HttpStatus status, String contentType, List<Header> headers, byte[] body, long expireAt) {
+        this.key = key;
+        this.status = status;
+        this.contentType = contentType;
+        this.headers = new Header[headers.size()];
+        int size = key.length() + body.length + HEADER_OVERHEAD;
+        for (int i = 0; i < this.headers.length; i++) {
+            Header header = headers.get(i);
+            this.headers[i] = new Header(header.getKey(), header.getValue());
+            size += HEADER_OVERHEAD + header.getKey().length() + header.getValue().length();
+        }
+        this.body = body;
+        this.expireAt = expireAt;
+        this.size = size;
+    }
+
+    /**
+     * 把缓存的内容设置到response上，之后照常写回
+     */
+    public void applyTo(Response response) {
+        response.setStatus(status);
+        response.setContentType(contentType);
+        for (Header header : headers) {
+            response.addHeader(new Header(header.getKey(), header.getValue()));
+        }
+        response.setBody(body);
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    long getExpireAt() {
+        return expireAt;
+    }
+
+    int getSize() {
+        return size;
+    }
+}
@@ -0,0 +1,32 @@
+package com.nocoder.minitomcat.response.cache;
+
+/**
+ * 一个servlet映射的请求合并配置
+ * maxWait为等待正在执行的相同请求的最长时间，超时后自己执行；
+ * keyHeaders为除URL和查询串之外用于判断请求是否相同的请求头
+ * @author 29282
+ */
+public class CoalescingPolicy {
+    private final long maxWaitMillis;
+    private final String[] keyHeaders;
+
+    /**
+     * @param maxWaitMillis 最长等待毫秒数
+     * @param keyHeaders    用于判断请求是否相同的请求头
+     */
+    public CoalescingPolicy(long maxWaitMillis, String... keyHeaders) {
+        if (maxWaitMillis <= 0) {
+            throw new IllegalArgumentException("coalescing max wait must be positive");
+        }
+        this.maxWaitMillis = maxWaitMillis;
+        this.keyHeaders = keyHeaders;
+    }
+
+    public long getMaxWaitMillis() {
+        return maxWaitMillis;
+    }
+
+    public String[] getKeyHeaders() {
+        return keyHeaders;
+    }
+}
@@ -0,0 +1,171 @@
+package com.nocoder.minitomcat.response.cache;
+
+import com.nocoder.minitomcat.request.Request;
+import com.nocoder.minitomcat.response.Response;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 合并并发的相同GET请求：第一个请求正常执行，之后到达的相同请求等待它执行完毕并复制它的响应
+ * 以下情况等待的请求自己执行：等待超过maxWait、响应没有完整缓冲（已经流式提交或进入异步模式）、
+ * 响应设置了Cookie、声明了Cache-Control: private/no-store、状态码为5xx，
+ * 或者响应声明了Vary且对应请求头的值与第一个请求不同
+ * @author 29282
+ */
+@Slf4j
+public class RequestCoalescer {
+    private final Logger logger = LoggerFactory.getLogger(RequestCoalescer.class);
+
+    /**
+     * 一次正在执行的请求，每个加入的请求各持有一个，执行者的实例放在flights中，
+     * 等待者的实例与它共享同一个result
+     */
+    public static class Flight {
+        private final String key;
+        private final boolean leader;
+        private final CompletableFuture<Result> result;
+
+        private Flight(String key, boolean leader, CompletableFuture<Result> result) {
+            this.key = key;
+            this.leader = leader;
+            this.result = result;
+        }
+
+        /**
+         * 是否由当前请求执行
+         */
+        public boolean isLeader() {
+            return leader;
+        }
+    }
+
+    private static class Result {
+        final CachedResponse response;
+        final String[] vary;
+        final String fullKey;
+
+        Result(CachedResponse response, String[] vary, String fullKey) {
+            this.response = response;
+            this.vary = vary;
+            this.fullKey = fullKey;
+        }
+    }
+
+    private final Map<String, Flight> flights;
+    private final LongAdder coalesced;
+    private final LongAdder fallbacks;
+
+    public RequestCoalescer() {
+        this.flights = new ConcurrentHashMap<>();
+        this.coalesced = new LongAdder();
+        this.fallbacks = new LongAdder();
+    }
+
+    /**
+     * 加入相同请求的执行，没有正在执行的相同请求时当前请求成为执行者
+     */
+    public Flight join(Request request, CoalescingPolicy policy) {
+        String key = CacheKeys.baseKey(request, policy.getKeyHeaders());
+        Flight existing = flights.get(key);
+        if (existing == null) {
+            Flight flight = new Flight(key, true, new CompletableFuture<>());
+            existing = flights.putIfAbsent(key, flight);
+            if (existing == null) {
+                return flight;
+            }
+        }
+        return new Flight(key, false, existing.result);
+    }
+
+    /**
+     * 执行者在servlet执行完毕、响应写回之前调用，把响应交给等待的请求
+     */
+    public void complete(Flight flight, Request request, Response response) {
+        if (!flight.leader) {
+            return;
+        }
+        flights.remove(flight.key, flight);
+        flight.result.complete(snapshot(flight.key, request, response));
+    }
+
+    /**
+     * 执行者没有得到可以共享的响应（filter拦截、异步、异常等），等待的请求自己执行
+     */
+    public void abandon(Flight flight) {
+        if (!flight.leader) {
+            return;
+        }
+        flights.remove(flight.key, flight);
+        flight.result.complete(null);
+    }
+
+    /**
+     * 等待执行者的响应
+     * @return 不能复用执行者的响应时返回null，此时应自己执行
+     */
+    public CachedResponse await(Flight flight, Request request, CoalescingPolicy policy) {
+        Result result = null;
+        try {
+            result = flight.result.get(policy.getMaxWaitMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            logger.debug("等待相同请求{}超时", request.getUrl());
+        }
+        if (result == null || !result.fullKey.equals(CacheKeys.fullKey(flight.key, result.vary, request))) {
+            fallbacks.increment();
+            return null;
+        }
+        coalesced.increment();
+        return result.response;
+    }
+
+    /**
+     * 复用了其他请求响应的请求数
+     */
+    public long getCoalescedCount() {
+        return coalesced.sum();
+    }
+
+    /**
+     * 等待后仍然自己执行的请求数
+     */
+    public long getFallbackCount() {
+        return fallbacks.sum();
+    }
+
+    private static Result snapshot(String key, Request request, Response response) {
+        if (response.getStatus().getCode() >= 500 || !response.getCookies().isEmpty()
+                || response.getHeader("Set-Cookie") != null) {
+            return null;
+        }
+        String cacheControl = response.getHeader("Cache-Control");
+        if (cacheControl != null) {
+            String lower = cacheControl.toLowerCase();
+            if (lower.contains("private") || lower.contains("no-store")) {
+                return null;
+            }
+        }
+        String[] vary = CacheKeys.parseVary(response.getHeader("Vary"));
+        if (vary == null) {
+            return null;
+        }
+        byte[] body = response.getBufferedBody();
+        if (body == null) {
+            return null;
+        }
+        String fullKey = CacheKeys.fullKey(key, vary, request);
+        CachedResponse cached = new CachedResponse(fullKey, response.getStatus(), response.getContentType(),
+                response.getHeaders(), body, Long.MAX_VALUE);
+        return new Result(cached, vary, fullKey);
+    }
+}
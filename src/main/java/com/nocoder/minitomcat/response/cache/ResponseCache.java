@@ -0,0 +1,146 @@
+package com.nocoder.minitomcat.response.cache;
+
+import com.nocoder.minitomcat.enumeration.HttpStatus;
+import com.nocoder.minitomcat.request.Request;
+import com.nocoder.minitomcat.response.Response;
+import com.nocoder.minitomcat.util.BoundedTtlCache;
+import com.nocoder.minitomcat.util.CoarseClock;
+import com.nocoder.minitomcat.util.PropertyUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 整个应用共享的响应缓存，只对配置了ResponseCachePolicy的servlet映射上的GET请求生效
+ * 缓存key为URL、查询串、策略中配置的请求头，以及servlet通过Vary声明的请求头的值；
+ * Vary的请求头名称按不含Vary部分的key记录下来，查找时先取出名称再拼出完整的key。
+ * 只缓存200且没有设置Cookie的响应，servlet通过Cache-Control声明no-store、no-cache、private时不缓存，
+ * 声明了s-maxage或max-age时以它作为缓存时间，Vary: *不缓存；流式输出超过缓冲已经提交的响应也不缓存。
+ * 按估算字节数限制大小，超过上限时按写入顺序淘汰，过期的响应会被清除，见BoundedTtlCache；
+ * Vary的请求头名称单独记录，与对应的响应同时过期，占用另外1/16的上限
+ * server.response-cache.max-bytes  缓存的最大字节数，默认32MB
+ * @author 29282
+ */
+@Slf4j
+public class ResponseCache {
+    private final Logger logger = LoggerFactory.getLogger(ResponseCache.class);
+
+    /**
+     * 每条Vary记录的估算开销
+     */
+    private static final int VARY_OVERHEAD = 64;
+
+    private final BoundedTtlCache<CachedResponse> entries;
+    /**
+     * 不含Vary部分的key -> servlet声明的Vary请求头
+     */
+    private final BoundedTtlCache<String[]> varies;
+    private final LongAdder hits;
+    private final LongAdder misses;
+
+    public ResponseCache() {
+        this(Long.parseLong(PropertyUtil.getProperty("server.response-cache.max-bytes", String.valueOf(32 * 1024 * 1024))));
+    }
+
+    public ResponseCache(long maxBytes) {
+        this.entries = new BoundedTtlCache<>(maxBytes);
+        this.varies = new BoundedTtlCache<>(Math.max(VARY_OVERHEAD, maxBytes / 16));
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+    }
+
+    /**
+     * @return 未命中或已过期时返回null
+     */
+    public CachedResponse lookup(Request request, ResponseCachePolicy policy) {
+        String baseKey = CacheKeys.baseKey(request, policy.getKeyHeaders());
+        String[] vary = varies.get(baseKey);
+        CachedResponse cached = entries.get(CacheKeys.fullKey(baseKey, vary == null ? CacheKeys.NO_HEADERS : vary, request));
+        if (cached == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return cached;
+    }
+
+    /**
+     * servlet执行完毕、响应写回之前调用，响应可以缓存时保存下来
+     */
+    public void store(Request request, Response response, ResponseCachePolicy policy) {
+        if (response.getStatus() != HttpStatus.OK || !response.getCookies().isEmpty()
+                || response.getHeader("Set-Cookie") != null) {
+            return;
+        }
+        long ttlMillis = ttlMillis(response.getHeader("Cache-Control"), policy);
+        if (ttlMillis <= 0) {
+            return;
+        }
+        String[] vary = CacheKeys.parseVary(response.getHeader("Vary"));
+        if (vary == null) {
+            return;
+        }
+        byte[] body = response.getBufferedBody();
+        if (body == null) {
+            return;
+        }
+        String baseKey = CacheKeys.baseKey(request, policy.getKeyHeaders());
+        String key = CacheKeys.fullKey(baseKey, vary, request);
+        long expireAt = CoarseClock.currentTimeMillis() + ttlMillis;
+        CachedResponse cached = new CachedResponse(key, response.getStatus(), response.getContentType(),
+                response.getHeaders(), body, expireAt);
+        varies.put(baseKey, vary, VARY_OVERHEAD + baseKey.length() * 2L, expireAt);
+        entries.put(key, cached, cached.getSize(), expireAt);
+        logger.debug("缓存响应 {}", request.getUrl());
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public double getHitRatio() {
+        long hit = hits.sum();
+        long total = hit + misses.sum();
+        return total == 0 ? 0 : (double) hit / total;
+    }
+
+    public long getSize() {
+        return entries.getSize();
+    }
+
+    /**
+     * 按servlet的Cache-Control决定缓存时间，返回0表示不缓存
+     */
+    private static long ttlMillis(String cacheControl, ResponseCachePolicy policy) {
+        if (cacheControl == null) {
+            return policy.getTtlMillis();
+        }
+        long maxAge = -1;
+        long sharedMaxAge = -1;
+        for (String directive : cacheControl.split(",")) {
+            directive = directive.trim().toLowerCase();
+            if (directive.equals("no-store") || directive.equals("no-cache") || directive.equals("private")) {
+                return 0;
+            }
+            try {
+                if (directive.startsWith("s-maxage=")) {
+                    sharedMaxAge = Long.parseLong(directive.substring("s-maxage=".length()));
+                } else if (directive.startsWith("max-age=")) {
+                    maxAge = Long.parseLong(directive.substring("max-age=".length()));
+                }
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+        if (sharedMaxAge >= 0) {
+            return sharedMaxAge * 1000;
+        }
+        return maxAge >= 0 ? maxAge * 1000 : policy.getTtlMillis();
+    }
+}
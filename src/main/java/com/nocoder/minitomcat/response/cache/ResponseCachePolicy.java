@@ -0,0 +1,32 @@
+package com.nocoder.minitomcat.response.cache;
+
+/**
+ * 一个servlet映射的响应缓存配置
+ * ttl为servlet没有通过Cache-Control声明max-age时的缓存时间；
+ * keyHeaders为除URL和查询串之外参与缓存key的请求头，servlet通过Vary声明的请求头会自动加入
+ * @author 29282
+ */
+public class ResponseCachePolicy {
+    private final long ttlMillis;
+    private final String[] keyHeaders;
+
+    /**
+     * @param ttlSeconds 缓存秒数
+     * @param keyHeaders 参与缓存key的请求头
+     */
+    public ResponseCachePolicy(long ttlSeconds, String... keyHeaders) {
+        if (ttlSeconds <= 0) {
+            throw new IllegalArgumentException("response cache ttl must be positive");
+        }
+        this.ttlMillis = ttlSeconds * 1000;
+        this.keyHeaders = keyHeaders;
+    }
+
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    public String[] getKeyHeaders() {
+        return keyHeaders;
+    }
+}
@@ -0,0 +1,23 @@
+package com.nocoder.minitomcat.response.sse;
+
+/**
+ * 事件流，由Response.openEventStream打开
+ * 打开后servlet直接返回，连接保持注册在Poller上，不占用worker线程；
+ * send可以在任意线程中调用，数据由连接所在的Poller线程批量写出
+ * @author 29282
+ */
+public interface EventStream {
+    /**
+     * 发送一个事件，只是放入待发送队列，不会阻塞
+     * @param event
+     * @return 连接已关闭时返回false
+     */
+    boolean send(SseEvent event);
+
+    /**
+     * 写完已排队的事件后关闭连接
+     */
+    void close();
+
+    boolean isOpen();
+}
@@ -0,0 +1,51 @@
+package com.nocoder.minitomcat.response.sse;
+
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 事件广播器，应用把打开的EventStream注册进来，之后一次broadcast推送给所有连接
+ * 事件只编码一次；各个连接只是入队并通知自己的Poller，同一个Poller一轮select中只唤醒一次，
+ * 所以推送给成千上万个连接也不会产生同样数量的系统调用
+ * @author 29282
+ */
+public class SseBroadcaster {
+    private final Set<EventStream> streams = ConcurrentHashMap.newKeySet();
+
+    public void register(EventStream stream) {
+        streams.add(stream);
+    }
+
+    public void unregister(EventStream stream) {
+        streams.remove(stream);
+    }
+
+    /**
+     * @param event
+     * @return 成功入队的连接数
+     */
+    public int broadcast(SseEvent event) {
+        int count = 0;
+        for (Iterator<EventStream> it = streams.iterator(); it.hasNext(); ) {
+            EventStream stream = it.next();
+            if (stream.send(event)) {
+                count++;
+            } else {
+                it.remove();
+            }
+        }
+        return count;
+    }
+
+    public int size() {
+        return streams.size();
+    }
+
+    public void closeAll() {
+        for (EventStream stream : streams) {
+            stream.close();
+        }
+        streams.clear();
+    }
+}
@@ -0,0 +1,62 @@
+package com.nocoder.minitomcat.response.sse;
+
+import static com.nocoder.minitomcat.constant.CharsetProperties.UTF_8_CHARSET;
+
+/**
+ * 一条Server-Sent Event
+ * 创建时即编码为字节，广播给多个连接时只编码一次
+ * key不为null的事件在慢客户端上会被合并：同一key尚未发出的旧事件会被新事件替换
+ * @author 29282
+ */
+public class SseEvent {
+    /**
+     * 心跳注释，浏览器会忽略
+     */
+    public static final SseEvent HEARTBEAT = new SseEvent(":\n\n".getBytes(UTF_8_CHARSET), null);
+
+    private final byte[] bytes;
+    private final String key;
+
+    private SseEvent(byte[] bytes, String key) {
+        this.bytes = bytes;
+        this.key = key;
+    }
+
+    public static SseEvent of(String data) {
+        return of(null, null, data, null);
+    }
+
+    public static SseEvent of(String event, String data) {
+        return of(null, event, data, null);
+    }
+
+    /**
+     * @param id    事件id，可以为null
+     * @param event 事件名称，可以为null
+     * @param data  数据，多行数据会拆分成多个data字段
+     * @param key   合并的key，为null时不合并
+     * @return
+     */
+    public static SseEvent of(String id, String event, String data, String key) {
+        StringBuilder sb = new StringBuilder();
+        if (id != null) {
+            sb.append("id: ").append(id).append('\n');
+        }
+        if (event != null) {
+            sb.append("event: ").append(event).append('\n');
+        }
+        for (String line : data.split("\r\n|\r|\n", -1)) {
+            sb.append("data: ").append(line).append('\n');
+        }
+        sb.append('\n');
+        return new SseEvent(sb.toString().getBytes(UTF_8_CHARSET), key);
+    }
+
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    public String getKey() {
+        return key;
+    }
+}
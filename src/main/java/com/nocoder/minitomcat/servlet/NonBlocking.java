@@ -0,0 +1,14 @@
+package com.nocoder.minitomcat.servlet;
+
+/**
+ * 标记接口，实现它的Servlet/Filter声明自己不会阻塞：不读写文件和网络、不等待锁、不sleep，几微秒内返回
+ * NIO连接器中，servlet和映射到的所有filter都实现了它时，请求直接在Poller线程中执行并写回响应，
+ * 不再经过worker线程池，省去两次线程切换；执行期间同一个Poller上的其他连接都在等待，
+ * 阻塞超过server.inline.max-blocking毫秒时会打印警告，见InlineWatchdog
+ * 写回时只做一次非阻塞写，写不完的部分交给worker线程池；但servlet不能调用flushBuffer或写出超过响应缓冲的内容，
+ * 这些写出发生在service期间，仍然会在Poller线程中阻塞等待可写
+ * BIO/AIO连接器忽略这个标记
+ * @author 29282
+ */
+public interface NonBlocking {
+}
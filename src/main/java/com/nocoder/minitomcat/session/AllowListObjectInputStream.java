@@ -0,0 +1,92 @@
+package com.nocoder.minitomcat.session;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 只允许反序列化白名单中的类，防止对端发来的数据或者被篡改的session文件触发反序列化利用链
+ * 编译目标是Java 8，没有java.io.ObjectInputFilter，在resolveClass中逐个校验流中出现的类
+ * 白名单为逗号分隔的规则：
+ * com.foo.User   只允许该类
+ * com.foo.*      允许该包中的类，不包括子包
+ * com.foo.**     允许该包及其子包中的类
+ * 数组按元素类型校验，基本类型及其数组总是允许；动态代理总是拒绝
+ * @author 29282
+ */
+class AllowListObjectInputStream extends ObjectInputStream {
+    /**
+     * 默认只允许JDK中常用的值类型和集合
+     */
+    static final String DEFAULT_PATTERNS = "java.lang.*,java.util.*,java.util.concurrent.*,java.time.*,java.math.*";
+
+    private final List<String> patterns;
+
+    AllowListObjectInputStream(InputStream in, List<String> patterns) throws IOException {
+        super(in);
+        this.patterns = patterns;
+    }
+
+    /**
+     * 解析逗号分隔的白名单
+     */
+    static List<String> parse(String value) {
+        List<String> patterns = new ArrayList<>();
+        for (String pattern : value.split(",")) {
+            if (!pattern.trim().isEmpty()) {
+                patterns.add(pattern.trim());
+            }
+        }
+        return patterns;
+    }
+
+    @Override
+    protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+        String name = desc.getName();
+        if (!allowed(name)) {
+            throw new InvalidClassException(name, "class is not in the session allowed-classes list");
+        }
+        return super.resolveClass(desc);
+    }
+
+    @Override
+    protected Class<?> resolveProxyClass(String[] interfaces) throws IOException {
+        throw new InvalidClassException("proxy classes are not allowed");
+    }
+
+    private boolean allowed(String name) {
+        int dimensions = 0;
+        while (dimensions < name.length() && name.charAt(dimensions) == '[') {
+            dimensions++;
+        }
+        if (dimensions > 0) {
+            // [I、[[J是基本类型数组，[Lcom.foo.User;取出元素类型
+            if (name.charAt(dimensions) != 'L') {
+                return true;
+            }
+            name = name.substring(dimensions + 1, name.length() - 1);
+        }
+        int dot = name.lastIndexOf('.');
+        String pkg = dot < 0 ? "" : name.substring(0, dot);
+        for (int i = 0; i < patterns.size(); i++) {
+            String pattern = patterns.get(i);
+            if (pattern.endsWith(".**")) {
+                String prefix = pattern.substring(0, pattern.length() - 3);
+                if (pkg.equals(prefix) || pkg.startsWith(prefix + ".")) {
+                    return true;
+                }
+            } else if (pattern.endsWith(".*")) {
+                if (pkg.equals(pattern.substring(0, pattern.length() - 2))) {
+                    return true;
+                }
+            } else if (name.equals(pattern)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -2,27 +2,65 @@ package com.nocoder.minitomcat.session;
 
 
 import com.nocoder.minitomcat.context.WebApplication;
+import com.nocoder.minitomcat.util.CoarseClock;
 
-import java.time.Instant;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 public class HttpSession {
     private String id;
-    private Map<String, Object> attributes;
-    private boolean isValid;
+    /**
+     * 属性，由SessionStore决定是否常驻堆内；为null时表示不在堆内，访问时通过SessionManager加载
+     */
+    private volatile Map<String, Object> attributes;
+    /**
+     * 属性被修改过，需要由SessionStore持久化
+     */
+    private volatile boolean dirty;
+    private volatile boolean isValid;
     /**
      * 用于判断sessiion是否过期，标准为当前时间-上次访问时间 >= 阈值
+     * 取自CoarseClock的毫秒数，访问时只是一次volatile写
+     */
+    private volatile long lastAccessedTime;
+    /**
+     * 过期时间，单位秒
+     */
+    private volatile int maxInactiveInterval;
+    /**
+     * 属性已经被钝化到磁盘
+     */
+    private volatile boolean passivated;
+    /**
+     * 正在使用该session的请求数，归零时交给SessionStore.afterAccess
+     */
+    private final AtomicInteger accessCount;
+    /**
+     * 估算的堆内存占用，随属性的修改增量更新
      */
-    private Instant lastAccessed;
+    private final AtomicLong estimatedBytes;
+    private SessionManager sessionManager;
+
+
+    public HttpSession(String id, int maxInactiveInterval) {
+        this(id, maxInactiveInterval, CoarseClock.currentTimeMillis(), new ConcurrentHashMap<>());
+    }
 
-    
-    public HttpSession(String id) {
+    /**
+     * 由SessionStore恢复session时使用
+     * @param attributes 为null时表示属性不在堆内
+     */
+    public HttpSession(String id, int maxInactiveInterval, long lastAccessedTime, Map<String, Object> attributes) {
         this.id = id;
-        this.attributes = new ConcurrentHashMap<>();
+        this.attributes = attributes;
         this.isValid = true;
-        this.lastAccessed = Instant.now();
+        this.maxInactiveInterval = maxInactiveInterval;
+        this.lastAccessedTime = lastAccessedTime;
+        this.accessCount = new AtomicInteger();
+        this.estimatedBytes = new AtomicLong(SessionSizeEstimator.session(id));
     }
 
     /**
@@ -31,39 +69,195 @@ public class HttpSession {
      */
     public void invalidate() {
         this.isValid = false;
-        this.attributes.clear();
+        Map<String, Object> current = this.attributes;
+        if (current != null) {
+            current.clear();
+        }
         WebApplication.getServletContext().invalidateSession(this);
     }
 
     public Object getAttribute(String key) {
         if (isValid) {
-            this.lastAccessed = Instant.now();
-            return attributes.get(key);
+            touch();
+            // 读取不加锁：钝化前取到的Map中的值仍然正确，属性不在堆内时attributes()在锁内加载
+            return attributes().get(key);
         }
         throw new IllegalStateException("session has invalidated");
     }
 
     public void setAttribute(String key, Object value) {
         if (isValid) {
-            this.lastAccessed = Instant.now();
-            attributes.put(key, value);
+            touch();
+            Object old;
+            if (lockForPassivation()) {
+                // 与钝化互斥，否则钝化序列化属性期间写入的值会随被丢弃的Map一起丢失
+                synchronized (this) {
+                    old = attributes().put(key, value);
+                }
+            } else {
+                old = attributes().put(key, value);
+            }
+            dirty = true;
+            // 在锁外更新大小，超出预算时的淘汰会去获取其他session的锁
+            adjustEstimatedBytes(SessionSizeEstimator.attribute(key, value) - SessionSizeEstimator.attribute(key, old));
         } else {
             throw new IllegalStateException("session has invalidated");
         }
     }
 
+    /**
+     * 更新访问时间；时钟在同一个100ms内不变时不写，减少多线程访问同一session时的缓存行争用
+     */
+    void touch() {
+        long now = CoarseClock.currentTimeMillis();
+        if (now != lastAccessedTime) {
+            lastAccessedTime = now;
+        }
+    }
+
+    /**
+     * 返回属性，不在堆内时先加载
+     * 开启钝化时修改属性应持有session的锁，钝化在同一把锁下序列化并丢弃这个Map
+     */
+    Map<String, Object> attributes() {
+        Map<String, Object> current = attributes;
+        if (current == null) {
+            synchronized (this) {
+                current = attributes;
+                if (current == null) {
+                    current = sessionManager.loadAttributes(this);
+                    attributes = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * 只有开启了钝化才需要在修改属性时加锁
+     */
+    private boolean lockForPassivation() {
+        SessionManager manager = sessionManager;
+        return manager != null && manager.isPassivationEnabled();
+    }
+
     public String getId() {
         return id;
     }
 
-    public Instant getLastAccessed() {
-        return lastAccessed;
+    public long getLastAccessedTime() {
+        return lastAccessedTime;
     }
 
+    /**
+     * 由SessionStore同步其他节点上的访问时间
+     */
+    void setLastAccessedTime(long lastAccessedTime) {
+        this.lastAccessedTime = lastAccessedTime;
+    }
+
+    public int getMaxInactiveInterval() {
+        return maxInactiveInterval;
+    }
+
+    /**
+     * 修改过期时间，在时间轮下一次检查到该session时生效
+     * @param maxInactiveInterval 秒
+     */
+    public void setMaxInactiveInterval(int maxInactiveInterval) {
+        this.maxInactiveInterval = maxInactiveInterval;
+    }
+
+    public boolean isValid() {
+        return isValid;
+    }
+
+    void setValid(boolean valid) {
+        isValid = valid;
+    }
+
+    /**
+     * 按访问时间计算是否已经过期，不依赖时间轮是否已经扫描到
+     */
+    public boolean isExpired(long now) {
+        return now - lastAccessedTime >= maxInactiveInterval * 1000L;
+    }
+
+    boolean isPassivated() {
+        return passivated;
+    }
+
+    void setPassivated(boolean passivated) {
+        this.passivated = passivated;
+    }
+
+    public long getEstimatedBytes() {
+        return estimatedBytes.get();
+    }
+
+    /**
+     * 属性变化后更新估算大小，并通知SessionManager检查内存预算
+     */
+    void adjustEstimatedBytes(long delta) {
+        if (delta == 0) {
+            return;
+        }
+        estimatedBytes.addAndGet(delta);
+        SessionManager manager = sessionManager;
+        if (manager != null) {
+            manager.onSizeChanged(this, delta);
+        }
+    }
+
+    /**
+     * 激活时把属性的大小加回估算值，由SessionManager同时计入总量
+     */
+    void restoreEstimatedBytes(long bytes) {
+        estimatedBytes.addAndGet(bytes);
+    }
+
+    void setSessionManager(SessionManager sessionManager) {
+        this.sessionManager = sessionManager;
+    }
+
+    AtomicInteger getAccessCount() {
+        return accessCount;
+    }
+
+    /**
+     * 堆内的属性，不在堆内时返回null，不会触发加载；供SessionStore使用
+     */
+    Map<String, Object> getResidentAttributes() {
+        return attributes;
+    }
+
+    /**
+     * 由SessionStore卸载或恢复属性
+     */
+    void setResidentAttributes(Map<String, Object> attributes) {
+        this.attributes = attributes;
+    }
+
+    boolean isDirty() {
+        return dirty;
+    }
+
+    void setDirty(boolean dirty) {
+        this.dirty = dirty;
+    }
 
     public void removeAttribute(String key) {
-        attributes.remove(key);
+        Object old;
+        if (lockForPassivation()) {
+            synchronized (this) {
+                old = attributes().remove(key);
+            }
+        } else {
+            old = attributes().remove(key);
+        }
+        dirty = true;
+        adjustEstimatedBytes(-SessionSizeEstimator.attribute(key, old));
     }
-    
-    
+
+
 }
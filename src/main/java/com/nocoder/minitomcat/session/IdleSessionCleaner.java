@@ -11,7 +11,7 @@ import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 /**
- * 过期session的清除器
+ * 过期session的清除器，每个时间轮刻度推进一次SessionExpiryWheel
  */
 @Slf4j
 public class IdleSessionCleaner implements Runnable {
@@ -31,13 +31,17 @@ public class IdleSessionCleaner implements Runnable {
     }
     
     public void start() {
-        executor.scheduleAtFixedRate(this, 5, 5, TimeUnit.SECONDS);
+        executor.scheduleAtFixedRate(this, SessionManager.TICK_MILLIS, SessionManager.TICK_MILLIS, TimeUnit.MILLISECONDS);
     }
     
     @Override
     public void run() {
-        logger.info("开始扫描过期session...");
-        WebApplication.getServletContext().cleanIdleSessions();
-        logger.info("扫描结束...");
+        logger.debug("推进session时间轮...");
+        try {
+            WebApplication.getServletContext().cleanIdleSessions();
+        } catch (Exception e) {
+            // 异常会导致周期任务停止，这里只记录
+            logger.error("清除过期session失败", e);
+        }
     }
 }
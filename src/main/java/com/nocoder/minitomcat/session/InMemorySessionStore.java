@@ -0,0 +1,50 @@
+package com.nocoder.minitomcat.session;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * 堆内存储，属性始终常驻堆内，重启后session丢失
+ * @author 29282
+ */
+public class InMemorySessionStore implements SessionStore {
+    private final Map<String, HttpSession> sessions = new ConcurrentHashMap<>();
+
+    @Override
+    public void load(Consumer<HttpSession> consumer) {
+    }
+
+    @Override
+    public HttpSession get(String id) {
+        return sessions.get(id);
+    }
+
+    @Override
+    public void add(HttpSession session) {
+        sessions.put(session.getId(), session);
+    }
+
+    @Override
+    public boolean remove(HttpSession session) {
+        return sessions.remove(session.getId(), session);
+    }
+
+    @Override
+    public Map<String, Object> loadAttributes(HttpSession session) {
+        return new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public void afterAccess(HttpSession session) {
+    }
+
+    @Override
+    public int size() {
+        return sessions.size();
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,440 @@
+package com.nocoder.minitomcat.session;
+
+import com.nocoder.minitomcat.util.PropertyUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * 基于内存映射文件的session存储，session属性序列化后保存在映射文件中，不占用堆，重启后可以恢复
+ * 堆内只保留id到记录位置的索引和HttpSession对象本身（id、访问时间等），属性在请求访问时才反序列化，
+ * 最后一个使用该session的请求结束后，修改过的属性追加为一条新记录，然后从堆中卸载。
+ *
+ * 文件格式：[int magic][int version]，之后是依次追加的记录：
+ * [int 记录长度][byte 状态][long 上次访问时间][int 过期秒数][short id长度][id][序列化的属性HashMap]
+ * 记录长度最后写入，启动时读到长度为0说明后面是未写完的记录；旧记录原地标记为DEAD，
+ * 访问时间原地更新。DEAD记录占用的空间超过有效数据时，把有效记录复制到新文件后替换原文件（压缩）。
+ * 没有实现Serializable的属性不会被保存。
+ * 不在请求中（例如其他线程持有session引用）修改的属性，可能在session卸载后丢失
+ * server.session.store.file      映射文件路径，默认sessions.dat
+ * server.session.store.capacity  映射文件大小，默认256MB
+ * server.session.store.allowed-classes  允许反序列化的类，见AllowListObjectInputStream，
+ *                                       默认与server.session.replication.allowed-classes相同
+ * @author 29282
+ */
+@Slf4j
+public class MappedFileSessionStore implements SessionStore {
+    private final Logger logger = LoggerFactory.getLogger(MappedFileSessionStore.class);
+
+    private static final int MAGIC = 0x4D545353;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+
+    private static final byte LIVE = 1;
+    private static final byte DEAD = 2;
+    private static final int OFFSET_STATE = 4;
+    private static final int OFFSET_LAST_ACCESSED = 5;
+    private static final int OFFSET_MAX_INACTIVE = 13;
+    private static final int OFFSET_ID_LENGTH = 17;
+    private static final int OFFSET_ID = 19;
+
+    private final Path path;
+    private final int capacity;
+    private final List<String> allowedClasses;
+    private final Map<String, Entry> index;
+    /**
+     * 追加记录和压缩持有写锁，读取属性和原地更新访问时间持有读锁；映射缓冲只使用绝对位置读写
+     */
+    private final ReentrantReadWriteLock lock;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int writePosition;
+    /**
+     * 有效记录的总字节数
+     */
+    private long liveBytes;
+
+    private static class Entry {
+        final HttpSession session;
+        /**
+         * 记录在文件中的位置，还没有写入时为-1
+         */
+        int offset = -1;
+        int length;
+
+        Entry(HttpSession session) {
+            this.session = session;
+        }
+    }
+
+    public MappedFileSessionStore() {
+        this(Paths.get(PropertyUtil.getProperty("server.session.store.file", "sessions.dat")),
+                Integer.parseInt(PropertyUtil.getProperty("server.session.store.capacity", String.valueOf(256 * 1024 * 1024))),
+                PropertyUtil.getProperty("server.session.store.allowed-classes",
+                        PropertyUtil.getProperty("server.session.replication.allowed-classes", AllowListObjectInputStream.DEFAULT_PATTERNS)));
+    }
+
+    public MappedFileSessionStore(Path path, int capacity) {
+        this(path, capacity, AllowListObjectInputStream.DEFAULT_PATTERNS);
+    }
+
+    /**
+     * @param allowedClasses 允许反序列化的类，逗号分隔
+     */
+    public MappedFileSessionStore(Path path, int capacity, String allowedClasses) {
+        this.path = path;
+        this.capacity = capacity;
+        this.allowedClasses = AllowListObjectInputStream.parse(allowedClasses);
+        this.index = new ConcurrentHashMap<>();
+        this.lock = new ReentrantReadWriteLock();
+    }
+
+    @Override
+    public void load(Consumer<HttpSession> consumer) {
+        long start = System.currentTimeMillis();
+        lock.writeLock().lock();
+        try {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(header, 0);
+            header.flip();
+            if (header.remaining() < HEADER_SIZE || header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                if (channel.size() > 0) {
+                    logger.warn("{} 不是session存储文件或者版本不兼容，重新初始化", path);
+                    channel.truncate(0);
+                }
+            }
+            int size = (int) Math.max(capacity, channel.size());
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            int position = HEADER_SIZE;
+            while (position + OFFSET_ID <= size) {
+                int length = buffer.getInt(position);
+                if (length <= 0 || position + 4 + length > size) {
+                    break;
+                }
+                if (buffer.get(position + OFFSET_STATE) == LIVE) {
+                    HttpSession session = new HttpSession(readId(position),
+                            buffer.getInt(position + OFFSET_MAX_INACTIVE),
+                            buffer.getLong(position + OFFSET_LAST_ACCESSED), null);
+                    Entry entry = new Entry(session);
+                    entry.offset = position;
+                    entry.length = 4 + length;
+                    Entry old = index.put(session.getId(), entry);
+                    if (old != null) {
+                        // 追加新记录后、标记旧记录前退出时，同一个id会有两条有效记录，以后面的为准
+                        buffer.put(old.offset + OFFSET_STATE, DEAD);
+                        liveBytes -= old.length;
+                    }
+                    liveBytes += entry.length;
+                }
+                position += 4 + length;
+            }
+            writePosition = position;
+        } catch (IOException e) {
+            throw new IllegalStateException("打开session存储文件失败: " + path, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        for (Entry entry : index.values()) {
+            consumer.accept(entry.session);
+        }
+        logger.info("从{}恢复{}个session，耗时{}ms", path, index.size(), System.currentTimeMillis() - start);
+    }
+
+    @Override
+    public HttpSession get(String id) {
+        Entry entry = index.get(id);
+        return entry == null ? null : entry.session;
+    }
+
+    /**
+     * 新建的session在第一个请求结束时写入文件
+     */
+    @Override
+    public void add(HttpSession session) {
+        session.setDirty(true);
+        index.put(session.getId(), new Entry(session));
+    }
+
+    @Override
+    public boolean remove(HttpSession session) {
+        Entry entry = index.get(session.getId());
+        if (entry == null || entry.session != session || !index.remove(session.getId(), entry)) {
+            return false;
+        }
+        lock.writeLock().lock();
+        try {
+            if (entry.offset >= 0) {
+                buffer.put(entry.offset + OFFSET_STATE, DEAD);
+                liveBytes -= entry.length;
+                entry.offset = -1;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return true;
+    }
+
+    @Override
+    public Map<String, Object> loadAttributes(HttpSession session) {
+        Map<String, Object> attributes = new ConcurrentHashMap<>();
+        Entry entry = index.get(session.getId());
+        if (entry == null) {
+            return attributes;
+        }
+        byte[] data;
+        lock.readLock().lock();
+        try {
+            if (entry.offset < 0) {
+                return attributes;
+            }
+            int idLength = buffer.getShort(entry.offset + OFFSET_ID_LENGTH);
+            int from = entry.offset + OFFSET_ID + idLength;
+            data = new byte[entry.offset + entry.length - from];
+            ByteBuffer view = buffer.duplicate();
+            view.position(from);
+            view.get(data);
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (data.length == 0) {
+            return attributes;
+        }
+        try (ObjectInputStream in = new AllowListObjectInputStream(new ByteArrayInputStream(data), allowedClasses)) {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> stored = (Map<String, Object>) in.readObject();
+            attributes.putAll(stored);
+        } catch (IOException | ClassNotFoundException e) {
+            logger.error("session {} 的属性反序列化失败", session.getId(), e);
+        }
+        return attributes;
+    }
+
+    /**
+     * 属性修改过时追加新记录，否则只原地更新访问时间；写入成功后从堆中卸载属性
+     */
+    @Override
+    public void afterAccess(HttpSession session) {
+        Entry entry = index.get(session.getId());
+        if (entry == null || entry.session != session) {
+            return;
+        }
+        synchronized (session) {
+            // 在release和这里之间又有请求取到了这个session
+            if (session.getAccessCount().get() > 0) {
+                return;
+            }
+            Map<String, Object> attributes = session.getResidentAttributes();
+            if (session.isDirty()) {
+                session.setDirty(false);
+                byte[] record = encode(session, attributes);
+                if (record == null || !append(entry, record)) {
+                    session.setDirty(true);
+                    return;
+                }
+            } else {
+                lock.readLock().lock();
+                try {
+                    if (entry.offset >= 0) {
+                        buffer.putLong(entry.offset + OFFSET_LAST_ACCESSED, session.getLastAccessedTime());
+                    }
+                } finally {
+                    lock.readLock().unlock();
+                }
+            }
+            if (entry.offset >= 0) {
+                session.setResidentAttributes(null);
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return index.size();
+    }
+
+    @Override
+    public void close() {
+        // 仍在使用中的session把修改过的属性写回
+        for (Entry entry : index.values()) {
+            HttpSession session = entry.session;
+            synchronized (session) {
+                if (session.isDirty()) {
+                    session.setDirty(false);
+                    byte[] record = encode(session, session.getResidentAttributes());
+                    if (record != null) {
+                        append(entry, record);
+                    }
+                }
+            }
+        }
+        lock.writeLock().lock();
+        try {
+            if (buffer != null) {
+                buffer.force();
+                channel.close();
+            }
+        } catch (IOException e) {
+            logger.error("关闭session存储文件失败", e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 追加一条记录并把旧记录标记为DEAD
+     * @return 空间不足时返回false
+     */
+    private boolean append(Entry entry, byte[] record) {
+        lock.writeLock().lock();
+        try {
+            if (index.get(entry.session.getId()) != entry) {
+                // 已经被删除，不能再写入有效记录
+                return true;
+            }
+            if (writePosition + record.length > buffer.capacity()) {
+                compact();
+                if (writePosition + record.length > buffer.capacity()) {
+                    logger.error("session存储文件{}已满，session {} 的属性保留在堆中", path, entry.session.getId());
+                    return false;
+                }
+            }
+            int position = writePosition;
+            ByteBuffer view = buffer.duplicate();
+            view.position(position + 4);
+            view.put(record, 4, record.length - 4);
+            // 长度最后写入，之前退出时这条记录不会被读到
+            buffer.putInt(position, record.length - 4);
+            writePosition += record.length;
+            if (entry.offset >= 0) {
+                buffer.put(entry.offset + OFFSET_STATE, DEAD);
+                liveBytes -= entry.length;
+            }
+            entry.offset = position;
+            entry.length = record.length;
+            liveBytes += record.length;
+            if (writePosition > buffer.capacity() / 2 && writePosition - HEADER_SIZE > 2 * liveBytes) {
+                compact();
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 把有效记录复制到新文件，再替换原文件，调用时持有写锁
+     */
+    private void compact() {
+        long start = System.currentTimeMillis();
+        Path target = path.resolveSibling(path.getFileName() + ".compact");
+        Entry[] entries = index.values().stream().filter(entry -> entry.offset >= 0).toArray(Entry[]::new);
+        int[] offsets = new int[entries.length];
+        FileChannel targetChannel = null;
+        try {
+            Files.deleteIfExists(target);
+            targetChannel = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            MappedByteBuffer targetBuffer = targetChannel.map(FileChannel.MapMode.READ_WRITE, 0, buffer.capacity());
+            targetBuffer.putInt(0, MAGIC);
+            targetBuffer.putInt(4, VERSION);
+            targetBuffer.position(HEADER_SIZE);
+            for (int i = 0; i < entries.length; i++) {
+                ByteBuffer record = buffer.duplicate();
+                record.position(entries[i].offset);
+                record.limit(entries[i].offset + entries[i].length);
+                offsets[i] = targetBuffer.position();
+                targetBuffer.put(record);
+            }
+            targetBuffer.force();
+            Files.move(target, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            channel.close();
+            channel = targetChannel;
+            buffer = targetBuffer;
+            writePosition = targetBuffer.position();
+            liveBytes = writePosition - HEADER_SIZE;
+            for (int i = 0; i < entries.length; i++) {
+                entries[i].offset = offsets[i];
+            }
+            logger.info("压缩session存储文件{}，有效数据{}字节，耗时{}ms", path, liveBytes, System.currentTimeMillis() - start);
+        } catch (IOException e) {
+            logger.error("压缩session存储文件失败", e);
+            if (targetChannel != null && targetChannel != channel) {
+                try {
+                    targetChannel.close();
+                    Files.deleteIfExists(target);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private String readId(int position) {
+        byte[] id = new byte[buffer.getShort(position + OFFSET_ID_LENGTH)];
+        ByteBuffer view = buffer.duplicate();
+        view.position(position + OFFSET_ID);
+        view.get(id);
+        return new String(id, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 编码一条完整的记录，长度字段由append写入
+     * @return 属性序列化失败时返回null
+     */
+    private byte[] encode(HttpSession session, Map<String, Object> attributes) {
+        byte[] id = session.getId().getBytes(StandardCharsets.UTF_8);
+        byte[] data = serialize(session, attributes);
+        if (data == null) {
+            return null;
+        }
+        ByteBuffer record = ByteBuffer.allocate(OFFSET_ID + id.length + data.length);
+        record.putInt(0);
+        record.put(LIVE);
+        record.putLong(session.getLastAccessedTime());
+        record.putInt(session.getMaxInactiveInterval());
+        record.putShort((short) id.length);
+        record.put(id);
+        record.put(data);
+        return record.array();
+    }
+
+    private byte[] serialize(HttpSession session, Map<String, Object> attributes) {
+        if (attributes == null || attributes.isEmpty()) {
+            return new byte[0];
+        }
+        HashMap<String, Object> stored = new HashMap<>();
+        for (Map.Entry<String, Object> attribute : attributes.entrySet()) {
+            if (attribute.getValue() instanceof Serializable) {
+                stored.put(attribute.getKey(), attribute.getValue());
+            } else {
+                logger.warn("session {} 的属性 {} 没有实现Serializable，不会被保存", session.getId(), attribute.getKey());
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ObjectOutputStream objectOut = new ObjectOutputStream(out)) {
+            objectOut.writeObject(stored);
+        } catch (IOException e) {
+            logger.error("session {} 的属性序列化失败，属性保留在堆中", session.getId(), e);
+            return null;
+        }
+        return out.toByteArray();
+    }
+}
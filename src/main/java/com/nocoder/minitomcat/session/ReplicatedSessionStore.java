@@ -0,0 +1,564 @@
+package com.nocoder.minitomcat.session;
+
+import com.nocoder.minitomcat.util.PropertyUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * 在多个节点之间复制的session存储，负载均衡不再需要会话粘滞
+ * 每个节点在堆内保存session，最后一个使用session的请求结束时，把与上次复制相比变化了的属性
+ * （按序列化后的字节比较）放入待发送队列；发送线程每隔batch-interval把队列中的变更按session合并，
+ * 作为一个批次通过TCP发给所有对端。属性没有变化时只复制访问时间，使各节点的过期时间保持一致。
+ *
+ * 冲突处理：每个属性带一个版本号，为Lamport时间戳左移16位加上节点id，收到更大的版本号才覆盖本地的属性，
+ * 同时修改同一个属性时版本号大的一方胜出。
+ * 本地没有请求的session时，同时向所有对端拉取，请求线程等待至多pull-timeout毫秒。
+ * session被删除时通知对端删除，对端在此之后被访问过的session会保留；
+ * HttpSessionListener只在session被删除或过期的节点上回调。
+ * 没有实现Serializable的属性只保存在本节点
+ * 节点之间的连接用共享密钥双向认证（见ReplicationAuth），属性只反序列化allowed-classes中的类
+ *
+ * server.session.replication.address         本节点监听的地址，默认127.0.0.1，跨机器部署时配置为内网地址
+ * server.session.replication.port            本节点监听的端口，默认4100
+ * server.session.replication.secret          各节点共同的密钥，必须配置
+ * server.session.replication.allowed-classes 允许反序列化的类，逗号分隔，见AllowListObjectInputStream，
+ *                                            默认java.lang.*,java.util.*,java.util.concurrent.*,java.time.*,java.math.*
+ * server.session.replication.peers           对端地址，host:port，逗号分隔
+ * server.session.replication.node-id         节点id，0~65535，默认为监听端口
+ * server.session.replication.batch-interval  批量发送的间隔毫秒数，默认50
+ * server.session.replication.pull-timeout    拉取session的超时毫秒数，默认200
+ * 在本机测试时，各个实例配置不同的server.port和server.session.replication.port，并互相配置为peers即可
+ * @author 29282
+ */
+@Slf4j
+public class ReplicatedSessionStore implements SessionStore {
+    private final Logger logger = LoggerFactory.getLogger(ReplicatedSessionStore.class);
+
+    static final byte BATCH = 1;
+    static final byte PULL = 2;
+    static final byte PULL_RESPONSE = 3;
+    /**
+     * 每个批次最多包含的session数
+     */
+    private static final int MAX_BATCH_SIZE = 512;
+    private static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+    /**
+     * 接收方等待认证的最长毫秒数
+     */
+    private static final int AUTH_TIMEOUT = 5000;
+
+    private final String address;
+    private final int port;
+    private final ReplicationAuth auth;
+    private final List<String> allowedClasses;
+    private final int nodeId;
+    private final long batchInterval;
+    private final long pullTimeout;
+    private final List<ReplicationPeer> peers;
+    private final Map<String, Entry> sessions;
+    private final Queue<SessionDelta> pending;
+    private final AtomicLong clock;
+    private final ExecutorService connectionExecutor;
+    private final ScheduledExecutorService senderExecutor;
+    private ServerSocket serverSocket;
+    private volatile boolean running;
+    /**
+     * 由load传入，对端复制过来的新session通过它交给SessionManager
+     */
+    private Consumer<HttpSession> sessionConsumer;
+    private Consumer<HttpSession> removedConsumer;
+
+    /**
+     * 一个session及其复制状态，复制状态的访问对Entry加锁
+     */
+    private static class Entry {
+        final HttpSession session;
+        /**
+         * 每个属性的版本号，删除的属性也保留版本号
+         */
+        final Map<String, Long> versions = new HashMap<>();
+        /**
+         * 上次复制的属性序列化结果
+         */
+        final Map<String, byte[]> replicated = new HashMap<>();
+        /**
+         * 是否已经向对端发送过全部属性
+         */
+        boolean announced;
+
+        Entry(HttpSession session) {
+            this.session = session;
+        }
+    }
+
+    public ReplicatedSessionStore() {
+        this(PropertyUtil.getProperty("server.session.replication.address", "127.0.0.1"),
+                Integer.parseInt(PropertyUtil.getProperty("server.session.replication.port", "4100")),
+                PropertyUtil.getProperty("server.session.replication.node-id"),
+                PropertyUtil.getProperty("server.session.replication.peers", ""),
+                Long.parseLong(PropertyUtil.getProperty("server.session.replication.batch-interval", "50")),
+                Long.parseLong(PropertyUtil.getProperty("server.session.replication.pull-timeout", "200")),
+                PropertyUtil.getProperty("server.session.replication.secret"),
+                PropertyUtil.getProperty("server.session.replication.allowed-classes", AllowListObjectInputStream.DEFAULT_PATTERNS));
+    }
+
+    /**
+     * @param address        监听地址
+     * @param nodeId         为null时使用监听端口
+     * @param peers          对端地址，host:port，逗号分隔
+     * @param secret         节点之间认证用的共享密钥，不能为空
+     * @param allowedClasses 允许反序列化的类，逗号分隔
+     */
+    public ReplicatedSessionStore(String address, int port, String nodeId, String peers, long batchInterval, long pullTimeout,
+                                  String secret, String allowedClasses) {
+        this.address = address;
+        this.port = port;
+        this.auth = new ReplicationAuth(secret);
+        this.allowedClasses = AllowListObjectInputStream.parse(allowedClasses);
+        this.nodeId = (nodeId == null ? port : Integer.parseInt(nodeId)) & 0xFFFF;
+        this.batchInterval = batchInterval;
+        this.pullTimeout = pullTimeout;
+        this.sessions = new ConcurrentHashMap<>();
+        this.pending = new ConcurrentLinkedQueue<>();
+        this.clock = new AtomicLong();
+        this.connectionExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "SessionReplication-Connection");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.senderExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "SessionReplication-Sender");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.peers = new ArrayList<>();
+        for (String peer : peers.split(",")) {
+            if (!peer.trim().isEmpty()) {
+                this.peers.add(new ReplicationPeer(peer, auth, connectionExecutor));
+            }
+        }
+    }
+
+    /**
+     * 启动监听和发送线程；重启后不主动同步，本地缺失的session在被访问时拉取
+     */
+    @Override
+    public void load(Consumer<HttpSession> consumer) {
+        load(consumer, session -> session.setValid(false));
+    }
+
+    @Override
+    public void load(Consumer<HttpSession> consumer, Consumer<HttpSession> removedConsumer) {
+        this.sessionConsumer = consumer;
+        this.removedConsumer = removedConsumer;
+        try {
+            serverSocket = new ServerSocket();
+            serverSocket.bind(new InetSocketAddress(address, port));
+        } catch (IOException e) {
+            throw new IllegalStateException("session复制地址" + address + ":" + port + "监听失败", e);
+        }
+        running = true;
+        connectionExecutor.execute(this::accept);
+        senderExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                sendPending();
+            } catch (Exception e) {
+                // 异常会导致周期任务停止，这里只记录
+                logger.error("发送session变更失败", e);
+            }
+        }, batchInterval, batchInterval, TimeUnit.MILLISECONDS);
+        logger.info("session复制节点{}监听{}:{}，对端{}", nodeId, address, port, peers);
+    }
+
+    @Override
+    public HttpSession get(String id) {
+        Entry entry = sessions.get(id);
+        if (entry != null) {
+            return entry.session;
+        }
+        return peers.isEmpty() ? null : pull(id);
+    }
+
+    @Override
+    public void add(HttpSession session) {
+        session.setDirty(true);
+        sessions.put(session.getId(), new Entry(session));
+    }
+
+    @Override
+    public boolean remove(HttpSession session) {
+        Entry entry = sessions.get(session.getId());
+        if (entry == null || entry.session != session || !sessions.remove(session.getId(), entry)) {
+            return false;
+        }
+        enqueue(new SessionDelta(SessionDelta.REMOVE, session.getId(), session.getLastAccessedTime(),
+                session.getMaxInactiveInterval(), false));
+        return true;
+    }
+
+    @Override
+    public Map<String, Object> loadAttributes(HttpSession session) {
+        return new ConcurrentHashMap<>();
+    }
+
+    /**
+     * 计算与上次复制相比变化的属性，放入待发送队列
+     */
+    @Override
+    public void afterAccess(HttpSession session) {
+        Entry entry = sessions.get(session.getId());
+        if (entry == null || entry.session != session) {
+            return;
+        }
+        SessionDelta delta;
+        synchronized (entry) {
+            delta = new SessionDelta(SessionDelta.UPDATE, session.getId(), session.getLastAccessedTime(),
+                    session.getMaxInactiveInterval(), !entry.announced);
+            // 持有session的锁，读取属性和清除dirty期间不会被钝化或者其他节点的变更修改
+            synchronized (session) {
+                Map<String, Object> attributes = session.getResidentAttributes();
+                if ((session.isDirty() || !entry.announced) && attributes != null) {
+                    session.setDirty(false);
+                    for (Map.Entry<String, Object> attribute : attributes.entrySet()) {
+                        byte[] value = serialize(session, attribute.getKey(), attribute.getValue());
+                        if (value == null || (entry.announced && Arrays.equals(value, entry.replicated.get(attribute.getKey())))) {
+                            continue;
+                        }
+                        long version = nextVersion();
+                        entry.versions.put(attribute.getKey(), version);
+                        entry.replicated.put(attribute.getKey(), value);
+                        delta.attributes.put(attribute.getKey(), new SessionDelta.Attribute(version, value));
+                    }
+                    for (Iterator<String> it = entry.replicated.keySet().iterator(); it.hasNext(); ) {
+                        String key = it.next();
+                        if (!attributes.containsKey(key)) {
+                            it.remove();
+                            long version = nextVersion();
+                            entry.versions.put(key, version);
+                            delta.attributes.put(key, new SessionDelta.Attribute(version, null));
+                        }
+                    }
+                }
+            }
+            entry.announced = true;
+        }
+        enqueue(delta);
+    }
+
+    @Override
+    public int size() {
+        return sessions.size();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        senderExecutor.shutdown();
+        try {
+            senderExecutor.awaitTermination(batchInterval * 2, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // 把剩余的变更发出去
+        sendPending();
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            logger.error("关闭session复制端口失败", e);
+        }
+        for (ReplicationPeer peer : peers) {
+            peer.close();
+        }
+        connectionExecutor.shutdownNow();
+    }
+
+    private void enqueue(SessionDelta delta) {
+        if (!peers.isEmpty()) {
+            pending.offer(delta);
+        }
+    }
+
+    private long nextVersion() {
+        return (clock.incrementAndGet() << 16) | nodeId;
+    }
+
+    /**
+     * 收到对端的版本号后推进本地时钟，保证之后本地的修改版本号更大
+     */
+    private void observeVersion(long version) {
+        clock.accumulateAndGet(version >>> 16, Math::max);
+    }
+
+    /**
+     * 把队列中的变更按session合并后分批发给所有对端
+     */
+    private void sendPending() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        Map<String, SessionDelta> batch = new LinkedHashMap<>();
+        SessionDelta delta;
+        while ((delta = pending.poll()) != null) {
+            SessionDelta previous = batch.get(delta.id);
+            if (previous == null) {
+                batch.put(delta.id, delta);
+            } else {
+                previous.merge(delta);
+            }
+        }
+        List<SessionDelta> deltas = new ArrayList<>(batch.values());
+        for (int from = 0; from < deltas.size(); from += MAX_BATCH_SIZE) {
+            byte[] frame = encodeBatch(deltas.subList(from, Math.min(deltas.size(), from + MAX_BATCH_SIZE)));
+            for (ReplicationPeer peer : peers) {
+                peer.send(frame);
+            }
+        }
+        logger.debug("向{}个对端发送{}个session的变更", peers.size(), deltas.size());
+    }
+
+    private byte[] encodeBatch(List<SessionDelta> deltas) {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(frame)) {
+            out.writeInt(0);
+            out.writeByte(BATCH);
+            out.writeInt(deltas.size());
+            for (SessionDelta delta : deltas) {
+                delta.write(out);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return sealFrame(frame.toByteArray());
+    }
+
+    /**
+     * 帧格式为[int 长度][byte 类型][内容]，写入开头预留的长度字段
+     */
+    static byte[] sealFrame(byte[] frame) {
+        ByteBuffer.wrap(frame).putInt(0, frame.length - 4);
+        return frame;
+    }
+
+    /**
+     * 同时向所有对端拉取，取第一个拉取到的结果
+     * 拉取请求只是放入各对端的待发送队列，连接和写出都在对端的写线程中进行，整个过程不超过pull-timeout
+     */
+    private HttpSession pull(String id) {
+        long deadline = System.currentTimeMillis() + pullTimeout;
+        List<CompletableFuture<SessionDelta>> futures = new ArrayList<>(peers.size());
+        for (ReplicationPeer peer : peers) {
+            futures.add(peer.pull(id));
+        }
+        SessionDelta found = null;
+        for (int i = 0; i < futures.size(); i++) {
+            CompletableFuture<SessionDelta> future = futures.get(i);
+            try {
+                if (found == null) {
+                    found = future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                }
+            } catch (TimeoutException | ExecutionException e) {
+                logger.debug("从{}拉取session {}失败", peers.get(i), id);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } finally {
+                peers.get(i).cancelPull(future);
+            }
+        }
+        if (found == null) {
+            return null;
+        }
+        logger.debug("从对端拉取到session {}", id);
+        Entry entry = apply(found);
+        return entry == null ? null : entry.session;
+    }
+
+    private void accept() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                connectionExecutor.execute(() -> serve(socket));
+            } catch (SocketException e) {
+                // close时关闭了serverSocket
+                break;
+            } catch (IOException e) {
+                logger.error("接受session复制连接失败", e);
+            }
+        }
+    }
+
+    /**
+     * 处理对端发来的批次和拉取请求
+     */
+    private void serve(Socket socket) {
+        try (Socket connection = socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()))) {
+            connection.setSoTimeout(AUTH_TIMEOUT);
+            auth.authenticateAsServer(connection, in, out);
+            connection.setSoTimeout(0);
+            while (running) {
+                int length = in.readInt();
+                if (length <= 0 || length > MAX_FRAME_SIZE) {
+                    throw new IOException("invalid frame length " + length);
+                }
+                byte type = in.readByte();
+                if (type == BATCH) {
+                    int count = in.readInt();
+                    for (int i = 0; i < count; i++) {
+                        apply(SessionDelta.read(in));
+                    }
+                } else if (type == PULL) {
+                    long pullId = in.readLong();
+                    SessionDelta snapshot = snapshot(in.readUTF());
+                    out.writeInt(0);
+                    out.writeByte(PULL_RESPONSE);
+                    out.writeLong(pullId);
+                    out.writeBoolean(snapshot != null);
+                    if (snapshot != null) {
+                        snapshot.write(out);
+                    }
+                    out.flush();
+                } else {
+                    throw new IOException("unexpected frame type " + type);
+                }
+            }
+        } catch (EOFException e) {
+            logger.debug("session复制连接{}已关闭", socket.getRemoteSocketAddress());
+        } catch (IOException e) {
+            logger.info("session复制连接{}异常: {}", socket.getRemoteSocketAddress(), e.getMessage());
+        }
+    }
+
+    /**
+     * 本地session的全部已复制属性，拉取时返回给对端
+     */
+    private SessionDelta snapshot(String id) {
+        Entry entry = sessions.get(id);
+        if (entry == null) {
+            return null;
+        }
+        HttpSession session = entry.session;
+        SessionDelta snapshot = new SessionDelta(SessionDelta.UPDATE, id, session.getLastAccessedTime(),
+                session.getMaxInactiveInterval(), true);
+        synchronized (entry) {
+            for (Map.Entry<String, byte[]> attribute : entry.replicated.entrySet()) {
+                snapshot.attributes.put(attribute.getKey(),
+                        new SessionDelta.Attribute(entry.versions.get(attribute.getKey()), attribute.getValue()));
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * 应用对端的变更
+     * @return 应用后的session，变更被忽略时返回null
+     */
+    private Entry apply(SessionDelta delta) {
+        Entry entry = sessions.get(delta.id);
+        if (delta.kind == SessionDelta.REMOVE) {
+            // 删除之后本地又被访问过的session保留
+            if (entry != null && entry.session.getLastAccessedTime() <= delta.lastAccessedTime
+                    && sessions.remove(delta.id, entry)) {
+                removedConsumer.accept(entry.session);
+                logger.debug("对端删除了session {}", delta.id);
+            }
+            return null;
+        }
+        if (entry == null) {
+            // 只有携带全部属性的变更才能创建session，其余的等访问时再拉取
+            if (!delta.full) {
+                return null;
+            }
+            HttpSession session = new HttpSession(delta.id, delta.maxInactiveInterval, delta.lastAccessedTime, new ConcurrentHashMap<>());
+            Entry created = new Entry(session);
+            created.announced = true;
+            entry = sessions.putIfAbsent(delta.id, created);
+            if (entry == null) {
+                entry = created;
+                sessionConsumer.accept(session);
+            }
+        }
+        HttpSession session = entry.session;
+        synchronized (entry) {
+            if (delta.lastAccessedTime > session.getLastAccessedTime()) {
+                session.setLastAccessedTime(delta.lastAccessedTime);
+                session.setMaxInactiveInterval(delta.maxInactiveInterval);
+            }
+            long sizeDelta = 0;
+            // 与HttpSession的读写一样持有session的锁，否则与钝化并发时写入的属性会随被丢弃的Map一起丢失
+            synchronized (session) {
+                Map<String, Object> attributes = delta.attributes.isEmpty() ? null : session.attributes();
+                for (Map.Entry<String, SessionDelta.Attribute> attribute : delta.attributes.entrySet()) {
+                    String key = attribute.getKey();
+                    SessionDelta.Attribute value = attribute.getValue();
+                    observeVersion(value.version);
+                    Long local = entry.versions.get(key);
+                    if (local != null && local >= value.version) {
+                        continue;
+                    }
+                    entry.versions.put(key, value.version);
+                    if (value.value == null) {
+                        entry.replicated.remove(key);
+                        sizeDelta -= SessionSizeEstimator.attribute(key, attributes.remove(key));
+                    } else {
+                        Object object = deserialize(delta.id, key, value.value);
+                        if (object != null) {
+                            entry.replicated.put(key, value.value);
+                            Object old = attributes.put(key, object);
+                            sizeDelta += SessionSizeEstimator.attribute(key, object) - SessionSizeEstimator.attribute(key, old);
+                        }
+                    }
+                }
+            }
+            // 在session的锁外更新大小，超出预算时的淘汰会去获取其他session的锁
+            session.adjustEstimatedBytes(sizeDelta);
+        }
+        return entry;
+    }
+
+    private byte[] serialize(HttpSession session, String key, Object value) {
+        if (!(value instanceof Serializable)) {
+            logger.debug("session {} 的属性 {} 没有实现Serializable，不会被复制", session.getId(), key);
+            return null;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ObjectOutputStream objectOut = new ObjectOutputStream(out)) {
+            objectOut.writeObject(value);
+        } catch (IOException e) {
+            logger.error("session {} 的属性 {} 序列化失败", session.getId(), key, e);
+            return null;
+        }
+        return out.toByteArray();
+    }
+
+    private Object deserialize(String id, String key, byte[] value) {
+        try (ObjectInputStream in = new AllowListObjectInputStream(new ByteArrayInputStream(value), allowedClasses)) {
+            return in.readObject();
+        } catch (IOException | ClassNotFoundException e) {
+            logger.error("session {} 的属性 {} 反序列化失败", id, key, e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.nocoder.minitomcat.session;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+/**
+ * session复制连接的双向认证，双方持有相同的共享密钥（server.session.replication.secret）
+ * 1、发起方发送随机数cn
+ * 2、接收方回复随机数sn和HMAC(secret, 'S' + cn + sn)，证明自己知道密钥
+ * 3、发起方校验后回复HMAC(secret, 'C' + sn + cn)，接收方校验
+ * 双方各自产生随机数，录下的握手不能重放；认证只防止未授权的节点读写session，不加密之后传输的数据
+ * @author 29282
+ */
+class ReplicationAuth {
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final int NONCE_LENGTH = 16;
+    private static final int MAC_LENGTH = 32;
+    private static final byte SERVER = 'S';
+    private static final byte CLIENT = 'C';
+
+    private final SecretKeySpec key;
+    private final SecureRandom random;
+
+    ReplicationAuth(String secret) {
+        if (secret == null || secret.isEmpty()) {
+            throw new IllegalStateException("server.session.replication.secret must be set to enable session replication");
+        }
+        this.key = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), ALGORITHM);
+        this.random = new SecureRandom();
+    }
+
+    /**
+     * 发起方握手，读取期间使用socket上设置的超时
+     * @throws IOException 对端不知道密钥或连接失败
+     */
+    void authenticateAsClient(Socket socket, DataInputStream in, DataOutputStream out) throws IOException {
+        byte[] clientNonce = nonce();
+        out.write(clientNonce);
+        out.flush();
+        byte[] serverNonce = new byte[NONCE_LENGTH];
+        in.readFully(serverNonce);
+        byte[] serverMac = new byte[MAC_LENGTH];
+        in.readFully(serverMac);
+        if (!MessageDigest.isEqual(serverMac, mac(SERVER, clientNonce, serverNonce))) {
+            throw new IOException("peer " + socket.getRemoteSocketAddress() + " failed authentication");
+        }
+        out.write(mac(CLIENT, serverNonce, clientNonce));
+        out.flush();
+    }
+
+    /**
+     * 接收方握手
+     * @throws IOException 对端不知道密钥或连接失败
+     */
+    void authenticateAsServer(Socket socket, DataInputStream in, DataOutputStream out) throws IOException {
+        byte[] clientNonce = new byte[NONCE_LENGTH];
+        in.readFully(clientNonce);
+        byte[] serverNonce = nonce();
+        out.write(serverNonce);
+        out.write(mac(SERVER, clientNonce, serverNonce));
+        out.flush();
+        byte[] clientMac = new byte[MAC_LENGTH];
+        in.readFully(clientMac);
+        if (!MessageDigest.isEqual(clientMac, mac(CLIENT, serverNonce, clientNonce))) {
+            throw new IOException("peer " + socket.getRemoteSocketAddress() + " failed authentication");
+        }
+    }
+
+    private byte[] nonce() {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        random.nextBytes(nonce);
+        return nonce;
+    }
+
+    private byte[] mac(byte role, byte[] first, byte[] second) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            mac.update(role);
+            mac.update(first);
+            mac.update(second);
+            return mac.doFinal();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package com.nocoder.minitomcat.session;
+
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 到一个对端节点的连接，用于发送变更批次和拉取session
+ * 发送只把帧放入待发送队列，由该对端自己的写线程建立连接并写出，请求线程和发送线程都不会被连接、认证或慢速写出阻塞；
+ * 连接在第一次发送时建立，建立后先用共享密钥双向认证，失败后断开，重连间隔RECONNECT_INTERVAL；
+ * 断开期间和队列已满时的帧直接丢弃，对端之后在访问到缺失的session时会重新拉取，等待中的拉取立即以null完成。
+ * 拉取的响应由该连接的读线程读取，按请求id完成对应的Future
+ * @author 29282
+ */
+@Slf4j
+class ReplicationPeer {
+    private final Logger logger = LoggerFactory.getLogger(ReplicationPeer.class);
+
+    private static final int CONNECT_TIMEOUT = 1000;
+    private static final long RECONNECT_INTERVAL = 1000;
+    /**
+     * 待发送队列最多容纳的帧数
+     */
+    private static final int MAX_PENDING_FRAMES = 256;
+    /**
+     * close时等待写线程发完剩余帧的最长毫秒数
+     */
+    private static final long CLOSE_TIMEOUT = 1000;
+
+    private final String host;
+    private final int port;
+    private final ReplicationAuth auth;
+    private final ExecutorService readerExecutor;
+    private final Map<Long, CompletableFuture<SessionDelta>> pulls;
+    private final AtomicLong pullIds;
+    private final BlockingQueue<byte[]> outbox;
+    private final Thread writer;
+    private volatile boolean closing;
+    /**
+     * 只在写线程中建立和替换，close和读线程只会关闭它
+     */
+    private volatile Socket socket;
+    private DataOutputStream out;
+    private long lastFailure;
+
+    ReplicationPeer(String address, ReplicationAuth auth, ExecutorService readerExecutor) {
+        int colonIndex = address.lastIndexOf(':');
+        this.host = address.substring(0, colonIndex).trim();
+        this.port = Integer.parseInt(address.substring(colonIndex + 1).trim());
+        this.auth = auth;
+        this.readerExecutor = readerExecutor;
+        this.pulls = new ConcurrentHashMap<>();
+        this.pullIds = new AtomicLong();
+        this.outbox = new LinkedBlockingQueue<>(MAX_PENDING_FRAMES);
+        this.writer = new Thread(this::writeLoop, "SessionReplication-Writer-" + this);
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * 把一个完整的帧放入待发送队列，不阻塞
+     * @return 队列已满或正在关闭时返回false，帧被丢弃
+     */
+    boolean send(byte[] frame) {
+        if (closing || !outbox.offer(frame)) {
+            logger.debug("节点{}的待发送队列已满，丢弃一帧", this);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 向对端拉取session，对端没有或者发送失败时Future的结果为null
+     */
+    CompletableFuture<SessionDelta> pull(String id) {
+        long pullId = pullIds.incrementAndGet();
+        CompletableFuture<SessionDelta> future = new CompletableFuture<>();
+        pulls.put(pullId, future);
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        try (DataOutputStream data = new DataOutputStream(frame)) {
+            data.writeInt(0);
+            data.writeByte(ReplicatedSessionStore.PULL);
+            data.writeLong(pullId);
+            data.writeUTF(id);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (!send(ReplicatedSessionStore.sealFrame(frame.toByteArray()))) {
+            pulls.remove(pullId);
+            future.complete(null);
+        }
+        return future;
+    }
+
+    /**
+     * 拉取超时后放弃等待
+     */
+    void cancelPull(CompletableFuture<SessionDelta> future) {
+        pulls.values().remove(future);
+    }
+
+    /**
+     * 等待写线程发完剩余的帧，之后断开连接
+     */
+    void close() {
+        closing = true;
+        try {
+            writer.join(CLOSE_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writer.interrupt();
+        closeSocket(socket);
+        failPulls();
+    }
+
+    private void writeLoop() {
+        try {
+            while (!closing || !outbox.isEmpty()) {
+                byte[] frame = outbox.poll(100, TimeUnit.MILLISECONDS);
+                if (frame == null) {
+                    continue;
+                }
+                if (!ensureConnected()) {
+                    // 连接不上时丢弃积压的帧，等待中的拉取不用再等到超时
+                    outbox.clear();
+                    failPulls();
+                    continue;
+                }
+                try {
+                    out.write(frame);
+                    // 积压的帧一起写出后再flush
+                    if (outbox.isEmpty()) {
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    logger.info("向节点{}发送失败: {}", this, e.getMessage());
+                    disconnect();
+                }
+            }
+        } catch (InterruptedException e) {
+            // close等待超时
+        } finally {
+            disconnect();
+        }
+    }
+
+    private boolean ensureConnected() {
+        if (socket != null && !socket.isClosed()) {
+            return true;
+        }
+        if (socket != null) {
+            // 读线程发现连接断开后关闭了socket
+            disconnect();
+        }
+        if (System.currentTimeMillis() - lastFailure < RECONNECT_INTERVAL) {
+            return false;
+        }
+        Socket connecting = new Socket();
+        try {
+            connecting.setTcpNoDelay(true);
+            connecting.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(connecting.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(connecting.getInputStream()));
+            connecting.setSoTimeout(CONNECT_TIMEOUT);
+            auth.authenticateAsClient(connecting, in, output);
+            connecting.setSoTimeout(0);
+            socket = connecting;
+            out = output;
+            readerExecutor.execute(() -> readResponses(connecting, in));
+            logger.info("连接到session复制节点{}", this);
+            return true;
+        } catch (IOException e) {
+            lastFailure = System.currentTimeMillis();
+            logger.debug("连接session复制节点{}失败: {}", this, e.getMessage());
+            closeSocket(connecting);
+            return false;
+        }
+    }
+
+    private void readResponses(Socket connection, DataInputStream in) {
+        try {
+            while (true) {
+                in.readInt();
+                byte type = in.readByte();
+                if (type != ReplicatedSessionStore.PULL_RESPONSE) {
+                    throw new IOException("unexpected frame type " + type);
+                }
+                long pullId = in.readLong();
+                SessionDelta delta = in.readBoolean() ? SessionDelta.read(in) : null;
+                CompletableFuture<SessionDelta> future = pulls.remove(pullId);
+                if (future != null) {
+                    future.complete(delta);
+                }
+            }
+        } catch (IOException e) {
+            logger.debug("session复制节点{}的连接已断开", this);
+        } finally {
+            // 关闭后写线程在下一次发送时重连
+            closeSocket(connection);
+            failPulls();
+        }
+    }
+
+    /**
+     * 只在写线程中调用
+     */
+    private void disconnect() {
+        lastFailure = System.currentTimeMillis();
+        closeSocket(socket);
+        socket = null;
+        out = null;
+        failPulls();
+    }
+
+    private void failPulls() {
+        for (Long pullId : pulls.keySet()) {
+            CompletableFuture<SessionDelta> future = pulls.remove(pullId);
+            if (future != null) {
+                future.complete(null);
+            }
+        }
+    }
+
+    private static void closeSocket(Socket socket) {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return host + ":" + port;
+    }
+}
@@ -0,0 +1,100 @@
+package com.nocoder.minitomcat.session;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 节点之间复制的一次session变更
+ * UPDATE携带访问时间和变化了的属性，每个属性带一个版本号（Lamport时间戳，低16位为节点id），
+ * 收到的版本号比本地大时才会覆盖本地的属性；属性值为null表示该属性被删除。
+ * full为true时携带了全部属性，对端没有该session时可以据此创建；REMOVE表示session被删除
+ * @author 29282
+ */
+class SessionDelta {
+    static final byte UPDATE = 1;
+    static final byte REMOVE = 2;
+
+    static class Attribute {
+        final long version;
+        /**
+         * 序列化后的属性值，null表示删除
+         */
+        final byte[] value;
+
+        Attribute(long version, byte[] value) {
+            this.version = version;
+            this.value = value;
+        }
+    }
+
+    final String id;
+    byte kind;
+    long lastAccessedTime;
+    int maxInactiveInterval;
+    boolean full;
+    final Map<String, Attribute> attributes;
+
+    SessionDelta(byte kind, String id, long lastAccessedTime, int maxInactiveInterval, boolean full) {
+        this.kind = kind;
+        this.id = id;
+        this.lastAccessedTime = lastAccessedTime;
+        this.maxInactiveInterval = maxInactiveInterval;
+        this.full = full;
+        this.attributes = new LinkedHashMap<>();
+    }
+
+    /**
+     * 合并同一个session之后的一次变更，同一批次中只发送合并后的结果
+     */
+    void merge(SessionDelta later) {
+        if (later.kind == REMOVE || kind == REMOVE) {
+            kind = later.kind;
+            full = later.full;
+            attributes.clear();
+        } else {
+            full = full || later.full;
+        }
+        lastAccessedTime = Math.max(lastAccessedTime, later.lastAccessedTime);
+        maxInactiveInterval = later.maxInactiveInterval;
+        attributes.putAll(later.attributes);
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeByte(kind);
+        out.writeUTF(id);
+        out.writeLong(lastAccessedTime);
+        out.writeInt(maxInactiveInterval);
+        out.writeBoolean(full);
+        out.writeInt(attributes.size());
+        for (Map.Entry<String, Attribute> entry : attributes.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeLong(entry.getValue().version);
+            byte[] value = entry.getValue().value;
+            out.writeInt(value == null ? -1 : value.length);
+            if (value != null) {
+                out.write(value);
+            }
+        }
+    }
+
+    static SessionDelta read(DataInputStream in) throws IOException {
+        byte kind = in.readByte();
+        SessionDelta delta = new SessionDelta(kind, in.readUTF(), in.readLong(), in.readInt(), in.readBoolean());
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String key = in.readUTF();
+            long version = in.readLong();
+            int length = in.readInt();
+            byte[] value = null;
+            if (length >= 0) {
+                value = new byte[length];
+                in.readFully(value);
+            }
+            delta.attributes.put(key, new Attribute(version, value));
+        }
+        return delta;
+    }
+}
@@ -0,0 +1,131 @@
+package com.nocoder.minitomcat.session;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+/**
+ * session过期时间轮
+ * session按预计的过期刻度放入对应的槽，访问session只更新访问时间，不移动它在轮中的位置；
+ * 时间轮走到某个槽时逐个检查：已经过期的回调expired，期间被访问过的按新的过期时间重新放入对应的槽。
+ * 这样每个session在一个过期周期内最多被检查一次，不需要每次全量扫描所有session。
+ * 过期时间超过一圈时同一个槽里会有后面几圈的session，检查时按过期时间放回去即可
+ * 到期时间默认为访问时间加上过期时间，也可以指定为其他基于访问时间的期限（比如钝化的空闲期限）
+ * @author 29282
+ */
+public class SessionExpiryWheel {
+    /**
+     * 淘汰时最多向后查看的圈数
+     */
+    private static final int MAX_EVICT_ROUNDS = 64;
+    private final long tickMillis;
+    private final ToLongFunction<HttpSession> deadline;
+    private final Queue<HttpSession>[] slots;
+    private final int mask;
+    /**
+     * 已经处理到的刻度，只由推进时间轮的线程修改
+     */
+    private volatile long currentTick;
+
+    /**
+     * @param slotCount  槽数，会向上取整为2的幂
+     * @param tickMillis 每个刻度的毫秒数
+     */
+    public SessionExpiryWheel(int slotCount, long tickMillis, long now) {
+        this(slotCount, tickMillis, now, session -> session.getLastAccessedTime() + session.getMaxInactiveInterval() * 1000L);
+    }
+
+    /**
+     * @param deadline session的到期时间
+     */
+    @SuppressWarnings("unchecked")
+    public SessionExpiryWheel(int slotCount, long tickMillis, long now, ToLongFunction<HttpSession> deadline) {
+        int size = Integer.highestOneBit(Math.max(2, slotCount - 1)) << 1;
+        this.tickMillis = tickMillis;
+        this.deadline = deadline;
+        this.slots = new Queue[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new ConcurrentLinkedQueue<>();
+        }
+        this.mask = size - 1;
+        this.currentTick = now / tickMillis;
+    }
+
+    /**
+     * 按session当前的到期时间放入对应的槽
+     */
+    public void schedule(HttpSession session) {
+        long tick = Math.max(deadline.applyAsLong(session) / tickMillis + 1, currentTick + 1);
+        slots[(int) (tick & mask)].offer(session);
+    }
+
+    /**
+     * 从最早到期的槽开始淘汰session，过期时间相同时就是最久没有被访问的session
+     * 期间被访问过的session按新的过期时间放回；只向后查看MAX_EVICT_ROUNDS圈
+     * @param needMore 是否还需要继续淘汰
+     * @param evict    淘汰一个session，返回false表示这个session暂时不能淘汰（比如正在被请求使用）
+     */
+    public void evict(BooleanSupplier needMore, Predicate<HttpSession> evict) {
+        long from = currentTick;
+        List<HttpSession> due = new ArrayList<>();
+        for (long tick = from + 1; tick - from <= (long) slots.length * MAX_EVICT_ROUNDS && needMore.getAsBoolean(); tick++) {
+            Queue<HttpSession> slot = slots[(int) (tick & mask)];
+            HttpSession session;
+            while ((session = slot.poll()) != null) {
+                due.add(session);
+            }
+            for (int i = 0; i < due.size(); i++) {
+                session = due.get(i);
+                if (!session.isValid()) {
+                    continue;
+                }
+                if (deadline.applyAsLong(session) / tickMillis + 1 <= tick && needMore.getAsBoolean() && evict.test(session)) {
+                    continue;
+                }
+                schedule(session);
+            }
+            due.clear();
+        }
+    }
+
+    /**
+     * 推进到now，依次处理经过的槽
+     * @param now
+     * @param expired 到期session的回调
+     */
+    public void advance(long now, Consumer<HttpSession> expired) {
+        long target = now / tickMillis;
+        // 推进线程停顿太久时，超过一圈的部分只需要把每个槽处理一遍
+        if (target - currentTick > slots.length) {
+            currentTick = target - slots.length;
+        }
+        List<HttpSession> due = new ArrayList<>();
+        while (currentTick < target) {
+            long tick = currentTick + 1;
+            Queue<HttpSession> slot = slots[(int) (tick & mask)];
+            HttpSession session;
+            while ((session = slot.poll()) != null) {
+                due.add(session);
+            }
+            currentTick = tick;
+            for (int i = 0; i < due.size(); i++) {
+                session = due.get(i);
+                if (!session.isValid()) {
+                    // 已经invalidate，直接丢弃
+                    continue;
+                }
+                if (deadline.applyAsLong(session) <= now) {
+                    expired.accept(session);
+                } else {
+                    schedule(session);
+                }
+            }
+            due.clear();
+        }
+    }
+}
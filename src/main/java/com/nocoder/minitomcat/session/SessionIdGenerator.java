@@ -0,0 +1,89 @@
+package com.nocoder.minitomcat.session;
+
+import com.nocoder.minitomcat.util.PropertyUtil;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * session id生成器
+ * UUID.randomUUID()所有线程共用一个SecureRandom，大量创建session时会在它上面排队，
+ * 这里每个线程使用自己的SecureRandom实例，随机字节直接编码到char数组，只创建一个String
+ * server.session.id-length     随机字节数，默认16（128位）
+ * server.session.id-encoding   hex（默认，大写十六进制，与之前的格式一致）或base64url（无填充）
+ * server.session.id-algorithm  SecureRandom算法，默认SHA1PRNG，首次使用时从系统熵源取种子
+ * @author 29282
+ */
+public class SessionIdGenerator {
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+    private static final char[] BASE64_URL = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+
+    private final int length;
+    private final boolean base64;
+    private final String algorithm;
+    private final ThreadLocal<SecureRandom> random;
+    private final ThreadLocal<byte[]> bytes;
+
+    public SessionIdGenerator() {
+        this(Integer.parseInt(PropertyUtil.getProperty("server.session.id-length", "16")),
+                "base64url".equalsIgnoreCase(PropertyUtil.getProperty("server.session.id-encoding", "hex")),
+                PropertyUtil.getProperty("server.session.id-algorithm", "SHA1PRNG"));
+    }
+
+    public SessionIdGenerator(int length, boolean base64, String algorithm) {
+        if (length <= 0) {
+            throw new IllegalArgumentException("session id length must be positive");
+        }
+        this.length = length;
+        this.base64 = base64;
+        this.algorithm = algorithm;
+        this.random = ThreadLocal.withInitial(this::createRandom);
+        this.bytes = ThreadLocal.withInitial(() -> new byte[length]);
+    }
+
+    public String generate() {
+        byte[] data = bytes.get();
+        random.get().nextBytes(data);
+        return base64 ? encodeBase64(data) : encodeHex(data);
+    }
+
+    private SecureRandom createRandom() {
+        try {
+            return SecureRandom.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            return new SecureRandom();
+        }
+    }
+
+    private static String encodeHex(byte[] data) {
+        char[] chars = new char[data.length * 2];
+        for (int i = 0, j = 0; i < data.length; i++) {
+            chars[j++] = HEX[(data[i] >> 4) & 0x0F];
+            chars[j++] = HEX[data[i] & 0x0F];
+        }
+        return new String(chars);
+    }
+
+    private static String encodeBase64(byte[] data) {
+        char[] chars = new char[(data.length * 8 + 5) / 6];
+        int j = 0;
+        int i = 0;
+        for (; i + 3 <= data.length; i += 3) {
+            int bits = (data[i] & 0xFF) << 16 | (data[i + 1] & 0xFF) << 8 | (data[i + 2] & 0xFF);
+            chars[j++] = BASE64_URL[bits >>> 18];
+            chars[j++] = BASE64_URL[(bits >>> 12) & 0x3F];
+            chars[j++] = BASE64_URL[(bits >>> 6) & 0x3F];
+            chars[j++] = BASE64_URL[bits & 0x3F];
+        }
+        int remaining = data.length - i;
+        if (remaining > 0) {
+            int bits = (data[i] & 0xFF) << 16 | (remaining == 2 ? (data[i + 1] & 0xFF) << 8 : 0);
+            chars[j++] = BASE64_URL[bits >>> 18];
+            chars[j++] = BASE64_URL[(bits >>> 12) & 0x3F];
+            if (remaining == 2) {
+                chars[j] = BASE64_URL[(bits >>> 6) & 0x3F];
+            }
+        }
+        return new String(chars);
+    }
+}
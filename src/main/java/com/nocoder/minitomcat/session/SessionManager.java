@@ -0,0 +1,306 @@
+package com.nocoder.minitomcat.session;
+
+import com.nocoder.minitomcat.util.CoarseClock;
+import com.nocoder.minitomcat.util.PropertyUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * 一个应用的session管理器
+ * session的过期由SessionExpiryWheel负责，IdleSessionCleaner每个刻度推进一次时间轮；
+ * 取session时也会按访问时间检查一次，所以时间轮还没扫描到的过期session也不会被取到
+ * session保存在SessionStore中，由server.session.store选择实现：
+ * memory（默认）、mapped、replicated，或者SessionStore实现类的全限定名
+ * 请求取到session时计数加一，请求结束时release减一，归零后交给SessionStore.afterAccess
+ * session数量或估算的内存占用超过上限时，从时间轮中最早到期的session开始淘汰（过期时间相同时即LRU），
+ * 正在被请求使用的session不会被淘汰，淘汰同样会回调HttpSessionListener.sessionDestroyed
+ * server.session.max-count  session数量上限，默认不限制
+ * server.session.max-bytes  session估算内存占用的上限，默认不限制
+ * 属性常驻堆内的存储可以开启钝化：空闲超过一定时间的session，属性写入磁盘后从堆中移除，下次访问属性时读回
+ * server.session.passivation.idle  空闲多少秒后钝化，默认不钝化
+ * server.session.passivation.dir   钝化文件目录，默认为临时目录下的minitomcat-sessions
+ * @author 29282
+ */
+@Slf4j
+public class SessionManager {
+    private final Logger logger = LoggerFactory.getLogger(SessionManager.class);
+
+    /**
+     * 时间轮刻度，1秒
+     */
+    public static final long TICK_MILLIS = 1000;
+    private static final int WHEEL_SLOTS = 512;
+
+    private final SessionStore store;
+    private final SessionIdGenerator idGenerator;
+    private final SessionExpiryWheel wheel;
+    /**
+     * 新建session的过期时间，单位秒
+     */
+    private final int sessionTimeout;
+    /**
+     * session过期或失效后的回调，用于通知监听器
+     */
+    private final Consumer<HttpSession> destroyedCallback;
+    private final int maxSessions;
+    private final long maxBytes;
+    /**
+     * 所有session估算的内存占用
+     */
+    private final AtomicLong estimatedBytes;
+    private final AtomicLong evictionCount;
+    private final ReentrantLock evictionLock;
+    /**
+     * 上一次淘汰扫描结束后仍然超出上限的时间，0表示没有失败
+     * 所有session都在使用或者还不能淘汰时，同一个刻度内请求线程不再重复扫描时间轮，留给下一次expireSessions
+     */
+    private volatile long lastFailedEviction;
+    /**
+     * 未开启钝化时为null
+     */
+    private final SessionPassivator passivator;
+    private final SessionExpiryWheel passivationWheel;
+
+    public SessionManager(int sessionTimeout, Consumer<HttpSession> destroyedCallback) {
+        this.store = createStore(PropertyUtil.getProperty("server.session.store", "memory"));
+        this.idGenerator = new SessionIdGenerator();
+        this.wheel = new SessionExpiryWheel(WHEEL_SLOTS, TICK_MILLIS, CoarseClock.currentTimeMillis());
+        this.sessionTimeout = sessionTimeout;
+        this.destroyedCallback = destroyedCallback;
+        this.maxSessions = Integer.parseInt(PropertyUtil.getProperty("server.session.max-count", "-1"));
+        this.maxBytes = Long.parseLong(PropertyUtil.getProperty("server.session.max-bytes", "-1"));
+        this.estimatedBytes = new AtomicLong();
+        this.evictionCount = new AtomicLong();
+        this.evictionLock = new ReentrantLock();
+        long passivationIdle = Long.parseLong(PropertyUtil.getProperty("server.session.passivation.idle", "-1")) * 1000;
+        if (passivationIdle > 0) {
+            this.passivator = new SessionPassivator(Paths.get(PropertyUtil.getProperty("server.session.passivation.dir",
+                    Paths.get(System.getProperty("java.io.tmpdir"), "minitomcat-sessions").toString())));
+            this.passivationWheel = new SessionExpiryWheel(WHEEL_SLOTS, TICK_MILLIS, CoarseClock.currentTimeMillis(),
+                    session -> session.getLastAccessedTime() + passivationIdle);
+        } else {
+            this.passivator = null;
+            this.passivationWheel = null;
+        }
+        // 恢复的session以及之后由存储自己加入的session放入时间轮，已经过期的在下一个刻度被清除
+        store.load(session -> {
+            session.setSessionManager(this);
+            estimatedBytes.addAndGet(session.getEstimatedBytes());
+            wheel.schedule(session);
+            schedulePassivation(session);
+        }, this::sessionRemoved);
+    }
+
+    private static SessionStore createStore(String type) {
+        switch (type) {
+            case "memory":
+                return new InMemorySessionStore();
+            case "mapped":
+                return new MappedFileSessionStore();
+            case "replicated":
+                return new ReplicatedSessionStore();
+            default:
+                try {
+                    return (SessionStore) Class.forName(type).newInstance();
+                } catch (ReflectiveOperationException | ClassCastException e) {
+                    throw new IllegalArgumentException("无法创建SessionStore: " + type, e);
+                }
+        }
+    }
+
+    public HttpSession createSession() {
+        HttpSession session = new HttpSession(idGenerator.generate(), sessionTimeout);
+        session.setSessionManager(this);
+        session.getAccessCount().incrementAndGet();
+        store.add(session);
+        estimatedBytes.addAndGet(session.getEstimatedBytes());
+        wheel.schedule(session);
+        schedulePassivation(session);
+        evictIfNeeded(false);
+        return session;
+    }
+
+    /**
+     * 取出未过期的session，并更新访问时间；取到的session在请求结束时需要release
+     */
+    public HttpSession getSession(String id) {
+        HttpSession session = store.get(id);
+        if (session == null) {
+            return null;
+        }
+        if (session.isExpired(CoarseClock.currentTimeMillis())) {
+            expire(session);
+            return null;
+        }
+        session.touch();
+        session.getAccessCount().incrementAndGet();
+        return session;
+    }
+
+    /**
+     * 请求不再使用session，由ServletContext.afterRequestDestroyed调用
+     */
+    public void release(HttpSession session) {
+        if (session.getAccessCount().decrementAndGet() == 0 && session.isValid()) {
+            store.afterAccess(session);
+        }
+    }
+
+    /**
+     * 属性不在堆内时由HttpSession调用，调用时持有session的锁
+     */
+    Map<String, Object> loadAttributes(HttpSession session) {
+        if (passivator != null && session.isPassivated()) {
+            Map<String, Object> attributes = passivator.activate(session);
+            long bytes = 0;
+            for (Map.Entry<String, Object> attribute : attributes.entrySet()) {
+                bytes += SessionSizeEstimator.attribute(attribute.getKey(), attribute.getValue());
+            }
+            session.restoreEstimatedBytes(bytes);
+            // 调用时持有session的锁，这里只计入总量不淘汰，超出的预算由下一次expireSessions处理
+            if (session.isValid()) {
+                estimatedBytes.addAndGet(bytes);
+            }
+            passivationWheel.schedule(session);
+            return attributes;
+        }
+        return store.loadAttributes(session);
+    }
+
+    boolean isPassivationEnabled() {
+        return passivator != null;
+    }
+
+    private void schedulePassivation(HttpSession session) {
+        if (passivationWheel != null) {
+            passivationWheel.schedule(session);
+        }
+    }
+
+    private void passivate(HttpSession session) {
+        if (passivator.passivate(session)) {
+            // 正在被使用，下个刻度再试
+            passivationWheel.schedule(session);
+        }
+    }
+
+    /**
+     * 删除session，由HttpSession.invalidate调用
+     */
+    public void removeSession(HttpSession session) {
+        session.setValid(false);
+        if (store.remove(session)) {
+            sessionRemoved(session);
+        }
+    }
+
+    /**
+     * session已经从存储中删除，removeSession删除的和存储自己删除的（其他节点同步过来的删除）都在这里清理
+     */
+    private void sessionRemoved(HttpSession session) {
+        session.setValid(false);
+        estimatedBytes.addAndGet(-session.getEstimatedBytes());
+        destroyedCallback.accept(session);
+        if (passivator != null) {
+            passivator.discard(session);
+        }
+    }
+
+    /**
+     * 推进时间轮，清除过期的session，钝化空闲的session
+     */
+    public void expireSessions() {
+        long now = CoarseClock.currentTimeMillis();
+        wheel.advance(now, this::expire);
+        if (passivationWheel != null) {
+            passivationWheel.advance(now, this::passivate);
+        }
+        evictIfNeeded(true);
+        logger.debug("session数量{}，估算内存{}字节，累计淘汰{}", store.size(), estimatedBytes.get(), evictionCount.get());
+    }
+
+    /**
+     * 属性变化后由HttpSession调用
+     */
+    void onSizeChanged(HttpSession session, long delta) {
+        // 已经删除的session不再计入
+        if (session.isValid()) {
+            estimatedBytes.addAndGet(delta);
+            if (delta > 0) {
+                evictIfNeeded(false);
+            }
+        }
+    }
+
+    private boolean overLimit() {
+        return (maxSessions > 0 && store.size() > maxSessions) || (maxBytes > 0 && estimatedBytes.get() > maxBytes);
+    }
+
+    /**
+     * 超过上限时淘汰，同一时间只有一个线程在淘汰，其他线程直接返回
+     * @param tick 是否由expireSessions调用；否则上一次扫描在一个刻度内失败过时不再扫描
+     */
+    private void evictIfNeeded(boolean tick) {
+        if (!overLimit()) {
+            return;
+        }
+        long now = CoarseClock.currentTimeMillis();
+        if (!tick && lastFailedEviction != 0 && now - lastFailedEviction < TICK_MILLIS) {
+            return;
+        }
+        if (!evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            wheel.evict(this::overLimit, this::evict);
+            lastFailedEviction = overLimit() ? now : 0;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private boolean evict(HttpSession session) {
+        if (session.getAccessCount().get() > 0) {
+            return false;
+        }
+        logger.debug("session {} 被淘汰", session.getId());
+        evictionCount.incrementAndGet();
+        removeSession(session);
+        return true;
+    }
+
+    private void expire(HttpSession session) {
+        logger.debug("session {} 已过期", session.getId());
+        removeSession(session);
+    }
+
+    public int getSessionCount() {
+        return store.size();
+    }
+
+    public long getEstimatedBytes() {
+        return estimatedBytes.get();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     * 应用关闭时调用，持久化存储在这里落盘
+     */
+    public void close() {
+        store.close();
+    }
+
+    public int getSessionTimeout() {
+        return sessionTimeout;
+    }
+}
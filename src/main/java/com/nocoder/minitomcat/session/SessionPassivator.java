@@ -0,0 +1,231 @@
+package com.nocoder.minitomcat.session;
+
+import com.nocoder.minitomcat.listener.HttpSessionActivationListener;
+import com.nocoder.minitomcat.listener.event.HttpSessionEvent;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * session钝化：把空闲session的属性写入磁盘并从堆中移除，下次访问属性时再读回
+ * 每个session一个文件，格式为[int 属性数]，之后每个属性为[key][byte 类型][值]，
+ * String、基本类型包装类和byte[]直接写入，其余类型使用Java序列化；
+ * 有属性没有实现Serializable时，该session不钝化，留在堆中。
+ * 实现了HttpSessionActivationListener的属性值在钝化前、激活后收到回调
+ * @author 29282
+ */
+@Slf4j
+class SessionPassivator {
+    private final Logger logger = LoggerFactory.getLogger(SessionPassivator.class);
+
+    private static final String SUFFIX = ".session";
+    private static final byte STRING = 1;
+    private static final byte INTEGER = 2;
+    private static final byte LONG = 3;
+    private static final byte BOOLEAN = 4;
+    private static final byte DOUBLE = 5;
+    private static final byte BYTES = 6;
+    private static final byte SERIALIZED = 7;
+
+    private final Path directory;
+
+    SessionPassivator(Path directory) {
+        this.directory = directory;
+        try {
+            Files.createDirectories(directory);
+            // 堆内的session重启后不存在了，上次留下的文件没有用
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+                for (Path file : files) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("无法使用session钝化目录" + directory, e);
+        }
+    }
+
+    /**
+     * 钝化session，正在被请求使用、属性不在堆内或者无法序列化时不钝化
+     * @return 是否因为正在被使用而需要稍后重试
+     */
+    boolean passivate(HttpSession session) {
+        synchronized (session) {
+            Map<String, Object> attributes = session.getResidentAttributes();
+            if (!session.isValid() || attributes == null) {
+                return false;
+            }
+            if (session.getAccessCount().get() > 0) {
+                return true;
+            }
+            for (Object value : attributes.values()) {
+                if (!(value instanceof Serializable)) {
+                    logger.debug("session {} 有属性没有实现Serializable，不钝化", session.getId());
+                    return false;
+                }
+            }
+            HttpSessionEvent event = new HttpSessionEvent(session);
+            for (Object value : attributes.values()) {
+                if (value instanceof HttpSessionActivationListener) {
+                    ((HttpSessionActivationListener) value).sessionWillPassivate(event);
+                }
+            }
+            Path file = fileOf(session);
+            Path temp = directory.resolve(file.getFileName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(attributes.size());
+                for (Map.Entry<String, Object> attribute : attributes.entrySet()) {
+                    writeString(out, attribute.getKey());
+                    writeValue(out, attribute.getValue());
+                }
+            } catch (IOException e) {
+                logger.error("钝化session {} 失败", session.getId(), e);
+                deleteQuietly(temp);
+                return false;
+            }
+            try {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                logger.error("钝化session {} 失败", session.getId(), e);
+                deleteQuietly(temp);
+                return false;
+            }
+            session.setResidentAttributes(null);
+            session.setPassivated(true);
+            // 属性已经不在堆中，从内存预算中扣除，只保留session本身的大小
+            session.adjustEstimatedBytes(SessionSizeEstimator.session(session.getId()) - session.getEstimatedBytes());
+            logger.debug("session {} 已钝化", session.getId());
+            return false;
+        }
+    }
+
+    /**
+     * 从磁盘读回属性并删除文件，调用时持有session的锁
+     */
+    Map<String, Object> activate(HttpSession session) {
+        Map<String, Object> attributes = new ConcurrentHashMap<>();
+        Path file = fileOf(session);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = readString(in);
+                attributes.put(key, readValue(in));
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            logger.error("激活session {} 失败，属性丢失", session.getId(), e);
+        }
+        deleteQuietly(file);
+        session.setPassivated(false);
+        HttpSessionEvent event = new HttpSessionEvent(session);
+        for (Object value : attributes.values()) {
+            if (value instanceof HttpSessionActivationListener) {
+                ((HttpSessionActivationListener) value).sessionDidActivate(event);
+            }
+        }
+        logger.debug("session {} 已激活", session.getId());
+        return attributes;
+    }
+
+    /**
+     * session被删除时删除它的钝化文件
+     */
+    void discard(HttpSession session) {
+        synchronized (session) {
+            if (session.isPassivated()) {
+                session.setPassivated(false);
+                deleteQuietly(fileOf(session));
+            }
+        }
+    }
+
+    private Path fileOf(HttpSession session) {
+        return directory.resolve(session.getId() + SUFFIX);
+    }
+
+    private void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value instanceof String) {
+            out.writeByte(STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(INTEGER);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof byte[]) {
+            out.writeByte(BYTES);
+            out.writeInt(((byte[]) value).length);
+            out.write((byte[]) value);
+        } else {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream objectOut = new ObjectOutputStream(bytes)) {
+                objectOut.writeObject(value);
+            }
+            out.writeByte(SERIALIZED);
+            out.writeInt(bytes.size());
+            bytes.writeTo(out);
+        }
+    }
+
+    private Object readValue(DataInputStream in) throws IOException, ClassNotFoundException {
+        byte type = in.readByte();
+        switch (type) {
+            case STRING:
+                return readString(in);
+            case INTEGER:
+                return in.readInt();
+            case LONG:
+                return in.readLong();
+            case BOOLEAN:
+                return in.readBoolean();
+            case DOUBLE:
+                return in.readDouble();
+            case BYTES:
+            case SERIALIZED:
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                if (type == BYTES) {
+                    return bytes;
+                }
+                try (ObjectInputStream objectIn = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                    return objectIn.readObject();
+                }
+            default:
+                throw new IOException("unknown attribute type " + type);
+        }
+    }
+
+    /**
+     * writeUTF限制64KB，这里写长度加UTF-8字节
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            logger.warn("删除文件{}失败", file);
+        }
+    }
+}
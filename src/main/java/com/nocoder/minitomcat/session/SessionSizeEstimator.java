@@ -0,0 +1,76 @@
+package com.nocoder.minitomcat.session;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * 粗略估算session属性占用的堆内存，用于server.session.max-bytes
+ * 只识别常见类型，集合按元素递归估算（最多两层），其余对象按固定大小计算，结果只用于限流，不追求精确
+ * @author 29282
+ */
+class SessionSizeEstimator {
+    /**
+     * session对象本身、id和属性表的固定开销
+     */
+    static final long SESSION_OVERHEAD = 256;
+    private static final long ENTRY_OVERHEAD = 32;
+    private static final long OBJECT_SIZE = 64;
+    private static final int MAX_DEPTH = 2;
+
+    private SessionSizeEstimator() {
+    }
+
+    static long session(String id) {
+        return SESSION_OVERHEAD + string(id);
+    }
+
+    /**
+     * 一个属性（包括属性表中的节点和key）的估算大小，value为null时为0
+     */
+    static long attribute(String key, Object value) {
+        return value == null ? 0 : ENTRY_OVERHEAD + string(key) + estimate(value, 0);
+    }
+
+    private static long estimate(Object value, int depth) {
+        if (value == null) {
+            return 0;
+        }
+        if (value instanceof String) {
+            return string((String) value);
+        }
+        if (value instanceof Number || value instanceof Boolean || value instanceof Character) {
+            return 16;
+        }
+        if (value instanceof byte[]) {
+            return 16 + ((byte[]) value).length;
+        }
+        if (value instanceof char[]) {
+            return 16 + 2L * ((char[]) value).length;
+        }
+        if (value instanceof long[]) {
+            return 16 + 8L * ((long[]) value).length;
+        }
+        if (value instanceof int[]) {
+            return 16 + 4L * ((int[]) value).length;
+        }
+        if (depth < MAX_DEPTH && value instanceof Collection) {
+            long size = 48;
+            for (Object element : (Collection<?>) value) {
+                size += 8 + estimate(element, depth + 1);
+            }
+            return size;
+        }
+        if (depth < MAX_DEPTH && value instanceof Map) {
+            long size = 64;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                size += ENTRY_OVERHEAD + estimate(entry.getKey(), depth + 1) + estimate(entry.getValue(), depth + 1);
+            }
+            return size;
+        }
+        return OBJECT_SIZE;
+    }
+
+    private static long string(String value) {
+        return 40 + 2L * value.length();
+    }
+}
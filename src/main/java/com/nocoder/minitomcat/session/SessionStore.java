@@ -0,0 +1,54 @@
+package com.nocoder.minitomcat.session;
+
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * session存储SPI，由server.properties的server.session.store选择：
+ * memory（默认，InMemorySessionStore）、mapped（MappedFileSessionStore）、replicated（ReplicatedSessionStore）
+ * 或者实现类的全限定名（需要无参构造器）
+ * HttpSession对象本身（id、访问时间等元数据）始终由存储保存在堆内，属性是否常驻堆内由实现决定
+ * @author 29282
+ */
+public interface SessionStore {
+    /**
+     * 启动时恢复已保存的session
+     * @param consumer 每个恢复的session回调一次；之后存储自己加入的session（比如从其他节点复制来的）也通过它回调
+     */
+    void load(Consumer<HttpSession> consumer);
+
+    /**
+     * 与load相同，另外在存储自己删除session（比如其他节点删除后同步过来）时回调removedConsumer，
+     * 由SessionManager扣除内存估算、触发销毁监听器并清理钝化文件；存储只需要删除自己的条目
+     * 不会自己删除session的实现不需要覆盖
+     */
+    default void load(Consumer<HttpSession> consumer, Consumer<HttpSession> removedConsumer) {
+        load(consumer);
+    }
+
+    HttpSession get(String id);
+
+    /**
+     * 保存新建的session
+     */
+    void add(HttpSession session);
+
+    /**
+     * @return session是否存在并被删除
+     */
+    boolean remove(HttpSession session);
+
+    /**
+     * 属性不在堆内时加载，由HttpSession在访问属性时调用
+     */
+    Map<String, Object> loadAttributes(HttpSession session);
+
+    /**
+     * 最后一个使用该session的请求结束，持久化存储可以在这里写回并卸载属性
+     */
+    void afterAccess(HttpSession session);
+
+    int size();
+
+    void close();
+}
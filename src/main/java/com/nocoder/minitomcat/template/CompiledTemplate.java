@@ -0,0 +1,160 @@
+package com.nocoder.minitomcat.template;
+
+import com.nocoder.minitomcat.exception.TemplateResolveException;
+import com.nocoder.minitomcat.request.Request;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 编译后的模板，由静态文本、占位符和片段缓存依次组成，编译一次后可以被多个请求并发渲染
+ * 片段缓存指令：
+ * ${#cache 名称 ttl=秒数 key=sessionScope.user.id,applicationScope.version}
+ * ...
+ * ${/cache}
+ * 中间的内容渲染后按名称和key表达式的值缓存，ttl内直接输出缓存的字节；ttl缺省为FragmentCache的默认值
+ * @author 29282
+ */
+@Slf4j
+public class CompiledTemplate {
+    private static final Logger logger = LoggerFactory.getLogger(CompiledTemplate.class);
+
+    private static final String CACHE_START = "#cache";
+    private static final String CACHE_END = "/cache";
+
+    private final TemplateNode[] nodes;
+    /**
+     * 静态文本的总字节数，用于估计输出大小
+     */
+    private final int literalLength;
+
+    private CompiledTemplate(TemplateNode[] nodes, int literalLength) {
+        this.nodes = nodes;
+        this.literalLength = literalLength;
+    }
+
+    /**
+     * 解析模板，占位符格式为${...}，与之前的正则\$\{(.*?)}一致：占位符不能跨行
+     */
+    public static CompiledTemplate compile(String content) throws TemplateResolveException {
+        Parser parser = new Parser(content);
+        List<TemplateNode> nodes = parser.parse(false);
+        return new CompiledTemplate(nodes.toArray(new TemplateNode[0]), parser.literalLength);
+    }
+
+    public void render(Request request, OutputStream out) throws IOException, TemplateResolveException {
+        render(nodes, request, out);
+    }
+
+    static void render(TemplateNode[] nodes, Request request, OutputStream out) throws IOException, TemplateResolveException {
+        for (TemplateNode node : nodes) {
+            node.render(request, out);
+        }
+    }
+
+    public int getLiteralLength() {
+        return literalLength;
+    }
+
+    private static class Parser {
+        private final String content;
+        private int index;
+        private int literalStart;
+        private int literalLength;
+
+        Parser(String content) {
+            this.content = content;
+        }
+
+        /**
+         * 解析到文件结束，或者nested为true时解析到${/cache}
+         */
+        List<TemplateNode> parse(boolean nested) throws TemplateResolveException {
+            List<TemplateNode> nodes = new ArrayList<>();
+            while ((index = content.indexOf("${", index)) >= 0) {
+                int end = index + 2;
+                while (end < content.length() && content.charAt(end) != '}' && !isLineTerminator(content.charAt(end))) {
+                    end++;
+                }
+                if (end == content.length() || content.charAt(end) != '}') {
+                    index++;
+                    continue;
+                }
+                addLiteral(nodes, index);
+                String placeHolder = content.substring(index + 2, end).trim();
+                literalStart = end + 1;
+                index = end + 1;
+                if (placeHolder.equals(CACHE_END)) {
+                    if (!nested) {
+                        logger.error("模板中的${/cache}没有对应的${#cache}");
+                        throw new TemplateResolveException();
+                    }
+                    return nodes;
+                } else if (placeHolder.startsWith(CACHE_START)) {
+                    nodes.add(parseFragment(placeHolder));
+                } else {
+                    nodes.add(new ExpressionNode(placeHolder));
+                }
+            }
+            if (nested) {
+                logger.error("模板中的${#cache}没有对应的${/cache}");
+                throw new TemplateResolveException();
+            }
+            addLiteral(nodes, content.length());
+            return nodes;
+        }
+
+        private void addLiteral(List<TemplateNode> nodes, int end) {
+            if (end > literalStart) {
+                LiteralNode literal = new LiteralNode(content.substring(literalStart, end));
+                literalLength += literal.length();
+                nodes.add(literal);
+            }
+        }
+
+        /**
+         * #cache 名称 ttl=秒数 key=表达式1,表达式2
+         */
+        private FragmentNode parseFragment(String directive) throws TemplateResolveException {
+            String[] tokens = directive.split("\\s+");
+            if (!tokens[0].equals(CACHE_START) || tokens.length < 2) {
+                logger.error("片段缓存指令格式错误: {}", directive);
+                throw new TemplateResolveException();
+            }
+            String name = tokens[1];
+            long ttlMillis = FragmentCache.DEFAULT_TTL_MILLIS;
+            List<ExpressionNode> keys = new ArrayList<>();
+            for (int i = 2; i < tokens.length; i++) {
+                String token = tokens[i];
+                if (token.startsWith("ttl=")) {
+                    try {
+                        ttlMillis = Long.parseLong(token.substring("ttl=".length())) * 1000;
+                    } catch (NumberFormatException e) {
+                        logger.error("片段缓存指令格式错误: {}", directive);
+                        throw new TemplateResolveException();
+                    }
+                } else if (token.startsWith("key=")) {
+                    for (String key : token.substring("key=".length()).split(",")) {
+                        if (!key.isEmpty()) {
+                            keys.add(new ExpressionNode(key));
+                        }
+                    }
+                } else {
+                    logger.error("片段缓存指令格式错误: {}", directive);
+                    throw new TemplateResolveException();
+                }
+            }
+            List<TemplateNode> body = parse(true);
+            return new FragmentNode(name, ttlMillis, keys.toArray(new ExpressionNode[0]), body.toArray(new TemplateNode[0]));
+        }
+    }
+
+    private static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+}
@@ -0,0 +1,71 @@
+package com.nocoder.minitomcat.template;
+
+import com.nocoder.minitomcat.enumeration.ModelScope;
+import com.nocoder.minitomcat.exception.TemplateResolveException;
+import com.nocoder.minitomcat.request.Request;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static com.nocoder.minitomcat.constant.CharsetProperties.UTF_8_CHARSET;
+
+/**
+ * 占位符${scope.x.y.z}，编译时拆分好域和属性路径
+ * 渲染时从域中取出x，再依次读取y、z属性，值为null时输出空
+ * @author 29282
+ */
+public class ExpressionNode implements TemplateNode {
+    private final ModelScope scope;
+    private final String name;
+    private final String[] properties;
+
+    /**
+     * @param placeHolder 格式为scope.x.y.z，scope为requestScope、sessionScope、applicationScope
+     */
+    public ExpressionNode(String placeHolder) throws TemplateResolveException {
+        int dotIndex = placeHolder.indexOf('.');
+        if (dotIndex == -1) {
+            throw new TemplateResolveException();
+        }
+        try {
+            this.scope = ModelScope.valueOf(placeHolder.substring(0, dotIndex).replace("Scope", "").toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new TemplateResolveException();
+        }
+        // 按照.分隔为数组,格式为[x,y,z]
+        String[] segments = placeHolder.substring(dotIndex + 1).split("\\.");
+        this.name = segments[0];
+        this.properties = new String[segments.length - 1];
+        System.arraycopy(segments, 1, properties, 0, properties.length);
+    }
+
+    @Override
+    public void render(Request request, OutputStream out) throws IOException, TemplateResolveException {
+        Object value = evaluate(request);
+        if (value != null) {
+            out.write(value.toString().getBytes(UTF_8_CHARSET));
+        }
+    }
+
+    public Object evaluate(Request request) throws TemplateResolveException {
+        Object value;
+        switch (scope) {
+            case REQUEST:
+                value = request.getAttribute(name);
+                break;
+            case SESSION:
+                value = request.getSession().getAttribute(name);
+                break;
+            case APPLICATION:
+                value = request.getServletContext().getAttribute(name);
+                break;
+            default:
+                value = null;
+                break;
+        }
+        for (int i = 0; i < properties.length && value != null; i++) {
+            value = PropertyAccessor.get(value, properties[i]);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,95 @@
+package com.nocoder.minitomcat.template;
+
+import com.nocoder.minitomcat.util.BoundedTtlCache;
+import com.nocoder.minitomcat.util.CoarseClock;
+import com.nocoder.minitomcat.util.PropertyUtil;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 模板片段缓存，所有模板共享
+ * 读取不加锁；按缓存字节数限制大小，超过上限时按写入顺序淘汰最早的片段，过期的片段在下次读取时重新渲染，见BoundedTtlCache。
+ * 每个片段名称分别统计命中和未命中次数
+ * server.template.fragment-cache.max-bytes  缓存的最大字节数，默认16MB
+ * server.template.fragment-cache.ttl        指令没有指定ttl时的默认秒数，默认60
+ * @author 29282
+ */
+public class FragmentCache {
+    static final long DEFAULT_TTL_MILLIS = Long.parseLong(PropertyUtil.getProperty("server.template.fragment-cache.ttl", "60")) * 1000;
+
+    private static final FragmentCache INSTANCE = new FragmentCache(
+            Long.parseLong(PropertyUtil.getProperty("server.template.fragment-cache.max-bytes", String.valueOf(16 * 1024 * 1024))));
+
+    /**
+     * 一个片段名称的统计
+     */
+    public static class Stats {
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+
+        public long getHits() {
+            return hits.sum();
+        }
+
+        public long getMisses() {
+            return misses.sum();
+        }
+
+        public double getHitRatio() {
+            long hit = hits.sum();
+            long total = hit + misses.sum();
+            return total == 0 ? 0 : (double) hit / total;
+        }
+    }
+
+    private final BoundedTtlCache<byte[]> entries;
+    private final Map<String, Stats> stats;
+
+    public FragmentCache(long maxBytes) {
+        this.entries = new BoundedTtlCache<>(maxBytes);
+        this.stats = new ConcurrentHashMap<>();
+    }
+
+    public static FragmentCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return 未命中或已过期时返回null
+     */
+    public byte[] get(String name, String key) {
+        byte[] bytes = entries.get(key);
+        Stats stat = stats(name);
+        if (bytes == null) {
+            stat.misses.increment();
+            return null;
+        }
+        stat.hits.increment();
+        return bytes;
+    }
+
+    public void put(String name, String key, byte[] bytes, long ttlMillis) {
+        entries.put(key, bytes, bytes.length, CoarseClock.currentTimeMillis() + ttlMillis);
+    }
+
+    /**
+     * 各个片段名称的命中统计
+     */
+    public Map<String, Stats> getStats() {
+        return stats;
+    }
+
+    public long getSize() {
+        return entries.getSize();
+    }
+
+    private Stats stats(String name) {
+        Stats stat = stats.get(name);
+        if (stat == null) {
+            stat = stats.computeIfAbsent(name, k -> new Stats());
+        }
+        return stat;
+    }
+}
@@ -0,0 +1,51 @@
+package com.nocoder.minitomcat.template;
+
+import com.nocoder.minitomcat.exception.TemplateResolveException;
+import com.nocoder.minitomcat.request.Request;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 缓存的模板片段，缓存key为片段名称加上各个key表达式的值
+ * 命中时直接输出缓存的字节，不再计算片段中的占位符
+ * @author 29282
+ */
+public class FragmentNode implements TemplateNode {
+    private final String name;
+    private final long ttlMillis;
+    private final ExpressionNode[] keys;
+    private final TemplateNode[] body;
+
+    public FragmentNode(String name, long ttlMillis, ExpressionNode[] keys, TemplateNode[] body) {
+        this.name = name;
+        this.ttlMillis = ttlMillis;
+        this.keys = keys;
+        this.body = body;
+    }
+
+    @Override
+    public void render(Request request, OutputStream out) throws IOException, TemplateResolveException {
+        FragmentCache cache = FragmentCache.getInstance();
+        String key = key(request);
+        byte[] cached = cache.get(name, key);
+        if (cached == null) {
+            ByteArrayOutputStream fragment = new ByteArrayOutputStream(256);
+            CompiledTemplate.render(body, request, fragment);
+            cached = fragment.toByteArray();
+            cache.put(name, key, cached, ttlMillis);
+        }
+        out.write(cached);
+    }
+
+    private String key(Request request) throws TemplateResolveException {
+        StringBuilder sb = new StringBuilder(name);
+        for (ExpressionNode key : keys) {
+            // \0分隔各个值，null与空字符串区分开
+            Object value = key.evaluate(request);
+            sb.append('\0').append(value == null ? "\1" : value.toString());
+        }
+        return sb.toString();
+    }
+}
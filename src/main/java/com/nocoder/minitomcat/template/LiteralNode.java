@@ -0,0 +1,29 @@
+package com.nocoder.minitomcat.template;
+
+import com.nocoder.minitomcat.request.Request;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static com.nocoder.minitomcat.constant.CharsetProperties.UTF_8_CHARSET;
+
+/**
+ * 模板中的静态文本，编译时就编码为UTF-8字节，渲染时直接写出
+ * @author 29282
+ */
+public class LiteralNode implements TemplateNode {
+    private final byte[] bytes;
+
+    public LiteralNode(String text) {
+        this.bytes = text.getBytes(UTF_8_CHARSET);
+    }
+
+    @Override
+    public void render(Request request, OutputStream out) throws IOException {
+        out.write(bytes);
+    }
+
+    public int length() {
+        return bytes.length;
+    }
+}
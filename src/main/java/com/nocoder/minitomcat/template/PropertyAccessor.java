@@ -0,0 +1,69 @@
+package com.nocoder.minitomcat.template;
+
+import com.nocoder.minitomcat.exception.TemplateResolveException;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.StringUtils;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 属性读取，x.y读取为x.getY()
+ * getter按类和属性名缓存为MethodHandle，每个类的每个属性只查找一次
+ * @author 29282
+ */
+@Slf4j
+public class PropertyAccessor {
+    private static final Logger logger = LoggerFactory.getLogger(PropertyAccessor.class);
+
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+
+    private static final ClassValue<Map<String, MethodHandle>> GETTERS = new ClassValue<Map<String, MethodHandle>>() {
+        @Override
+        protected Map<String, MethodHandle> computeValue(Class<?> type) {
+            return new ConcurrentHashMap<>();
+        }
+    };
+
+    private PropertyAccessor() {
+    }
+
+    public static Object get(Object target, String property) throws TemplateResolveException {
+        Map<String, MethodHandle> getters = GETTERS.get(target.getClass());
+        MethodHandle getter = getters.get(property);
+        if (getter == null) {
+            getter = findGetter(target.getClass(), property);
+            getters.put(property, getter);
+        }
+        try {
+            return (Object) getter.invokeExact(target);
+        } catch (Throwable e) {
+            logger.error("读取{}的属性{}失败", target.getClass().getName(), property, e);
+            throw new TemplateResolveException();
+        }
+    }
+
+    private static MethodHandle findGetter(Class<?> type, String property) throws TemplateResolveException {
+        try {
+            Method method = type.getMethod("get" + StringUtils.capitalize(property));
+            MethodHandle handle;
+            try {
+                handle = MethodHandles.publicLookup().unreflect(method);
+            } catch (IllegalAccessException e) {
+                // 非public类的public方法
+                method.setAccessible(true);
+                handle = MethodHandles.lookup().unreflect(method);
+            }
+            return handle.asType(GETTER_TYPE);
+        } catch (NoSuchMethodException | IllegalAccessException | RuntimeException e) {
+            logger.error("{}没有属性{}的getter", type.getName(), property);
+            throw new TemplateResolveException();
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.nocoder.minitomcat.template;
+
+import com.nocoder.minitomcat.exception.TemplateResolveException;
+import com.nocoder.minitomcat.request.Request;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 编译后的模板片段
+ * @author 29282
+ */
+public interface TemplateNode {
+    void render(Request request, OutputStream out) throws IOException, TemplateResolveException;
+}
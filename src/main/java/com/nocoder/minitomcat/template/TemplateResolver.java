@@ -1,104 +1,84 @@
 package com.nocoder.minitomcat.template;
 
 
-import com.nocoder.minitomcat.enumeration.ModelScope;
 import com.nocoder.minitomcat.exception.TemplateResolveException;
 import com.nocoder.minitomcat.request.Request;
+import com.nocoder.minitomcat.response.Response;
+import com.nocoder.minitomcat.util.IOUtil;
 import lombok.extern.slf4j.Slf4j;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.util.StringUtils;
 
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.util.Arrays;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.nocoder.minitomcat.constant.CharsetProperties.UTF_8_CHARSET;
 
 /**
- * 简化版的模板引擎，基于正则表达式的替换
+ * 简化版的模板引擎
  * 比如${a.b.c} 就可以解析为a.getB().getC()，并将值填充至占位符
+ * 模板文件第一次使用时编译为CompiledTemplate并缓存，之后的请求直接渲染：
+ * 静态文本是预先编码好的字节，占位符的属性读取使用缓存的MethodHandle
  * @author 29282
  */
 @Slf4j
 public class TemplateResolver {
     private static final Logger logger = LoggerFactory.getLogger(TemplateResolver.class);
 
-    public static final Pattern regex = Pattern.compile("\\$\\{(.*?)}");
+    /**
+     * 资源路径 -> 编译后的模板，模板来自classpath，运行期间不会变化
+     */
+    private static final Map<String, CompiledTemplate> TEMPLATES = new ConcurrentHashMap<>();
 
-    public static String resolve(String content, Request request) throws TemplateResolveException {
-        Matcher matcher = regex.matcher(content);
-        StringBuffer sb = new StringBuffer();
-        while (matcher.find()) {
-            logger.info("{}", matcher.group(1));
-            // placeHolder 格式为scope.x.y.z
-            // scope值为requestScope,sessionScope,applicationScope
-            String placeHolder = matcher.group(1);
-            if (placeHolder.indexOf('.') == -1) {
-                throw new TemplateResolveException();
-            }
-            ModelScope scope = ModelScope
-                    .valueOf(
-                            placeHolder.substring(0, placeHolder.indexOf('.'))
-                                    .replace("Scope", "")
-                                    .toUpperCase());
-            // key 格式为x.y.z
-            String key = placeHolder.substring(placeHolder.indexOf('.') + 1);
-            if (scope == null) {
-                throw new TemplateResolveException();
-            }
-            Object value = null;
-            // 按照.分隔为数组,格式为[x,y,z]
-            String[] segments = key.split("\\.");
-            logger.info("key: {} , segments:{}", key, Arrays.toString(segments));
-            switch (scope) {
-                case REQUEST:
-                    value = request.getAttribute(segments[0]);
-                    break;
-                case SESSION:
-                    value = request.getSession().getAttribute(segments[0]);
-                    break;
-                case APPLICATION:
-                    value = request.getServletContext().getAttribute(segments[0]);
-                    break;
-                default:
-                    break;
-            }
-            // 此时value为x，如果没有y、z，那么会直接返回；如果有，就会递归地进行属性读取（基于反射）
-            if (segments.length > 1) {
-                try {
-                    value = parse(value, segments, 1);
-                } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
-                    e.printStackTrace();
-                    throw new TemplateResolveException();
-                }
-            }
-            logger.info("value:{}", value);
-            // 如果解析得到的值为null，则将占位符去掉；否则将占位符替换为值
-            if (value == null) {
-                matcher.appendReplacement(sb, "");
+    /**
+     * 取出编译好的模板，第一次使用时读取并编译
+     */
+    public static CompiledTemplate getTemplate(String url) throws IOException, TemplateResolveException {
+        CompiledTemplate template = TEMPLATES.get(url);
+        if (template == null) {
+            template = CompiledTemplate.compile(new String(IOUtil.getBytesFromFile(url), UTF_8_CHARSET));
+            CompiledTemplate existing = TEMPLATES.putIfAbsent(url, template);
+            if (existing != null) {
+                template = existing;
             } else {
-                //把group(1)得到的数据，替换为value
-                matcher.appendReplacement(sb, value.toString());
+                logger.info("编译模板 {}", url);
             }
         }
-        // 将源文件后续部分添加至尾部
-        matcher.appendTail(sb);
-        String result = sb.toString();
-        return result.isEmpty() ? content : result;
+        return template;
     }
 
     /**
-     * 基于反射实现多级查询，比如user.dept.name
-     *
-     * @param segments
-     * @return
+     * 渲染模板文件，逐个片段直接写入响应的输出流，不在内存中拼出整个页面
+     * 输出缓冲写满时先提交响应头和已经渲染的部分，所以需要在调用前设置好响应头
      */
-    private static Object parse(Object value, String[] segments, int index) throws NoSuchMethodException, InvocationTargetException, IllegalAccessException {
-        if (index == segments.length) {
-            return value;
+    public static void render(String url, Request request, Response response) throws IOException, TemplateResolveException {
+        getTemplate(url).render(request, response.getOutputStream());
+    }
+
+    /**
+     * 渲染模板文件，返回完整的结果
+     */
+    public static byte[] render(String url, Request request) throws IOException, TemplateResolveException {
+        CompiledTemplate template = getTemplate(url);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(template.getLiteralLength() + 256);
+        template.render(request, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * 渲染一段不缓存的模板文本
+     */
+    public static String resolve(String content, Request request) throws TemplateResolveException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(content.length() + 256);
+        try {
+            CompiledTemplate.compile(content).render(request, out);
+        } catch (IOException e) {
+            // ByteArrayOutputStream不会抛出IOException
+            throw new UncheckedIOException(e);
         }
-        Method method = value.getClass().getMethod("get" + StringUtils.capitalize(segments[index]), new Class[0]);
-        return parse(method.invoke(value, new Object[0]), segments, index + 1);
+        return new String(out.toByteArray(), UTF_8_CHARSET);
     }
 }
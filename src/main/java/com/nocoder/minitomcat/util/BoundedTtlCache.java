@@ -0,0 +1,159 @@
+package com.nocoder.minitomcat.util;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 按字节数限制大小、每个条目有过期时间的缓存，响应缓存和模板片段缓存共用
+ * 读取只查ConcurrentHashMap，不加锁；写入在锁内维护一个按写入顺序排列的双向链表，
+ * 覆盖同一个key时把旧节点从链表中摘掉，超过上限时从链表头部淘汰，链表和map中的条目始终一一对应。
+ * 过期的条目在读取时删除，写入时每隔PURGE_INTERVAL扫描一遍链表删除其余过期的条目，
+ * 所以缓存占用的内存不会超过maxBytes，也不会保留已经过期的内容
+ * @author 29282
+ */
+public class BoundedTtlCache<V> {
+    private static final long PURGE_INTERVAL = 1000;
+
+    private static final class Node<V> {
+        final String key;
+        final V value;
+        final long size;
+        final long expireAt;
+        Node<V> prev;
+        Node<V> next;
+        /**
+         * 是否还在链表中，只在持有锁时读写
+         */
+        boolean linked;
+
+        Node(String key, V value, long size, long expireAt) {
+            this.key = key;
+            this.value = value;
+            this.size = size;
+            this.expireAt = expireAt;
+        }
+    }
+
+    private final long maxBytes;
+    private final Map<String, Node<V>> entries;
+    private final ReentrantLock lock;
+    private Node<V> head;
+    private Node<V> tail;
+    private long lastPurge;
+    private volatile long size;
+
+    public BoundedTtlCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.entries = new ConcurrentHashMap<>();
+        this.lock = new ReentrantLock();
+    }
+
+    /**
+     * @return 不存在或已过期时返回null
+     */
+    public V get(String key) {
+        Node<V> node = entries.get(key);
+        if (node == null) {
+            return null;
+        }
+        if (node.expireAt <= CoarseClock.currentTimeMillis()) {
+            lock.lock();
+            try {
+                if (entries.remove(key, node)) {
+                    unlink(node);
+                }
+            } finally {
+                lock.unlock();
+            }
+            return null;
+        }
+        return node.value;
+    }
+
+    /**
+     * 写入一个条目，覆盖同一个key的旧条目
+     * @param size     条目占用的字节数
+     * @param expireAt 过期时间
+     */
+    public void put(String key, V value, long size, long expireAt) {
+        if (size > maxBytes) {
+            return;
+        }
+        Node<V> node = new Node<>(key, value, size, expireAt);
+        lock.lock();
+        try {
+            Node<V> old = entries.put(key, node);
+            if (old != null) {
+                unlink(old);
+            }
+            link(node);
+            long now = CoarseClock.currentTimeMillis();
+            if (now - lastPurge >= PURGE_INTERVAL) {
+                lastPurge = now;
+                purgeExpired(now);
+            }
+            while (this.size > maxBytes && head != null) {
+                Node<V> eldest = head;
+                entries.remove(eldest.key, eldest);
+                unlink(eldest);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 当前缓存的字节数
+     */
+    public long getSize() {
+        return size;
+    }
+
+    public int getCount() {
+        return entries.size();
+    }
+
+    private void purgeExpired(long now) {
+        for (Node<V> node = head; node != null; ) {
+            Node<V> next = node.next;
+            if (node.expireAt <= now) {
+                entries.remove(node.key, node);
+                unlink(node);
+            }
+            node = next;
+        }
+    }
+
+    private void link(Node<V> node) {
+        node.prev = tail;
+        if (tail == null) {
+            head = node;
+        } else {
+            tail.next = node;
+        }
+        tail = node;
+        node.linked = true;
+        size += node.size;
+    }
+
+    private void unlink(Node<V> node) {
+        if (!node.linked) {
+            return;
+        }
+        if (node.prev == null) {
+            head = node.next;
+        } else {
+            node.prev.next = node.next;
+        }
+        if (node.next == null) {
+            tail = node.prev;
+        } else {
+            node.next.prev = node.prev;
+        }
+        node.prev = null;
+        node.next = null;
+        node.linked = false;
+        size -= node.size;
+    }
+}
@@ -0,0 +1,50 @@
+package com.nocoder.minitomcat.util;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 固定容量的ByteBuffer池，避免每次响应都分配缓冲
+ * 只回收容量等于bufferSize的缓冲，扩容出来的缓冲直接丢弃交给GC
+ * @author 29282
+ */
+public class ByteBufferPool {
+    private final int bufferSize;
+    private final int maxPooled;
+    private final Queue<ByteBuffer> buffers;
+    private final AtomicInteger pooled;
+
+    public ByteBufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+        this.buffers = new ConcurrentLinkedQueue<>();
+        this.pooled = new AtomicInteger();
+    }
+
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocate(bufferSize);
+        }
+        pooled.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != bufferSize) {
+            return;
+        }
+        if (pooled.incrementAndGet() > maxPooled) {
+            pooled.decrementAndGet();
+            return;
+        }
+        buffers.offer(buffer);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+}
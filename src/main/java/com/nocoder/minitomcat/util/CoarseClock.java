@@ -0,0 +1,39 @@
+package com.nocoder.minitomcat.util;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 粗粒度时钟，每100ms刷新一次，读取只是一次volatile读
+ * 用于session访问时间这类不需要精确时间、但调用非常频繁的地方
+ * @author 29282
+ */
+public class CoarseClock implements Runnable {
+    private static final long RESOLUTION_MILLIS = 100;
+
+    private static volatile long currentTimeMillis = System.currentTimeMillis();
+
+    static {
+        ThreadFactory threadFactory = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "CoarseClock");
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        executor.scheduleAtFixedRate(new CoarseClock(), RESOLUTION_MILLIS, RESOLUTION_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public static long currentTimeMillis() {
+        return currentTimeMillis;
+    }
+
+    @Override
+    public void run() {
+        currentTimeMillis = System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,129 @@
+package com.nocoder.minitomcat.websocket;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 增量式的帧解码器，在Poller线程中每读到一段数据就调用一次feed
+ * 先缓存帧头（2~14字节），再按负载长度读取并去掉掩码，一帧读完后回调FrameListener；
+ * 客户端发来的帧必须带掩码，RSV位必须为0，控制帧不能分片且负载不超过125字节
+ * @author 29282
+ */
+public class FrameDecoder {
+
+    public interface FrameListener {
+        /**
+         * 读到一个完整的帧
+         * @param fin     是否是消息的最后一帧
+         * @param opcode
+         * @param payload 已经去掉掩码的负载
+         */
+        void onFrame(boolean fin, int opcode, byte[] payload) throws WebSocketException;
+    }
+
+    private final long maxFrameSize;
+    private final byte[] header = new byte[14];
+    private int headerLength;
+    private int headerNeeded = 2;
+    private final byte[] mask = new byte[4];
+    private boolean fin;
+    private int opcode;
+    private byte[] payload;
+    private int payloadPosition;
+
+    public FrameDecoder(long maxFrameSize) {
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    public void feed(ByteBuffer data, FrameListener listener) throws WebSocketException {
+        while (data.hasRemaining()) {
+            if (payload == null) {
+                while (headerLength < headerNeeded && data.hasRemaining()) {
+                    header[headerLength++] = data.get();
+                }
+                if (headerLength < headerNeeded || !parseHeader()) {
+                    continue;
+                }
+                if (payload.length == 0) {
+                    emit(listener);
+                    continue;
+                }
+            }
+            int n = Math.min(data.remaining(), payload.length - payloadPosition);
+            data.get(payload, payloadPosition, n);
+            for (int i = payloadPosition, end = payloadPosition + n; i < end; i++) {
+                payload[i] ^= mask[i & 3];
+            }
+            payloadPosition += n;
+            if (payloadPosition == payload.length) {
+                emit(listener);
+            }
+        }
+    }
+
+    /**
+     * 解析帧头
+     * @return 帧头是否完整，只读到前2个字节时计算帧头总长度并返回false
+     */
+    private boolean parseHeader() throws WebSocketException {
+        int b0 = header[0] & 0xFF;
+        int b1 = header[1] & 0xFF;
+        int length7 = b1 & 0x7F;
+        if (headerNeeded == 2) {
+            if ((b0 & 0x70) != 0) {
+                throw new WebSocketException(WebSocketFrame.PROTOCOL_ERROR, "RSV bits must be 0");
+            }
+            if ((b1 & 0x80) == 0) {
+                throw new WebSocketException(WebSocketFrame.PROTOCOL_ERROR, "client frame must be masked");
+            }
+            headerNeeded = 2 + (length7 == 126 ? 2 : length7 == 127 ? 8 : 0) + 4;
+            return false;
+        }
+        fin = (b0 & 0x80) != 0;
+        opcode = b0 & 0x0F;
+        long length;
+        int position;
+        if (length7 == 126) {
+            length = ((header[2] & 0xFF) << 8) | (header[3] & 0xFF);
+            position = 4;
+        } else if (length7 == 127) {
+            length = 0;
+            for (int i = 2; i < 10; i++) {
+                length = (length << 8) | (header[i] & 0xFF);
+            }
+            position = 10;
+        } else {
+            length = length7;
+            position = 2;
+        }
+        System.arraycopy(header, position, mask, 0, 4);
+        switch (opcode) {
+            case WebSocketFrame.OPCODE_CONTINUATION:
+            case WebSocketFrame.OPCODE_TEXT:
+            case WebSocketFrame.OPCODE_BINARY:
+                break;
+            case WebSocketFrame.OPCODE_CLOSE:
+            case WebSocketFrame.OPCODE_PING:
+            case WebSocketFrame.OPCODE_PONG:
+                if (!fin || length > 125) {
+                    throw new WebSocketException(WebSocketFrame.PROTOCOL_ERROR, "invalid control frame");
+                }
+                break;
+            default:
+                throw new WebSocketException(WebSocketFrame.PROTOCOL_ERROR, "unknown opcode " + opcode);
+        }
+        if (length < 0 || length > maxFrameSize) {
+            throw new WebSocketException(WebSocketFrame.MESSAGE_TOO_BIG, "frame too large");
+        }
+        payload = new byte[(int) length];
+        payloadPosition = 0;
+        return true;
+    }
+
+    private void emit(FrameListener listener) throws WebSocketException {
+        byte[] frame = payload;
+        payload = null;
+        headerLength = 0;
+        headerNeeded = 2;
+        listener.onFrame(fin, opcode, frame);
+    }
+}
@@ -0,0 +1,48 @@
+package com.nocoder.minitomcat.websocket;
+
+/**
+ * WebSocket应用接口，由servlet通过Request.upgradeToWebSocket注册到连接上
+ * 回调都在worker线程池中执行，同一连接上的回调按顺序串行执行
+ * @author 29282
+ */
+public interface WebSocketEndpoint {
+    /**
+     * 握手完成
+     * @param session
+     */
+    default void onOpen(WebSocketSession session) {
+    }
+
+    /**
+     * 收到一条完整的文本消息（分片已经合并）
+     * @param session
+     * @param message
+     */
+    default void onText(WebSocketSession session, String message) {
+    }
+
+    /**
+     * 收到一条完整的二进制消息（分片已经合并）
+     * @param session
+     * @param message
+     */
+    default void onBinary(WebSocketSession session, byte[] message) {
+    }
+
+    /**
+     * 连接关闭，对方没有发送关闭帧时code为1006
+     * @param session
+     * @param code
+     * @param reason
+     */
+    default void onClose(WebSocketSession session, int code, String reason) {
+    }
+
+    /**
+     * 回调中抛出了异常
+     * @param session
+     * @param e
+     */
+    default void onError(WebSocketSession session, Throwable e) {
+    }
+}
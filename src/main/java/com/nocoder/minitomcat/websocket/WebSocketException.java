@@ -0,0 +1,18 @@
+package com.nocoder.minitomcat.websocket;
+
+/**
+ * WebSocket协议错误，携带关闭连接时使用的状态码
+ * @author 29282
+ */
+public class WebSocketException extends Exception {
+    private final int closeCode;
+
+    public WebSocketException(int closeCode, String message) {
+        super(message);
+        this.closeCode = closeCode;
+    }
+
+    public int getCloseCode() {
+        return closeCode;
+    }
+}
@@ -0,0 +1,64 @@
+package com.nocoder.minitomcat.websocket;
+
+import java.nio.ByteBuffer;
+
+import static com.nocoder.minitomcat.constant.CharsetProperties.UTF_8_CHARSET;
+
+/**
+ * RFC 6455 帧的常量以及服务端帧的编码，服务端发出的帧不加掩码
+ * @author 29282
+ */
+public class WebSocketFrame {
+    public static final int OPCODE_CONTINUATION = 0x0;
+    public static final int OPCODE_TEXT = 0x1;
+    public static final int OPCODE_BINARY = 0x2;
+    public static final int OPCODE_CLOSE = 0x8;
+    public static final int OPCODE_PING = 0x9;
+    public static final int OPCODE_PONG = 0xA;
+
+    public static final int NORMAL_CLOSURE = 1000;
+    public static final int GOING_AWAY = 1001;
+    public static final int PROTOCOL_ERROR = 1002;
+    public static final int NO_STATUS = 1005;
+    public static final int ABNORMAL_CLOSURE = 1006;
+    public static final int INVALID_PAYLOAD = 1007;
+    public static final int MESSAGE_TOO_BIG = 1009;
+
+    private WebSocketFrame() {
+    }
+
+    /**
+     * 编码一个不分片的帧
+     */
+    public static ByteBuffer encode(int opcode, byte[] payload) {
+        int length = payload.length;
+        int headerLength = length <= 125 ? 2 : length <= 0xFFFF ? 4 : 10;
+        ByteBuffer buffer = ByteBuffer.allocate(headerLength + length);
+        buffer.put((byte) (0x80 | opcode));
+        if (length <= 125) {
+            buffer.put((byte) length);
+        } else if (length <= 0xFFFF) {
+            buffer.put((byte) 126);
+            buffer.putShort((short) length);
+        } else {
+            buffer.put((byte) 127);
+            buffer.putLong(length);
+        }
+        buffer.put(payload);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * 关闭帧：2字节状态码 + UTF-8原因，控制帧的负载不能超过125字节
+     */
+    public static ByteBuffer encodeClose(int code, String reason) {
+        byte[] reasonBytes = reason == null ? new byte[0] : reason.getBytes(UTF_8_CHARSET);
+        int reasonLength = Math.min(reasonBytes.length, 123);
+        byte[] payload = new byte[2 + reasonLength];
+        payload[0] = (byte) (code >> 8);
+        payload[1] = (byte) code;
+        System.arraycopy(reasonBytes, 0, payload, 2, reasonLength);
+        return encode(OPCODE_CLOSE, payload);
+    }
+}
@@ -0,0 +1,60 @@
+package com.nocoder.minitomcat.websocket;
+
+import com.nocoder.minitomcat.enumeration.HttpStatus;
+import com.nocoder.minitomcat.exception.RequestParseException;
+import com.nocoder.minitomcat.request.Request;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+/**
+ * WebSocket握手，校验升级请求并生成101响应
+ * @author 29282
+ */
+public class WebSocketHandshake {
+    private static final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final byte[] UPGRADE_HEADERS = "Upgrade: websocket\r\nConnection: Upgrade\r\nSec-WebSocket-Accept: "
+            .getBytes(StandardCharsets.US_ASCII);
+
+    private WebSocketHandshake() {
+    }
+
+    /**
+     * 校验升级请求，返回Sec-WebSocket-Accept
+     * @throws RequestParseException 不是合法的WebSocket升级请求
+     */
+    public static String accept(Request request) throws RequestParseException {
+        String upgrade = request.getHeader("Upgrade");
+        String connection = request.getHeader("Connection");
+        String key = request.getHeader("Sec-WebSocket-Key");
+        String version = request.getHeader("Sec-WebSocket-Version");
+        if (upgrade == null || !"websocket".equalsIgnoreCase(upgrade.trim())
+                || connection == null || !connection.toLowerCase().contains("upgrade")
+                || key == null || version == null || !"13".equals(version.trim())) {
+            throw new RequestParseException();
+        }
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] digest = sha1.digest((key.trim() + GUID).getBytes(StandardCharsets.US_ASCII));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 101响应，没有响应体
+     */
+    public static byte[] response(String accept) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(160);
+        byte[] statusLine = HttpStatus.SWITCHING_PROTOCOLS.getStatusLine();
+        out.write(statusLine, 0, statusLine.length);
+        out.write(UPGRADE_HEADERS, 0, UPGRADE_HEADERS.length);
+        byte[] acceptBytes = (accept + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        out.write(acceptBytes, 0, acceptBytes.length);
+        return out.toByteArray();
+    }
+}
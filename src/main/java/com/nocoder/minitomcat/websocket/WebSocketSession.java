@@ -0,0 +1,49 @@
+package com.nocoder.minitomcat.websocket;
+
+import java.util.Map;
+
+/**
+ * 一个WebSocket连接，send可以在任意线程中调用
+ * 发送只是放入连接的写队列，由Poller线程写出；
+ * 队列中待写出的字节数超过server.websocket.max-pending-bytes时send返回false，应用需要降低发送速度
+ * @author 29282
+ */
+public interface WebSocketSession {
+    String getId();
+
+    /**
+     * @param message
+     * @return 连接已关闭或写队列已满时返回false
+     */
+    boolean sendText(String message);
+
+    /**
+     * @param message
+     * @return 连接已关闭或写队列已满时返回false
+     */
+    boolean sendBinary(byte[] message);
+
+    /**
+     * 写队列中尚未写出的字节数
+     */
+    long getBufferedAmount();
+
+    /**
+     * 以1000正常关闭
+     */
+    void close();
+
+    /**
+     * 发送关闭帧，写完后关闭连接
+     * @param code
+     * @param reason
+     */
+    void close(int code, String reason);
+
+    boolean isOpen();
+
+    /**
+     * 连接级别的属性，应用可以在这里保存用户信息等
+     */
+    Map<String, Object> getAttributes();
+}
@@ -0,0 +1,88 @@
+package com.nocoder.minitomcat.response.cache;
+
+import com.nocoder.minitomcat.request.Request;
+import com.nocoder.minitomcat.response.Response;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * 请求合并：并发的相同GET只执行一次servlet
+ * @author 29282
+ */
+public class RequestCoalescerTest {
+    private final RequestCoalescer coalescer = new RequestCoalescer();
+    private final CoalescingPolicy policy = new CoalescingPolicy(5000);
+
+    @Test
+    public void laterArrivalIsNotLeader() {
+        RequestCoalescer.Flight leader = coalescer.join(request("/items"), policy);
+        RequestCoalescer.Flight follower = coalescer.join(request("/items"), policy);
+        assertTrue(leader.isLeader());
+        assertFalse(follower.isLeader());
+        // 等待者abandon不影响执行者
+        coalescer.abandon(follower);
+        assertFalse(coalescer.join(request("/items"), policy).isLeader());
+        coalescer.abandon(leader);
+        assertTrue(coalescer.join(request("/items"), policy).isLeader());
+    }
+
+    @Test
+    public void concurrentIdenticalGetsRunServletOnce() throws Exception {
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch joined = new CountDownLatch(2);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 2; i++) {
+                results.add(executor.submit(() -> handle(runs, joined)));
+            }
+            for (Future<String> result : results) {
+                assertEquals("hello", result.get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, runs.get());
+        assertEquals(1, coalescer.getCoalescedCount());
+        assertEquals(0, coalescer.getFallbackCount());
+    }
+
+    /**
+     * 按AbstractRequestHandler的流程处理一个请求，执行者等两个请求都加入后才执行servlet
+     */
+    private String handle(AtomicInteger runs, CountDownLatch joined) throws InterruptedException {
+        Request request = request("/items");
+        RequestCoalescer.Flight flight = coalescer.join(request, policy);
+        joined.countDown();
+        if (!flight.isLeader()) {
+            CachedResponse shared = coalescer.await(flight, request, policy);
+            assertNotNull(shared);
+            Response response = new Response();
+            shared.applyTo(response);
+            return new String(response.getBufferedBody(), StandardCharsets.UTF_8);
+        }
+        joined.await(5, TimeUnit.SECONDS);
+        runs.incrementAndGet();
+        Response response = new Response();
+        response.setBody("hello".getBytes(StandardCharsets.UTF_8));
+        coalescer.complete(flight, request, response);
+        return "hello";
+    }
+
+    private static Request request(String url) {
+        Request request = new Request();
+        request.setUrl(url);
+        return request;
+    }
+}